@@ -24,13 +24,24 @@ public class SenderResolver {
      * @return
      */
     public String resolveSender(PSTMessage pstMessage) {
-        Preconditions.checkState(resolverMap != null, "resolverMap has not been instantiated");
         Preconditions.checkArgument(pstMessage != null, "pstMessage cannot be null");
 
-        if ("EX".equalsIgnoreCase(pstMessage.getSenderAddrtype())) {
-            for (Map.Entry<String, String> entry : resolverMap.entrySet()) {
-                String senderEmailAddress = pstMessage.getSenderEmailAddress();
+        return resolveSender(pstMessage.getSenderAddrtype(), pstMessage.getSenderEmailAddress());
+    }
 
+    /**
+     * Resolves the senders email address for addresses that are in an exchange format instead of SMTP, using sender
+     * properties already read from a message.
+     *
+     * @param senderAddrtype     Address type of the sender, must be EX
+     * @param senderEmailAddress Exchange formatted address of the sender
+     * @return Returns the resolved email address, or an empty string if no mapping matches
+     */
+    public String resolveSender(String senderAddrtype, String senderEmailAddress) {
+        Preconditions.checkState(resolverMap != null, "resolverMap has not been instantiated");
+
+        if ("EX".equalsIgnoreCase(senderAddrtype)) {
+            for (Map.Entry<String, String> entry : resolverMap.entrySet()) {
                 if (senderEmailAddress.startsWith(entry.getKey())) {
                     String user = senderEmailAddress.substring(senderEmailAddress.lastIndexOf("=") + 1);
 
@@ -71,6 +71,13 @@ public class TestSenderResolver {
         Assert.assertEquals("test.user@test.com", resolved);
     }
 
+    @Test
+    public void testResolveSenderFromProperties() {
+        String resolved = resolver.resolveSender("EX", "OU=def/blah/cn=test.user");
+
+        Assert.assertEquals("test.user@test.com", resolved);
+    }
+
     @Test(expected = IllegalStateException.class)
     public void testResolveSenderNullMap() {
         Mockito.when(pstMessage.getSenderAddrtype()).thenReturn("EX");
@@ -0,0 +1,55 @@
+package com.atsid.outlook.app;
+
+import com.atsid.outlook.pst.catalog.CatalogEntry;
+import com.atsid.outlook.pst.catalog.CatalogIndex;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Command line lookup of the attachment catalog written to an output folder.  Prints the catalog line of every
+ * attachment matching the query, found through the catalog's index files, which are rebuilt first if the catalog has
+ * grown since they were built.
+ *
+ * Usage: CatalogQuery outputPath id|name|hash value
+ */
+public class CatalogQuery {
+    private static final String USAGE = "Usage: CatalogQuery outputPath id|name|hash value";
+
+    /**
+     * Main method, looks up attachments by message id, file name prefix or hash.
+     *
+     * @param args Output folder, type of query and value to look up
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        List<CatalogEntry> entries;
+
+        try (CatalogIndex index = CatalogIndex.open(args[0])) {
+            switch (args[1]) {
+                case "id":
+                    entries = index.findByEmailId(Long.parseLong(args[2]));
+                    break;
+                case "name":
+                    entries = index.findByFileNamePrefix(args[2]);
+                    break;
+                case "hash":
+                    entries = index.findByHash(args[2]);
+                    break;
+                default:
+                    System.err.println(USAGE);
+                    System.exit(1);
+                    return;
+            }
+        }
+
+        for (CatalogEntry entry : entries) {
+            System.out.println(entry.toLine());
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.atsid.outlook.app;
 import com.atsid.outlook.pst.GmailServiceFactory;
 import com.atsid.outlook.pst.PstParser;
 import com.atsid.outlook.pst.message.GmailImportingPstMessageHandler;
+import com.atsid.outlook.pst.message.PstMessageHandler;
+import com.atsid.outlook.pst.pipeline.ImportPipeline;
 import lombok.Setter;
 import lombok.extern.log4j.Log4j;
 import org.joda.time.DateTime;
@@ -10,6 +12,7 @@ import org.joda.time.Duration;
 import org.joda.time.format.PeriodFormatter;
 import org.joda.time.format.PeriodFormatterBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.swing.SwingWorker;
@@ -31,12 +34,15 @@ public class ExtractionWorker extends SwingWorker<Void, Void> {
     private String outputDirectoryText;
     @Setter
     private String jsonCredentialFile;
-    @Setter
-    private int itemCount;
+    private volatile int itemCount;
     @Autowired
     private GmailServiceFactory gmailServiceFactory;
     @Autowired
     private GmailImportingPstMessageHandler gmailMessageHandler;
+    @Autowired
+    private ImportPipeline importPipeline;
+    @Value("${pipeline.enable}")
+    private boolean usePipeline;
 
     @Override
     protected Void doInBackground() throws Exception {
@@ -46,13 +52,22 @@ public class ExtractionWorker extends SwingWorker<Void, Void> {
         ProgressUpdate progressUpdate = new ProgressUpdate() {
             @Override
             public void updateProgress(int progress) {
-                int newProgress = (int) Math.floor(((double) progress / (double) itemCount) * 100.0);
-                setProgress(newProgress > 100 ? 100 : newProgress);
+                if (itemCount > 0) {
+                    int newProgress = (int) Math.floor(((double) progress / (double) itemCount) * 100.0);
+                    setProgress(newProgress > 100 ? 100 : newProgress);
+                }
+            }
+
+            @Override
+            public void updateTotal(int total) {
+                itemCount = total;
             }
         };
         try {
             gmailServiceFactory.addCredentials(emailAddress, jsonCredentialFile);
-            pstParser.processPst(pstFile, emailAddress, outputDirectoryText, gmailMessageHandler, progressUpdate);
+            PstMessageHandler messageHandler = usePipeline ? importPipeline : gmailMessageHandler;
+
+            pstParser.processPst(pstFile, emailAddress, outputDirectoryText, messageHandler, progressUpdate);
             setProgress(100);
         } catch (Exception ex) {
             log.error("Caught exception", ex);
@@ -10,4 +10,11 @@ public interface ProgressUpdate {
      * @param progress The number of completed units
      */
     void updateProgress(int progress);
+
+    /**
+     * Reports the estimated total number of units.  May be called again as the estimate is refined.
+     *
+     * @param total The estimated total number of units
+     */
+    void updateTotal(int total);
 }
\ No newline at end of file
@@ -1,7 +1,5 @@
 package com.atsid.outlook.app;
 
-import com.atsid.outlook.pst.PstParser;
-import com.pff.PSTException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -20,7 +18,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.io.IOException;
 
 /**
  * Displays a dialog using Swing to prompt for info and display a progress bar.
@@ -45,8 +42,6 @@ public class PromptScreen extends JPanel implements ActionListener, PropertyChan
     private JProgressBar progressBar;
     @Autowired
     ExtractionWorker worker;
-    @Autowired
-    PstParser pstParser;
 
     /**
      * Creates a new <code>PromptScreen</code> dialog.
@@ -156,27 +151,18 @@ public class PromptScreen extends JPanel implements ActionListener, PropertyChan
                 jsonFileText.setText(jsonFile.getSelectedFile().getAbsolutePath());
             }
         } else if (e.getSource() == startButton) {
-            try {
-                worker.addPropertyChangeListener(this);
-                worker.setPstFile(pstFilePathText.getText());
-                worker.setEmailAddress(emailAddress.getText());
-                worker.setOutputDirectoryText(outputDirectoryText.getText());
-                worker.setJsonCredentialFile(jsonFileText.getText());
-                int messageCount = pstParser.countEmails(pstFilePathText.getText());
-                progressBar.setMinimum(0);
-                progressBar.setMaximum(100);
-                progressBar.setValue(0);
-                progressBar.setStringPainted(true);
-                progressBar.setVisible(true);
-                System.out.println(String.format("Found %d emails", messageCount));
-                worker.setItemCount(messageCount);
-                startButton.setEnabled(false);
-                worker.execute();
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            } catch (PSTException e1) {
-                e1.printStackTrace();
-            }
+            worker.addPropertyChangeListener(this);
+            worker.setPstFile(pstFilePathText.getText());
+            worker.setEmailAddress(emailAddress.getText());
+            worker.setOutputDirectoryText(outputDirectoryText.getText());
+            worker.setJsonCredentialFile(jsonFileText.getText());
+            progressBar.setMinimum(0);
+            progressBar.setMaximum(100);
+            progressBar.setValue(0);
+            progressBar.setStringPainted(true);
+            progressBar.setVisible(true);
+            startButton.setEnabled(false);
+            worker.execute();
         }
     }
 
@@ -1,36 +1,49 @@
 package com.atsid.outlook.pst;
 
+import com.atsid.outlook.pst.io.AttachmentWriter;
+import com.atsid.outlook.pst.io.WrittenAttachment;
+import com.atsid.outlook.pst.message.KeptAttachment;
 import com.pff.PSTAttachment;
+import com.pff.PSTException;
 import com.pff.PSTMessage;
 import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
- * Extracts email attachments from a <code>PSTMessage</code> and saves them to a folder on disk.
+ * Extracts email attachments from a <code>PSTMessage</code> and saves them to a folder on disk through the
+ * <code>AttachmentWriter</code> pool.  Attachments that <code>AttachmentRules</code> says to keep are read into memory
+ * instead so they stay in the uploaded message.
  */
 @Component
 public class AttachmentExtractor {
     @Autowired
     private AttachmentLogger attachmentLogger;
+    @Autowired
+    private AttachmentRules attachmentRules;
+    @Autowired
+    private AttachmentWriter attachmentWriter;
 
     /**
-     * Extracts attachments from a PST email message and saves them in the specified output folder.
+     * Extracts attachments from a PST email message and saves them in the specified output folder.  Attachments are
+     * read before this returns, but may still be being written; the result waits for the writes to finish.
+     * Attachments that are kept are added to the list of kept attachments instead.
      *
-     * @param message    PSTMessage to extract attachments from
-     * @param outputPath Output folder to place attachments in
-     * @return Returns true if attachments were extracted, false otherwise
+     * @param message         PSTMessage to extract attachments from
+     * @param outputPath      Output folder to place attachments in
+     * @param keptAttachments List the attachments kept in the message are added to
+     * @return Returns the attachments extracted
      */
-    public List<String> extractAttachments(PSTMessage message, String outputPath) {
-        List<String> removedAttachments = new ArrayList<>();
+    public ExtractedAttachments extractAttachments(PSTMessage message, String outputPath,
+                                                   List<KeptAttachment> keptAttachments) {
         Long emailId = message.getDescriptorNodeId();
+        ExtractedAttachments extractedAttachments = new ExtractedAttachments(emailId, outputPath, attachmentLogger);
 
         if (message.getNumberOfAttachments() > 0) {
             for (int i = 0; i < message.getNumberOfAttachments(); ++i) {
@@ -40,9 +53,12 @@ public class AttachmentExtractor {
                     attachment = message.getAttachment(i);
                     String fileName = attachment.getLongFilename();
 
-                    extractAttachment(attachment.getFileInputStream(), emailId, fileName, outputPath);
-                    attachmentLogger.logAttachmentRemoved(emailId, fileName, attachment.getDisplayName(), outputPath);
-                    removedAttachments.add(emailId + File.separator + fileName);
+                    if (attachmentRules.shouldKeep(attachment)) {
+                        keptAttachments.add(readAttachment(attachment));
+                    } else {
+                        extractedAttachments.add(fileName, attachment.getDisplayName(),
+                                extractAttachment(attachment.getFileInputStream(), emailId, fileName, outputPath));
+                    }
                 } catch (Exception ex) {
                     String fileName = attachment == null ? "" : attachment.getLongFilename();
                     String displayName = attachment == null ? "" : attachment.getDisplayName();
@@ -52,29 +68,83 @@ public class AttachmentExtractor {
             }
         }
 
+        return extractedAttachments;
+    }
+
+    /**
+     * Lists attachments from a PST email message that an earlier run already saved in the specified output folder,
+     * without writing them out again.  Attachments that are kept were never written out, so they are read again and
+     * added to the list of kept attachments.
+     *
+     * @param message         PSTMessage whose attachments were extracted
+     * @param outputPath      Output folder attachments were placed in
+     * @param keptAttachments List the attachments kept in the message are added to
+     * @return Returns the list of attachments found on disk
+     */
+    public List<String> listExtractedAttachments(PSTMessage message, String outputPath,
+                                                 List<KeptAttachment> keptAttachments) {
+        List<String> removedAttachments = new ArrayList<>();
+        Long emailId = message.getDescriptorNodeId();
+
+        for (int i = 0; i < message.getNumberOfAttachments(); ++i) {
+            try {
+                PSTAttachment attachment = message.getAttachment(i);
+                String fileName = attachment.getLongFilename();
+
+                if (attachmentRules.shouldKeep(attachment)) {
+                    keptAttachments.add(readAttachment(attachment));
+                } else {
+                    String location = attachmentWriter.getLocation(outputPath, emailId, fileName);
+
+                    if (location != null) {
+                        removedAttachments.add(location);
+                    }
+                }
+            } catch (Exception ex) {
+                // Attachment could not be read, so it was not extracted last time either
+            }
+        }
+
         return removedAttachments;
     }
 
     /**
-     * Copies an attachment out to a file on the filesystem using the emailId as a key folder.
+     * Reads an attachment that is kept in the message into memory.
+     *
+     * @param attachment Attachment to read
+     * @return Returns the kept attachment
+     * @throws IOException
+     * @throws PSTException
+     */
+    private KeptAttachment readAttachment(PSTAttachment attachment) throws IOException, PSTException {
+        String fileName = attachment.getLongFilename();
+        InputStream stream = attachment.getFileInputStream();
+
+        try {
+            return new KeptAttachment(fileName, attachmentRules.getMimeType(attachment.getMimeTag(), fileName),
+                    attachment.getContentId(), IOUtils.toByteArray(stream));
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Hands an attachment to the attachment writer to copy out to a file on the filesystem using the emailId as a key
+     * folder.
      *
      * @param stream     Attachment input stream
      * @param emailId    Email id to use as key for storage location
      * @param fileName   Name of attachment on disk
      * @param outputPath The absolute path to where content gets written on disk
-     * @throws IOException Throws if there is an issue copying the file using IOUtils
+     * @return Returns a future that completes with the written attachment once it has been written
+     * @throws IOException Throws if there is an issue reading the attachment
      */
-    private void extractAttachment(InputStream stream, Long emailId, String fileName, String outputPath)
-            throws IOException {
-        File outputDirectory = new File(outputPath + File.separator + emailId);
-
-        outputDirectory.mkdirs();
-
-        try (FileOutputStream output = new FileOutputStream(
-                new File(outputPath + File.separator + emailId + File.separator + fileName))) {
-            IOUtils.copy(stream, output);
+    private Future<WrittenAttachment> extractAttachment(InputStream stream, Long emailId, String fileName,
+                                                        String outputPath) throws IOException {
+        try {
+            return attachmentWriter.write(stream, outputPath, emailId, fileName);
         } finally {
             IOUtils.closeQuietly(stream);
         }
     }
-}
\ No newline at end of file
+}
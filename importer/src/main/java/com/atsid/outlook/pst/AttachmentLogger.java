@@ -1,15 +1,35 @@
 package com.atsid.outlook.pst;
 
+import com.atsid.outlook.pst.io.LogSink;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.log4j.Log4j;
-import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Logger that outputs various information to indicate an attachment was stripped from an email or that an error was
  * encountered during the extraction process.
+ *
+ * Log lines are queued and written by a background thread to a <code>LogSink</code> kept open for each log file, every
+ * log.flush.interval.ms or as soon as log.batch.size lines are waiting, and when processing finishes.  With
+ * log.json.enable set each line is written as a JSON record to attachments.jsonl and error.jsonl instead.
  */
 @Component
 @Log4j
@@ -19,6 +39,31 @@ public class AttachmentLogger {
             "Error extracting attachment from %s (%s) from email %d with error %s%n";
     private static final String SENDER_ERROR_STRING =
             "Could not resolve sender %s to proper email address in email with id %d%n";
+    @Value("${log.flush.interval.ms}")
+    private long flushInterval;
+    @Value("${log.batch.size}")
+    private int batchSize;
+    @Value("${log.json.enable}")
+    private boolean jsonEnabled;
+    private final Queue<LogLine> pendingLines = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final Map<File, LogSink> sinks = new HashMap<>();
+    private ScheduledExecutorService executor;
+
+    /**
+     * Helper method called after spring injects properties to create the thread that writes the logs.
+     */
+    @PostConstruct
+    private void createExecutor() {
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("attachment-log-%d").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
 
     /**
      * Logs an attachment extraction to an attachment.log file in the output path.
@@ -29,11 +74,15 @@ public class AttachmentLogger {
      * @param outputPath     Location to write attachment.log file
      */
     public void logAttachmentRemoved(Long emailId, String fileName, String attachmentName, String outputPath) {
-        try {
-            FileUtils.writeStringToFile(getAttachmentLogFile(outputPath),
-                    String.format(ATTACHMENT_LOG_STRING, fileName, attachmentName, emailId), true);
-        } catch (IOException ioe) {
-            log.error("Could not log attachment extraction due to error.", ioe);
+        if (jsonEnabled) {
+            Map<String, Object> record = newRecord("attachmentRemoved", emailId);
+
+            record.put("fileName", fileName);
+            record.put("attachmentName", attachmentName);
+            queue(getAttachmentLogFile(outputPath), record);
+        } else {
+            queue(getAttachmentLogFile(outputPath), String.format(ATTACHMENT_LOG_STRING, fileName, attachmentName,
+                    emailId));
         }
     }
 
@@ -48,11 +97,16 @@ public class AttachmentLogger {
      */
     public void logAttachmentError(Long emailId, String fileName, String attachmentName, String outputPath,
                                    Exception exception) {
-        try {
-            FileUtils.writeStringToFile(getErrorLogFile(outputPath),
-                    String.format(ERROR_LOG_STRING, fileName, attachmentName, emailId, exception.getMessage()), true);
-        } catch (IOException ioe) {
-            log.error("Could not log attachment extraction error due to error.", ioe);
+        if (jsonEnabled) {
+            Map<String, Object> record = newRecord("attachmentError", emailId);
+
+            record.put("fileName", fileName);
+            record.put("attachmentName", attachmentName);
+            record.put("error", exception.getMessage());
+            queue(getErrorLogFile(outputPath), record);
+        } else {
+            queue(getErrorLogFile(outputPath), String.format(ERROR_LOG_STRING, fileName, attachmentName, emailId,
+                    exception.getMessage()));
         }
     }
 
@@ -64,14 +118,136 @@ public class AttachmentLogger {
      * @param sender     Email address that generated error
      */
     public void logSenderError(Long emailId, String outputPath, String sender) {
+        if (jsonEnabled) {
+            Map<String, Object> record = newRecord("senderError", emailId);
+
+            record.put("sender", sender);
+            queue(getErrorLogFile(outputPath), record);
+        } else {
+            queue(getErrorLogFile(outputPath), String.format(SENDER_ERROR_STRING, sender, emailId));
+        }
+    }
+
+    /**
+     * Writes every queued line to its log file and flushes the files.  Called on the log thread every
+     * log.flush.interval.ms, and once processing finishes so the logs are complete.
+     */
+    public synchronized void flush() {
+        LogLine line;
+
+        while ((line = pendingLines.poll()) != null) {
+            pendingCount.decrementAndGet();
+
+            try {
+                getSink(line.file).write(line.text);
+            } catch (IOException ioe) {
+                log.error("Could not write to log " + line.file + " due to error.", ioe);
+            }
+        }
+
+        for (Map.Entry<File, LogSink> entry : sinks.entrySet()) {
+            try {
+                entry.getValue().flush();
+            } catch (IOException ioe) {
+                log.error("Could not flush log " + entry.getKey() + " due to error.", ioe);
+            }
+        }
+    }
+
+    /**
+     * Writes anything still queued and closes the log files when the application shuts down.
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+
+        synchronized (this) {
+            flush();
+
+            for (Map.Entry<File, LogSink> entry : sinks.entrySet()) {
+                try {
+                    entry.getValue().close();
+                } catch (IOException ioe) {
+                    log.error("Could not close log " + entry.getKey() + " due to error.", ioe);
+                }
+            }
+
+            sinks.clear();
+        }
+    }
+
+    /**
+     * Queues a JSON record to be written to a log file.
+     *
+     * @param file   Log file to write to
+     * @param record Fields of the record, in order
+     */
+    private void queue(File file, Map<String, Object> record) {
         try {
-            FileUtils.writeStringToFile(getErrorLogFile(outputPath),
-                    String.format(SENDER_ERROR_STRING, sender, emailId));
+            queue(file, JacksonFactory.getDefaultInstance().toString(record) + System.lineSeparator());
         } catch (IOException ioe) {
-            log.error("Could not log sender error due to error.", ioe);
+            log.error("Could not format log record due to error.", ioe);
+        }
+    }
+
+    /**
+     * Queues a line to be written to a log file, waking the log thread once log.batch.size lines are waiting.  Once the
+     * log thread has been shut down, the lines are written on the calling thread instead.
+     *
+     * @param file Log file to write to
+     * @param text Line to write, including its line separator
+     */
+    private void queue(File file, String text) {
+        pendingLines.add(new LogLine(file, text));
+
+        if (pendingCount.incrementAndGet() == batchSize) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                flush();
+            }
         }
     }
 
+    /**
+     * Creates a JSON record with the fields every record has.
+     *
+     * @param type    Type of record
+     * @param emailId Id of email from PST
+     * @return Returns the record fields, in order
+     */
+    private Map<String, Object> newRecord(String type, Long emailId) {
+        Map<String, Object> record = new LinkedHashMap<>();
+
+        record.put("time", new DateTime().toString());
+        record.put("type", type);
+        record.put("emailId", emailId);
+
+        return record;
+    }
+
+    /**
+     * Gets the sink for a log file, creating it the first time.  Only called while holding the lock on this logger.
+     *
+     * @param file Log file
+     * @return Returns the sink for the log file
+     */
+    private LogSink getSink(File file) {
+        LogSink sink = sinks.get(file);
+
+        if (sink == null) {
+            sink = new LogSink(file);
+            sinks.put(file, sink);
+        }
+
+        return sink;
+    }
+
     /**
      * Helper method to open attachment log file
      *
@@ -79,7 +255,7 @@ public class AttachmentLogger {
      * @return Returns a <code>File</code> for the attachment log
      */
     private File getAttachmentLogFile(String outputPath) {
-        return new File(outputPath + File.separator + "attachments.log");
+        return new File(outputPath + File.separator + (jsonEnabled ? "attachments.jsonl" : "attachments.log"));
     }
 
     /**
@@ -89,6 +265,25 @@ public class AttachmentLogger {
      * @return Returns a <code>File</code> for the error log
      */
     private File getErrorLogFile(String outputPath) {
-        return new File(outputPath + File.separator + "error.log");
+        return new File(outputPath + File.separator + (jsonEnabled ? "error.jsonl" : "error.log"));
+    }
+
+    /**
+     * Line waiting to be written to a log file.
+     */
+    private static class LogLine {
+        private final File file;
+        private final String text;
+
+        /**
+         * Creates a new queued line.
+         *
+         * @param file Log file to write to
+         * @param text Line to write, including its line separator
+         */
+        LogLine(File file, String text) {
+            this.file = file;
+            this.text = text;
+        }
     }
-}
\ No newline at end of file
+}
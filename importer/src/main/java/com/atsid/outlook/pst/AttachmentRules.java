@@ -0,0 +1,170 @@
+package com.atsid.outlook.pst;
+
+import com.pff.PSTAttachment;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.activation.FileTypeMap;
+import javax.annotation.PostConstruct;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decides which attachments are kept in the uploaded message instead of being extracted to disk.  An attachment is
+ * kept when it is no bigger than attachment.keep.max.size and it is either shown inline by the HTML body (when
+ * attachment.keep.inline is set), has a MIME type listed in attachment.keep.mime.types or has an extension listed in
+ * attachment.keep.extensions.  MIME types may end in a wildcard, such as image/*.  A max size of 0 extracts every
+ * attachment.
+ */
+@Component
+public class AttachmentRules {
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+    @Value("${attachment.keep.max.size}")
+    private long maxSize;
+    @Value("${attachment.keep.inline}")
+    private boolean keepInline;
+    @Value("${attachment.keep.mime.types}")
+    private String mimeTypeString;
+    @Value("${attachment.keep.extensions}")
+    private String extensionString;
+    private List<String> mimeTypes;
+    private List<String> extensions;
+
+    /**
+     * Helper method called after string injects properties to populate the lists of MIME types and extensions.
+     */
+    @PostConstruct
+    private void createLists() {
+        mimeTypes = splitList(mimeTypeString);
+        extensions = new ArrayList<>();
+
+        for (String extension : splitList(extensionString)) {
+            extensions.add(extension.startsWith(".") ? extension.substring(1) : extension);
+        }
+    }
+
+    /**
+     * Checks if an attachment should be kept in the uploaded message.  Embedded messages are always extracted.
+     *
+     * @param attachment Attachment to check
+     * @return Returns true if the attachment should be kept, false if it should be extracted
+     */
+    public boolean shouldKeep(PSTAttachment attachment) {
+        if (maxSize <= 0 || attachment.getAttachMethod() == PSTAttachment.ATTACHMENT_METHOD_EMBEDDED) {
+            return false;
+        }
+
+        String fileName = attachment.getLongFilename();
+
+        return shouldKeep(fileName, getMimeType(attachment.getMimeTag(), fileName), attachment.getContentId(),
+                attachment.getSize());
+    }
+
+    /**
+     * Checks if an attachment should be kept in the uploaded message.
+     *
+     * @param fileName  File name of the attachment
+     * @param mimeType  MIME type of the attachment, without parameters
+     * @param contentId Content id of the attachment, or null if it is not inline
+     * @param size      Size of the attachment in bytes
+     * @return Returns true if the attachment should be kept, false if it should be extracted
+     */
+    public boolean shouldKeep(String fileName, String mimeType, String contentId, long size) {
+        if (maxSize <= 0 || size > maxSize) {
+            return false;
+        }
+
+        if (keepInline && contentId != null && !contentId.trim().isEmpty()) {
+            return true;
+        }
+
+        return matchesMimeType(mimeType) || matchesExtension(fileName);
+    }
+
+    /**
+     * Gets the MIME type of an attachment from its MIME tag, falling back to the file name when the tag is missing or
+     * cannot be parsed.
+     *
+     * @param mimeTag  MIME tag stored with the attachment
+     * @param fileName File name of the attachment
+     * @return Returns the MIME type without parameters
+     */
+    public String getMimeType(String mimeTag, String fileName) {
+        if (mimeTag != null && !mimeTag.trim().isEmpty()) {
+            try {
+                return new ContentType(mimeTag.trim()).getBaseType().toLowerCase(Locale.ENGLISH);
+            } catch (ParseException ex) {
+                // Fall back to the file name
+            }
+        }
+
+        if (fileName == null || fileName.isEmpty()) {
+            return DEFAULT_MIME_TYPE;
+        }
+
+        return FileTypeMap.getDefaultFileTypeMap().getContentType(fileName);
+    }
+
+    /**
+     * Checks if a MIME type is in the list of kept MIME types.
+     *
+     * @param mimeType MIME type to check
+     * @return Returns true if the MIME type matches an entry in the list
+     */
+    private boolean matchesMimeType(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+
+        String lowerMimeType = mimeType.toLowerCase(Locale.ENGLISH);
+
+        for (String keptMimeType : mimeTypes) {
+            if (keptMimeType.endsWith("/*") ?
+                lowerMimeType.startsWith(keptMimeType.substring(0, keptMimeType.length() - 1)) :
+                lowerMimeType.equals(keptMimeType)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if the extension of a file name is in the list of kept extensions.
+     *
+     * @param fileName File name to check
+     * @return Returns true if the extension matches an entry in the list
+     */
+    private boolean matchesExtension(String fileName) {
+        if (fileName == null) {
+            return false;
+        }
+
+        int dot = fileName.lastIndexOf('.');
+
+        return dot >= 0 && extensions.contains(fileName.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Splits a comma separated property into a list of trimmed, lower case entries, skipping empty ones.
+     *
+     * @param value Property value to split
+     * @return Returns the list of entries
+     */
+    private List<String> splitList(String value) {
+        List<String> entries = new ArrayList<>();
+
+        if (value != null) {
+            for (String entry : value.split(",")) {
+                if (!entry.trim().isEmpty()) {
+                    entries.add(entry.trim().toLowerCase(Locale.ENGLISH));
+                }
+            }
+        }
+
+        return entries;
+    }
+}
@@ -0,0 +1,143 @@
+package com.atsid.outlook.pst;
+
+import com.atsid.outlook.pst.catalog.AttachmentCatalog;
+import com.atsid.outlook.pst.catalog.CatalogEntry;
+import com.atsid.outlook.pst.io.WrittenAttachment;
+import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Attachments extracted from a message, some of which may still be being written to disk by
+ * <code>AttachmentWriter</code>.  Waiting for them logs each write to the attachment or error log, once, and gives the
+ * list of attachments that actually made it to disk, which is what the summary added to the message lists.  The
+ * attachments written can then be added to the attachment catalog, also once.
+ */
+public class ExtractedAttachments {
+    private final Long emailId;
+    private final String outputPath;
+    private final AttachmentLogger attachmentLogger;
+    private final List<PendingWrite> pendingWrites = new ArrayList<>();
+    private final List<PendingWrite> uncatalogedWrites = new ArrayList<>();
+    private List<String> attachmentsRemoved;
+
+    /**
+     * Creates a new list of attachments being extracted from a message.
+     *
+     * @param emailId          Id of the message in the PST file
+     * @param outputPath       Output folder attachments are placed in
+     * @param attachmentLogger Logger finished writes are reported to
+     */
+    public ExtractedAttachments(Long emailId, String outputPath, AttachmentLogger attachmentLogger) {
+        this.emailId = emailId;
+        this.outputPath = outputPath;
+        this.attachmentLogger = attachmentLogger;
+    }
+
+    /**
+     * Creates a list of attachments that are already on disk.
+     *
+     * @param attachmentsRemoved List of attachments that have been stripped from the message
+     */
+    public ExtractedAttachments(List<String> attachmentsRemoved) {
+        this(null, null, null);
+        this.attachmentsRemoved = Collections.unmodifiableList(
+                attachmentsRemoved == null ? new ArrayList<String>() : new ArrayList<>(attachmentsRemoved));
+    }
+
+    /**
+     * Adds an attachment being written to disk.
+     *
+     * @param fileName    File name of the attachment
+     * @param displayName Display name of the attachment
+     * @param write       Future that completes once the attachment is written
+     */
+    synchronized void add(String fileName, String displayName, Future<WrittenAttachment> write) {
+        pendingWrites.add(new PendingWrite(fileName, displayName, write));
+    }
+
+    /**
+     * Waits for every attachment to be written, logging each one the first time this is called.
+     *
+     * @return Returns the list of attachments written to disk
+     */
+    public synchronized List<String> await() {
+        if (attachmentsRemoved == null) {
+            List<String> written = new ArrayList<>();
+
+            for (PendingWrite pendingWrite : pendingWrites) {
+                try {
+                    pendingWrite.written = Uninterruptibles.getUninterruptibly(pendingWrite.write);
+                    uncatalogedWrites.add(pendingWrite);
+                    attachmentLogger.logAttachmentRemoved(emailId, pendingWrite.fileName, pendingWrite.displayName,
+                            outputPath);
+                    written.add(pendingWrite.written.getLocation());
+                } catch (ExecutionException ex) {
+                    Exception cause = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+
+                    attachmentLogger.logAttachmentError(emailId, pendingWrite.fileName, pendingWrite.displayName,
+                            outputPath, cause);
+                }
+            }
+
+            attachmentsRemoved = Collections.unmodifiableList(written);
+            pendingWrites.clear();
+        }
+
+        return attachmentsRemoved;
+    }
+
+    /**
+     * Waits for every attachment to be written and adds the ones written to the attachment catalog, the first time
+     * this is called.
+     *
+     * @param catalog     Catalog to add the attachments to
+     * @param folderNames List of names of folders leading up to where the message was found
+     * @param date        Delivery time of the message, or null if it has none
+     */
+    public synchronized void catalog(AttachmentCatalog catalog, List<String> folderNames, Date date) {
+        await();
+
+        if (uncatalogedWrites.isEmpty()) {
+            return;
+        }
+
+        String folderPath = Joiner.on('/').join(folderNames);
+
+        for (PendingWrite write : uncatalogedWrites) {
+            catalog.add(outputPath, new CatalogEntry(emailId, write.fileName, write.displayName,
+                    write.written.getSize(), write.written.getHash(), folderPath, date));
+        }
+
+        uncatalogedWrites.clear();
+    }
+
+    /**
+     * Attachment waiting to be written.
+     */
+    private static class PendingWrite {
+        private final String fileName;
+        private final String displayName;
+        private final Future<WrittenAttachment> write;
+        private WrittenAttachment written;
+
+        /**
+         * Creates a new pending write.
+         *
+         * @param fileName    File name of the attachment
+         * @param displayName Display name of the attachment
+         * @param write       Future that completes once the attachment is written
+         */
+        PendingWrite(String fileName, String displayName, Future<WrittenAttachment> write) {
+            this.fileName = fileName;
+            this.displayName = displayName;
+            this.write = write;
+        }
+    }
+}
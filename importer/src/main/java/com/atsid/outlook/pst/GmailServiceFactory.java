@@ -99,7 +99,7 @@ public class GmailServiceFactory {
      * @param emailAddress       Email address of account we are attempting to process
      * @param jsonCredentialFile JSON credential file used to authenticate for specified email address
      */
-    public void addCredentials(String emailAddress, String jsonCredentialFile) {
+    public synchronized void addCredentials(String emailAddress, String jsonCredentialFile) {
         emailCredentialMap.put(emailAddress, jsonCredentialFile);
     }
 
@@ -110,7 +110,7 @@ public class GmailServiceFactory {
      * @return an authorized Gmail client service
      * @throws IOException
      */
-    public Gmail getGmailService(String emailAddress) throws IOException {
+    public synchronized Gmail getGmailService(String emailAddress) throws IOException {
         if (emailCredentialMap.containsKey(emailAddress) && !emailServiceMap.containsKey(emailAddress)) {
             Credential credential = authorize(emailCredentialMap.get(emailAddress));
             Gmail gmailService =
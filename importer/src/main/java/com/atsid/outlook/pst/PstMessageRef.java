@@ -0,0 +1,28 @@
+package com.atsid.outlook.pst;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * Reference to a message in a PST file that has not been loaded yet, along with the folder path used to label it.
+ */
+@Getter
+public class PstMessageRef {
+    private final int descriptorId;
+    private final long dataOffset;
+    private final List<String> folderNames;
+
+    /**
+     * Creates a new message reference.
+     *
+     * @param descriptorId Descriptor id of the message
+     * @param dataOffset   Offset of the message's data block in the PST file, or -1 if it was not looked up
+     * @param folderNames  List of folder names leading up to and including the folder holding the message
+     */
+    public PstMessageRef(int descriptorId, long dataOffset, List<String> folderNames) {
+        this.descriptorId = descriptorId;
+        this.dataOffset = dataOffset;
+        this.folderNames = folderNames;
+    }
+}
@@ -0,0 +1,25 @@
+package com.atsid.outlook.pst;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * A unit of work for the PST readers: a run of messages that are loaded one after another from the same file handle.
+ */
+@Getter
+public class PstMessageSlice {
+    private final int scheduleSize;
+    private final List<PstMessageRef> messages;
+
+    /**
+     * Creates a new message slice.
+     *
+     * @param scheduleSize Size used to schedule slices, biggest first
+     * @param messages     Messages in this slice, in the order they should be read
+     */
+    public PstMessageSlice(int scheduleSize, List<PstMessageRef> messages) {
+        this.scheduleSize = scheduleSize;
+        this.messages = messages;
+    }
+}
@@ -1,14 +1,25 @@
 package com.atsid.outlook.pst;
 
 import com.atsid.outlook.app.ProgressUpdate;
+import com.atsid.outlook.pst.folder.FolderPath;
 import com.atsid.outlook.pst.folder.PstFolderHandler;
 import com.atsid.outlook.pst.folder.PstMessageCleaningGmailImportingFolderHandler;
 import com.atsid.outlook.pst.folder.PstMessageCountingFolderHandler;
+import com.atsid.outlook.pst.io.PstFileFactory;
+import com.atsid.outlook.pst.journal.ImportJournal;
 import com.atsid.outlook.pst.message.PstMessageHandler;
+import com.atsid.outlook.pst.pipeline.BlockingExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.pff.PSTException;
 import com.pff.PSTFile;
 import com.pff.PSTFolder;
+import com.pff.PSTMessage;
+import com.pff.PSTObject;
+import com.pff.PstFileAccess;
 import lombok.Setter;
+import lombok.extern.log4j.Log4j;
+import org.apache.commons.io.IOUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
@@ -18,17 +29,35 @@ import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Parses Microsoft Outlook PST files.
  */
 @Component
+@Log4j
 public class PstParser implements ApplicationContextAware {
+    private static final String READER_ORDER_OFFSET = "offset";
     @Setter
     private ApplicationContext applicationContext;
+    @Autowired
+    private PstFileFactory pstFileFactory;
+    @Autowired
+    private ImportJournal journal;
     @Value("${ignored.folders}")
     private String ignoredFolderString;
+    @Value("${pst.reader.threads}")
+    private int readerThreads;
+    @Value("${pst.reader.slice.size}")
+    private int sliceSize;
+    @Value("${pst.reader.order}")
+    private String readerOrder;
     private List<String> ignoredFolders;
 
     /**
@@ -53,17 +82,31 @@ public class PstParser implements ApplicationContextAware {
      * @throws PSTException
      */
     public int countEmails(String pstFileName) throws IOException, PSTException {
+        return countEmails(openPstFile(pstFileName));
+    }
+
+    /**
+     * Counts the number of items in an already open PST file from each folder's content count, ignoring folders listed
+     * in ignored.folders property.  Only folder entries are read, not the messages themselves.
+     *
+     * @param pstFile PST file to count messages in
+     * @return Returns the number of items in the specified PST file
+     * @throws IOException
+     * @throws PSTException
+     */
+    private int countEmails(PSTFile pstFile) throws IOException, PSTException {
         PstMessageCountingFolderHandler folderHandler = getCountingHandler();
-        PSTFile pstFile = openPstFile(pstFileName);
 
-        processPstFolder(pstFile.getRootFolder(), folderHandler, Boolean.TRUE, new ArrayList<String>());
+        processPstFolder(pstFile.getRootFolder(), folderHandler, Boolean.TRUE, FolderPath.ROOT);
 
         return folderHandler.getMessageCount();
     }
 
     /**
      * Processes the PST file and executes the messageHandler for each message encountered ignoring folders listed in
-     * ignored.folders property..
+     * ignored.folders property..  Messages the import journal for this PST file says were already uploaded are skipped,
+     * so an import that was stopped part way through resumes where it left off.  The total reported to progressUpdate
+     * is estimated from the same open file and refined as non-message items are skipped.
      *
      * @param pstFileName    Full file path to the PST file to process
      * @param emailAddress   Email address of user who this PST file belongs to
@@ -77,52 +120,313 @@ public class PstParser implements ApplicationContextAware {
                            ProgressUpdate progressUpdate) throws IOException, PSTException {
         PstMessageCleaningGmailImportingFolderHandler folderHandler = getProcessingHandler();
         PSTFile pstFile = openPstFile(pstFileName);
+        List<PSTFile> handles = new ArrayList<>(Arrays.asList(pstFile));
 
         folderHandler.setEmailAddress(emailAddress);
         folderHandler.setOutputPath(outputPath);
         folderHandler.setMessageHandler(messageHandler);
         folderHandler.setProgressUpdate(progressUpdate);
+        journal.open(pstFileName, emailAddress, outputPath);
+
+        try {
+            messageHandler.prepareFolders(collectFolderPaths(pstFile), emailAddress);
+
+            if (readerThreads > 1 || READER_ORDER_OFFSET.equals(readerOrder)) {
+                processPstSlices(pstFileName, pstFile, handles, folderHandler, progressUpdate);
+            } else {
+                reportEstimate(countEmails(pstFile), folderHandler, progressUpdate);
+                processPstFolder(pstFile.getRootFolder(), folderHandler, Boolean.TRUE, FolderPath.ROOT);
+            }
+        } finally {
+            try {
+                messageHandler.finishProcessing();
+            } finally {
+                journal.close();
 
-        processPstFolder(pstFile.getRootFolder(), folderHandler, Boolean.TRUE, new ArrayList<String>());
+                // Handles stay open until the message handler is done, as its workers and retries still read messages
+                for (PSTFile handle : handles) {
+                    IOUtils.closeQuietly(handle.getFileHandle());
+                }
+            }
+        }
     }
 
     /**
-     * Helper method used to recursively process folders in the PST file ignoring folders identified in ignored.folders
-     * property.
+     * Processes the PST file from a list of message slices collected up front.  With more than one reader thread,
+     * slices are handed to a pool of readers; java-libpst's <code>PSTFile</code> is not thread-safe, so each reader
+     * borrows its own handle on the file.
      *
-     * @param folder        PST Folder to process
-     * @param folderHandler Handler to be called to process each folder
-     * @param rootFolder    Root folder in the PST file
-     * @param folderNames   List of folder names leading up to the current folder that acts as a path to this folder
+     * @param pstFileName    Full file path to the PST file to process
+     * @param pstFile        Handle already opened on the PST file
+     * @param openHandles    List every extra handle opened is added to so the caller can close it
+     * @param folderHandler  Handler used to process each message
+     * @param progressUpdate Progress update handler to report the number of collected messages to
+     * @throws IOException
      * @throws PSTException
+     */
+    private void processPstSlices(String pstFileName, PSTFile pstFile, List<PSTFile> openHandles,
+                                  final PstMessageCleaningGmailImportingFolderHandler folderHandler,
+                                  ProgressUpdate progressUpdate) throws IOException, PSTException {
+        List<PstMessageSlice> slices = collectMessageSlices(pstFile);
+        int total = 0;
+
+        for (PstMessageSlice slice : slices) {
+            total += slice.getMessages().size();
+        }
+
+        reportEstimate(total, folderHandler, progressUpdate);
+
+        if (readerThreads <= 1) {
+            for (PstMessageSlice slice : slices) {
+                processMessageSlice(slice, pstFile, folderHandler);
+            }
+
+            return;
+        }
+
+        final BlockingQueue<PSTFile> handles = new ArrayBlockingQueue<>(readerThreads);
+        ExecutorService readers = Executors.newFixedThreadPool(readerThreads,
+                new ThreadFactoryBuilder().setNameFormat("pst-reader-%d").setDaemon(true).build());
+
+        handles.add(pstFile);
+
+        try {
+            for (int i = 1; i < readerThreads; ++i) {
+                PSTFile handle = openPstFile(pstFileName);
+
+                openHandles.add(handle);
+                handles.add(handle);
+            }
+
+            for (final PstMessageSlice slice : slices) {
+                readers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        processMessageSlice(slice, handles, folderHandler);
+                    }
+                });
+            }
+        } finally {
+            BlockingExecutors.drain(readers);
+        }
+    }
+
+    /**
+     * Walks the folder tree and cuts the messages that would be processed into slices of at most pst.reader.slice.size
+     * messages.  In folder order, each folder is sliced separately and slices are sorted so the biggest folders come
+     * first.  In offset order, every message is looked up in the offset index first and slices are cut from the whole
+     * file sorted by where each message's data lives on disk, so reads move through the file instead of seeking back
+     * and forth.
+     *
+     * @param pstFile PST file to walk
+     * @return Returns the list of message slices to process
      * @throws IOException
+     * @throws PSTException
      */
-    private void processPstFolder(PSTFolder folder, PstFolderHandler folderHandler, Boolean rootFolder,
-                                  List<String> folderNames) throws PSTException, IOException {
-        if (folder.hasSubfolders() && folderIsNotIgnored(folder)) {
-            if (!ignoreFolderLabel(folder)) {
-                folderNames.add(folder.getDisplayName());
+    private List<PstMessageSlice> collectMessageSlices(final PSTFile pstFile) throws IOException, PSTException {
+        final boolean offsetOrder = READER_ORDER_OFFSET.equals(readerOrder);
+        final List<PstMessageSlice> slices = new ArrayList<>();
+        final List<PstMessageRef> allMessages = new ArrayList<>();
+
+        processPstFolder(pstFile.getRootFolder(), new PstFolderHandler() {
+            @Override
+            public void processPstFolder(PSTFolder folder, Boolean rootFolder, List<String> folderNames) {
+                if (folder.getContentCount() > 0) {
+                    List<String> folderPath = FolderPath.of(folderNames);
+                    List<PstMessageRef> messages = new ArrayList<>();
+
+                    try {
+                        for (Integer descriptorId : folder.getChildDescriptorNodes()) {
+                            long dataOffset = offsetOrder ? getDataOffset(pstFile, descriptorId) : -1;
+
+                            messages.add(new PstMessageRef(descriptorId, dataOffset, folderPath));
+                        }
+                    } catch (Exception ex) {
+                        log.error(String.format("Caught exception while listing folder %s", folder.getDisplayName()),
+                                ex);
+                    }
+
+                    if (offsetOrder) {
+                        allMessages.addAll(messages);
+                    } else {
+                        addSlices(slices, messages, messages.size());
+                    }
+                }
             }
+        }, Boolean.TRUE, FolderPath.ROOT);
+
+        if (offsetOrder) {
+            Collections.sort(allMessages, new Comparator<PstMessageRef>() {
+                @Override
+                public int compare(PstMessageRef message1, PstMessageRef message2) {
+                    return Long.compare(message1.getDataOffset(), message2.getDataOffset());
+                }
+            });
+            addSlices(slices, allMessages, sliceSize);
+        } else {
+            Collections.sort(slices, new Comparator<PstMessageSlice>() {
+                @Override
+                public int compare(PstMessageSlice slice1, PstMessageSlice slice2) {
+                    return Integer.compare(slice2.getScheduleSize(), slice1.getScheduleSize());
+                }
+            });
+        }
+
+        return slices;
+    }
+
+    /**
+     * Walks the folder tree and lists the path of every folder that holds items, so labels can be set up for all of
+     * them before any message is imported.
+     *
+     * @param pstFile PST file to walk
+     * @return Returns the list of folder paths, each a list of folder names
+     * @throws IOException
+     * @throws PSTException
+     */
+    private List<List<String>> collectFolderPaths(PSTFile pstFile) throws IOException, PSTException {
+        final List<List<String>> folderPaths = new ArrayList<>();
 
-            for (PSTFolder childFolder : folder.getSubFolders()) {
-                processPstFolder(childFolder, folderHandler, Boolean.FALSE, folderNames);
+        processPstFolder(pstFile.getRootFolder(), new PstFolderHandler() {
+            @Override
+            public void processPstFolder(PSTFolder folder, Boolean rootFolder, List<String> folderNames) {
+                if (folder.getContentCount() > 0) {
+                    folderPaths.add(FolderPath.of(folderNames));
+                }
             }
+        }, Boolean.TRUE, FolderPath.ROOT);
+
+        return folderPaths;
+    }
+
+    /**
+     * Reports the estimated number of items to be processed and hands it to the folder handler to refine.
+     *
+     * @param total          Estimated number of items
+     * @param folderHandler  Handler that refines the estimate as it skips non-message items
+     * @param progressUpdate Progress update handler to report the estimate to
+     */
+    private void reportEstimate(int total, PstMessageCleaningGmailImportingFolderHandler folderHandler,
+                                ProgressUpdate progressUpdate) {
+        log.info(String.format("Found %d emails", total));
+        folderHandler.setEstimatedTotal(total);
+        progressUpdate.updateTotal(total);
+    }
+
+    /**
+     * Cuts a list of messages into slices of at most pst.reader.slice.size messages.
+     *
+     * @param slices       List to add the new slices to
+     * @param messages     Messages to slice up
+     * @param scheduleSize Size used to schedule the new slices
+     */
+    private void addSlices(List<PstMessageSlice> slices, List<PstMessageRef> messages, int scheduleSize) {
+        for (int i = 0; i < messages.size(); i += sliceSize) {
+            List<PstMessageRef> sliceMessages = messages.subList(i, Math.min(i + sliceSize, messages.size()));
+
+            slices.add(new PstMessageSlice(scheduleSize, sliceMessages));
+        }
+    }
+
+    /**
+     * Looks up where a message's data block lives in the PST file.  Messages that cannot be looked up sort last.
+     *
+     * @param pstFile      PST file the message lives in
+     * @param descriptorId Descriptor id of the message
+     * @return Returns the file offset of the message's data block
+     */
+    private long getDataOffset(PSTFile pstFile, int descriptorId) {
+        try {
+            return PstFileAccess.getDataOffset(pstFile, descriptorId);
+        } catch (Exception ex) {
+            log.warn(String.format("Could not find data offset for message %d", descriptorId), ex);
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Reader task that borrows a PST file handle from the pool and processes a slice with it.
+     *
+     * @param slice         Slice of messages to read
+     * @param handles       Pool of PST file handles to borrow from
+     * @param folderHandler Handler used to process each message
+     */
+    private void processMessageSlice(PstMessageSlice slice, BlockingQueue<PSTFile> handles,
+                                     PstMessageCleaningGmailImportingFolderHandler folderHandler) {
+        PSTFile handle;
 
-            folderHandler.processPstFolder(folder, rootFolder, folderNames);
+        try {
+            handle = handles.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return;
+        }
 
-            if (!ignoreFolderLabel(folder)) {
-                folderNames.remove(folder.getDisplayName());
+        try {
+            processMessageSlice(slice, handle, folderHandler);
+        } finally {
+            handles.add(handle);
+        }
+    }
+
+    /**
+     * Loads every message in a slice from a PST file handle and passes it to the folder handler.  Messages already
+     * uploaded are skipped before they are loaded.  Each load holds the handle's read lock, as retries of messages
+     * loaded from this handle read through it from other threads; the folder handler takes the lock itself for the
+     * reads it does, so it is not held while the pipeline may be waiting for room in a stage.
+     *
+     * @param slice         Slice of messages to read
+     * @param handle        PST file handle to read with
+     * @param folderHandler Handler used to process each message
+     */
+    private void processMessageSlice(PstMessageSlice slice, PSTFile handle,
+                                     PstMessageCleaningGmailImportingFolderHandler folderHandler) {
+        for (PstMessageRef messageRef : slice.getMessages()) {
+            if (journal.isUploaded(messageRef.getDescriptorId())) {
+                folderHandler.skipMessage();
+                continue;
             }
-        } else if (folderIsNotIgnored(folder)) {
-            if (!ignoreFolderLabel(folder)) {
-                folderNames.add(folder.getDisplayName());
+
+            try {
+                PSTObject child;
+
+                synchronized (handle) {
+                    child = PSTObject.detectAndLoadPSTObject(handle, messageRef.getDescriptorId());
+                }
+
+                if (child instanceof PSTMessage) {
+                    folderHandler.processMessage(messageRef.getFolderNames(), (PSTMessage) child);
+                }
+            } catch (Exception ex) {
+                log.error(String.format("Caught exception while loading message %d", messageRef.getDescriptorId()),
+                        ex);
             }
+        }
+    }
 
-            folderHandler.processPstFolder(folder, rootFolder, folderNames);
+    /**
+     * Helper method used to recursively process folders in the PST file ignoring folders identified in ignored.folders
+     * property.
+     *
+     * @param folder        PST Folder to process
+     * @param folderHandler Handler to be called to process each folder
+     * @param rootFolder    Root folder in the PST file
+     * @param parentPath    Path of the folder holding this one
+     * @throws PSTException
+     * @throws IOException
+     */
+    private void processPstFolder(PSTFolder folder, PstFolderHandler folderHandler, Boolean rootFolder,
+                                  FolderPath parentPath) throws PSTException, IOException {
+        if (folderIsNotIgnored(folder)) {
+            FolderPath folderPath = ignoreFolderLabel(folder) ? parentPath : parentPath.child(folder.getDisplayName());
 
-            if (!ignoreFolderLabel(folder)) {
-                folderNames.remove(folder.getDisplayName());
+            if (folder.hasSubfolders()) {
+                for (PSTFolder childFolder : folder.getSubFolders()) {
+                    processPstFolder(childFolder, folderHandler, Boolean.FALSE, folderPath);
+                }
             }
+
+            folderHandler.processPstFolder(folder, rootFolder, folderPath);
         }
     }
 
@@ -175,6 +479,6 @@ public class PstParser implements ApplicationContextAware {
      * @throws PSTException
      */
     private PSTFile openPstFile(String pstFile) throws IOException, PSTException {
-        return new PSTFile(pstFile);
+        return pstFileFactory.openPstFile(pstFile);
     }
 }
\ No newline at end of file
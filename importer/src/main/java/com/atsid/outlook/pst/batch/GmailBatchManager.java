@@ -0,0 +1,290 @@
+package com.atsid.outlook.pst.batch;
+
+import com.atsid.outlook.pst.pipeline.BlockingExecutors;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects GMail import requests into one batch per mailbox and sends full batches on a background executor while the
+ * next batch fills.  A batch is sent once it reaches the mailbox's current batch size, import.batch.max.bytes of raw
+ * message payload, or has been waiting import.batch.linger.ms since its first message.  Whatever is left is sent by
+ * <code>flushAll</code>, which is called at the end of each run and when the application shuts down.  Batch size, the
+ * number of batches in flight and the send rate for each mailbox come from the <code>ImportRateController</code>.
+ */
+@Component
+@Log4j
+public class GmailBatchManager {
+    @Autowired
+    private ImportRateController rateController;
+    @Value("${import.batch.max.bytes}")
+    private long maxBatchBytes;
+    @Value("${import.batch.linger.ms}")
+    private long lingerTime;
+    @Value("${import.batch.flush.threads}")
+    private int flushThreads;
+    @Value("${import.batch.connect.timeout}")
+    private int connectTimeout;
+    @Value("${import.batch.read.timeout}")
+    private int readTimeout;
+    private final Map<String, PendingBatch> pendingBatches = new HashMap<>();
+    private ExecutorService flushExecutor;
+    private ScheduledExecutorService lingerTimer;
+    private int batchesInFlight;
+
+    /**
+     * Helper method called after spring injects properties to create the flush executor and linger timer.
+     */
+    @PostConstruct
+    private void createExecutors() {
+        flushExecutor = BlockingExecutors.newBoundedPool("batch-flush", flushThreads, flushThreads);
+        lingerTimer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("batch-linger-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Adds an import request to the current batch for a mailbox, sending the batch if it is now full.  Blocks while
+     * import.batch.flush.threads batches are already being sent and the next one is waiting.
+     *
+     * @param emailAddress Email address for account we are importing into
+     * @param gmailService GMail service client for the account
+     * @param gmailMessage Converted message to send
+     * @param callback     Callback told about the result for this message
+     * @throws IOException
+     */
+    public void queue(final String emailAddress, Gmail gmailService, Message gmailMessage,
+                      final JsonBatchCallback<Message> callback) throws IOException {
+        PendingBatch fullBatch = null;
+
+        synchronized (this) {
+            PendingBatch pendingBatch = pendingBatches.get(emailAddress);
+
+            if (pendingBatch == null) {
+                final PendingBatch newBatch = new PendingBatch(emailAddress, getBatch(gmailService));
+
+                pendingBatch = newBatch;
+                pendingBatches.put(emailAddress, newBatch);
+                lingerTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushIfPending(emailAddress, newBatch);
+                    }
+                }, lingerTime, TimeUnit.MILLISECONDS);
+            }
+
+            final PendingBatch currentBatch = pendingBatch;
+
+            gmailService.users().messages().gmailImport(emailAddress, gmailMessage)
+                        .queue(currentBatch.getRequest(), new JsonBatchCallback<Message>() {
+                            @Override
+                            public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) throws IOException {
+                                if (ImportRateController.isRateLimited(e)) {
+                                    currentBatch.markThrottled();
+                                }
+
+                                callback.onFailure(e, responseHeaders);
+                            }
+
+                            @Override
+                            public void onSuccess(Message message, HttpHeaders responseHeaders) throws IOException {
+                                callback.onSuccess(message, responseHeaders);
+                            }
+                        });
+            currentBatch.add(callback, gmailMessage.getRaw() == null ? 0 : gmailMessage.getRaw().length());
+
+            if (currentBatch.getRequest().size() >= rateController.getBatchSize(emailAddress) ||
+                currentBatch.getBytes() >= maxBatchBytes) {
+                fullBatch = takePending(emailAddress);
+            }
+        }
+
+        if (fullBatch != null) {
+            flush(fullBatch);
+        }
+    }
+
+    /**
+     * Checks if any mailbox has a batch that has not been sent yet.
+     *
+     * @return Returns true if a batch is pending, false otherwise
+     */
+    public synchronized boolean hasPendingBatches() {
+        return !pendingBatches.isEmpty();
+    }
+
+    /**
+     * Sends every pending batch and waits until all batches in flight have completed.
+     */
+    public void flushAll() {
+        List<PendingBatch> batches;
+
+        synchronized (this) {
+            batches = new ArrayList<>(pendingBatches.values());
+            batchesInFlight += batches.size();
+            pendingBatches.clear();
+        }
+
+        for (PendingBatch pendingBatch : batches) {
+            flush(pendingBatch);
+        }
+
+        synchronized (this) {
+            while (batchesInFlight > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    log.error("Interrupted while waiting for batches to send");
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends anything still pending and stops the background threads when the application shuts down.
+     */
+    @PreDestroy
+    public void shutdown() {
+        flushAll();
+        lingerTimer.shutdownNow();
+        BlockingExecutors.drain(flushExecutor);
+    }
+
+    /**
+     * Linger timer task.  Sends a batch if it is still the one pending for the mailbox, i.e. it did not fill up first.
+     *
+     * @param emailAddress Email address the batch belongs to
+     * @param batch        Batch the timer was started for
+     */
+    private void flushIfPending(String emailAddress, PendingBatch batch) {
+        PendingBatch lingeringBatch = null;
+
+        synchronized (this) {
+            if (pendingBatches.get(emailAddress) == batch) {
+                lingeringBatch = takePending(emailAddress);
+            }
+        }
+
+        if (lingeringBatch != null) {
+            flush(lingeringBatch);
+        }
+    }
+
+    /**
+     * Removes the pending batch for a mailbox and counts it as in flight.  Must be called holding this object's lock.
+     *
+     * @param emailAddress Email address the batch belongs to
+     * @return Returns the batch that was pending
+     */
+    private PendingBatch takePending(String emailAddress) {
+        ++batchesInFlight;
+
+        return pendingBatches.remove(emailAddress);
+    }
+
+    /**
+     * Hands a batch to the flush executor, or sends it on the calling thread if the executor has been shut down.
+     *
+     * @param pendingBatch Batch to send
+     */
+    private void flush(final PendingBatch pendingBatch) {
+        try {
+            flushExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    send(pendingBatch);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            send(pendingBatch);
+        }
+    }
+
+    /**
+     * Flush executor task.  Waits for the rate controller to allow the batch, sends it and reports how it went.  If the
+     * whole request fails, the failure is reported to every message in it.
+     *
+     * @param pendingBatch Batch to send
+     */
+    private void send(PendingBatch pendingBatch) {
+        String emailAddress = pendingBatch.getEmailAddress();
+        boolean acquired = false;
+        long startTime = 0;
+
+        try {
+            rateController.acquire(emailAddress, pendingBatch.getCallbacks().size());
+            acquired = true;
+            startTime = System.currentTimeMillis();
+            pendingBatch.getRequest().execute();
+        } catch (IOException ioe) {
+            if (ImportRateController.isRateLimited(ioe)) {
+                pendingBatch.markThrottled();
+            }
+
+            log.error(String.format("Caught exception while sending batch of %d messages",
+                    pendingBatch.getCallbacks().size()), ioe);
+
+            GoogleJsonError error = new GoogleJsonError();
+
+            error.setMessage(ioe.getMessage());
+
+            for (JsonBatchCallback<Message> callback : pendingBatch.getCallbacks()) {
+                try {
+                    callback.onFailure(error, new HttpHeaders());
+                } catch (IOException callbackEx) {
+                    log.error("Caught exception while reporting batch failure", callbackEx);
+                }
+            }
+        } finally {
+            if (acquired) {
+                rateController.release(emailAddress, System.currentTimeMillis() - startTime,
+                        pendingBatch.isThrottled());
+            }
+
+            synchronized (this) {
+                --batchesInFlight;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Gets a new batch request from the GMail service client.
+     *
+     * @param gmailService GMail service client
+     * @return Returns a new batch request with connect and read timeouts set appropriately
+     */
+    private BatchRequest getBatch(Gmail gmailService) {
+        return gmailService.batch(new HttpRequestInitializer() {
+            @Override
+            public void initialize(HttpRequest httpRequest) throws IOException {
+                httpRequest.setConnectTimeout(connectTimeout);
+                httpRequest.setReadTimeout(readTimeout);
+            }
+        });
+    }
+}
@@ -0,0 +1,146 @@
+package com.atsid.outlook.pst.batch;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Additive increase / multiplicative decrease controller for GMail imports.  Keeps a batch size, a limit on batches in
+ * flight and a send rate for each mailbox.  Every request that comes back quickly grows them a step; a request slower
+ * than import.rate.latency.target.ms lets one fewer batch fly; a 429 or 403 rate limit response halves all three.
+ */
+@Component
+@Log4j
+public class ImportRateController {
+    private static final List<String> RATE_LIMIT_REASONS = Arrays.asList("rateLimitExceeded", "userRateLimitExceeded");
+    @Value("${import.batch.size}")
+    private int maxBatchSize;
+    @Value("${import.rate.max.in.flight}")
+    private int maxInFlight;
+    @Value("${import.rate.initial.per.second}")
+    private double initialRate;
+    @Value("${import.rate.min.per.second}")
+    private double minRate;
+    @Value("${import.rate.max.per.second}")
+    private double maxRate;
+    @Value("${import.rate.increase.per.second}")
+    private double rateIncrease;
+    @Value("${import.rate.latency.target.ms}")
+    private long latencyTarget;
+    private final Map<String, MailboxRate> mailboxRates = new HashMap<>();
+
+    /**
+     * Gets the number of messages a batch for a mailbox should hold right now.
+     *
+     * @param emailAddress Email address of the mailbox
+     * @return Returns the current batch size
+     */
+    public int getBatchSize(String emailAddress) {
+        return getMailboxRate(emailAddress).getBatchSize();
+    }
+
+    /**
+     * Waits until a request carrying the given number of messages may be sent to a mailbox.  Every call must be
+     * followed by a call to <code>release</code> once the request completes.
+     *
+     * @param emailAddress Email address of the mailbox
+     * @param messages     Number of messages in the request
+     * @throws InterruptedIOException Thrown if interrupted while waiting
+     */
+    public void acquire(String emailAddress, int messages) throws InterruptedIOException {
+        getMailboxRate(emailAddress).acquire(messages);
+    }
+
+    /**
+     * Reports how a request to a mailbox went and adjusts its limits.
+     *
+     * @param emailAddress Email address of the mailbox
+     * @param latency      Time in ms the request took
+     * @param throttled    True if GMail rate limited any part of the request
+     */
+    public void release(String emailAddress, long latency, boolean throttled) {
+        MailboxRate mailboxRate = getMailboxRate(emailAddress);
+
+        if (throttled) {
+            mailboxRate.onThrottled();
+            log.info(String.format("Rate limited importing into %s, backing off to batch size %d, %d in flight, %.1f/s",
+                    emailAddress, mailboxRate.getBatchSize(), mailboxRate.getInFlightLimit(), mailboxRate.getRate()));
+        } else if (latency > latencyTarget) {
+            mailboxRate.onSlow();
+            log.debug(String.format("Slow import request for %s took %d ms", emailAddress, latency));
+        } else {
+            mailboxRate.onSuccess();
+        }
+    }
+
+    /**
+     * Checks if a batch part failed because GMail is rate limiting the mailbox.
+     *
+     * @param error Error returned for the batch part
+     * @return Returns true if the error is a rate limit error, false otherwise
+     */
+    public static boolean isRateLimited(GoogleJsonError error) {
+        if (error == null) {
+            return false;
+        }
+
+        if (error.getCode() == 429) {
+            return true;
+        }
+
+        if (error.getCode() == 403 && error.getErrors() != null) {
+            for (GoogleJsonError.ErrorInfo errorInfo : error.getErrors()) {
+                if (RATE_LIMIT_REASONS.contains(errorInfo.getReason())) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if a request failed because GMail is rate limiting the mailbox.
+     *
+     * @param ex Exception thrown by the request
+     * @return Returns true if the exception is a rate limit error, false otherwise
+     */
+    public static boolean isRateLimited(IOException ex) {
+        if (ex instanceof GoogleJsonResponseException) {
+            GoogleJsonError details = ((GoogleJsonResponseException) ex).getDetails();
+
+            if (details != null) {
+                return isRateLimited(details);
+            }
+        }
+
+        return ex instanceof HttpResponseException && ((HttpResponseException) ex).getStatusCode() == 429;
+    }
+
+    /**
+     * Gets the rate state for a mailbox, creating it the first time the mailbox is seen.
+     *
+     * @param emailAddress Email address of the mailbox
+     * @return Returns the rate state for the mailbox
+     */
+    private synchronized MailboxRate getMailboxRate(String emailAddress) {
+        MailboxRate mailboxRate = mailboxRates.get(emailAddress);
+
+        if (mailboxRate == null) {
+            mailboxRate = new MailboxRate(maxBatchSize, maxInFlight, initialRate, minRate, maxRate, rateIncrease);
+            mailboxRates.put(emailAddress, mailboxRate);
+        }
+
+        return mailboxRate;
+    }
+}
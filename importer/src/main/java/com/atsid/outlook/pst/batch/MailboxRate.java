@@ -0,0 +1,129 @@
+package com.atsid.outlook.pst.batch;
+
+import lombok.Getter;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Current batch size, in-flight batch limit and send rate for one mailbox.  Grows each of them a step at a time while
+ * requests succeed and cuts them in half when GMail starts throttling.
+ */
+class MailboxRate {
+    private final int maxBatchSize;
+    private final int maxInFlight;
+    private final double minRate;
+    private final double maxRate;
+    private final double rateIncrease;
+    @Getter
+    private int batchSize;
+    @Getter
+    private int inFlightLimit = 1;
+    @Getter
+    private double rate;
+    private int inFlight;
+    private long nextSendTime;
+
+    /**
+     * Creates the rate state for a new mailbox, starting at the full batch size, one batch in flight and the initial
+     * rate.
+     *
+     * @param maxBatchSize Largest batch size allowed
+     * @param maxInFlight  Largest number of batches allowed in flight
+     * @param initialRate  Messages per second to start at
+     * @param minRate      Lowest messages per second to drop to
+     * @param maxRate      Highest messages per second to climb to
+     * @param rateIncrease Messages per second added after each successful request
+     */
+    MailboxRate(int maxBatchSize, int maxInFlight, double initialRate, double minRate, double maxRate,
+                double rateIncrease) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxInFlight = maxInFlight;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.rateIncrease = rateIncrease;
+        this.batchSize = maxBatchSize;
+        this.rate = initialRate;
+    }
+
+    /**
+     * Waits for an in-flight slot and for the send rate to allow a request carrying the given number of messages.
+     *
+     * @param messages Number of messages in the request
+     * @throws InterruptedIOException Thrown if interrupted while waiting
+     */
+    void acquire(int messages) throws InterruptedIOException {
+        long delay;
+
+        synchronized (this) {
+            while (inFlight >= inFlightLimit) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for an in-flight slot");
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            long sendTime = Math.max(now, nextSendTime);
+
+            ++inFlight;
+            nextSendTime = sendTime + (long) (messages * 1000 / rate);
+            delay = sendTime - now;
+        }
+
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                release();
+                throw new InterruptedIOException("Interrupted while waiting to send");
+            }
+        }
+    }
+
+    /**
+     * Frees the in-flight slot and grows the limits a step after a request that was neither throttled nor slow.
+     */
+    synchronized void onSuccess() {
+        release();
+
+        if (batchSize < maxBatchSize) {
+            ++batchSize;
+        } else if (inFlightLimit < maxInFlight) {
+            ++inFlightLimit;
+        }
+
+        rate = Math.min(maxRate, rate + rateIncrease);
+    }
+
+    /**
+     * Frees the in-flight slot after a request that succeeded but took longer than the latency target.  Limits are held
+     * where they are and one fewer batch is allowed in flight.
+     */
+    synchronized void onSlow() {
+        release();
+        inFlightLimit = Math.max(1, inFlightLimit - 1);
+    }
+
+    /**
+     * Frees the in-flight slot after GMail throttled a request, halving the batch size, in-flight limit and rate and
+     * holding off the next request for one interval at the new rate.
+     */
+    synchronized void onThrottled() {
+        release();
+        batchSize = Math.max(1, batchSize / 2);
+        inFlightLimit = Math.max(1, inFlightLimit / 2);
+        rate = Math.max(minRate, rate / 2);
+        nextSendTime = Math.max(nextSendTime, System.currentTimeMillis() + (long) (batchSize * 1000 / rate));
+    }
+
+    /**
+     * Frees an in-flight slot and wakes up anyone waiting for one.
+     */
+    private synchronized void release() {
+        --inFlight;
+        notifyAll();
+    }
+}
@@ -0,0 +1,51 @@
+package com.atsid.outlook.pst.batch;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.services.gmail.model.Message;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch request for one mailbox that is still being filled, along with the callbacks and payload size of the
+ * messages queued on it so far.
+ */
+@Getter
+class PendingBatch {
+    private final String emailAddress;
+    private final BatchRequest request;
+    private final List<JsonBatchCallback<Message>> callbacks = new ArrayList<>();
+    private long bytes;
+    private volatile boolean throttled;
+
+    /**
+     * Creates a new pending batch.
+     *
+     * @param emailAddress Email address of the mailbox the batch imports into
+     * @param request      Batch request messages are queued on
+     */
+    PendingBatch(String emailAddress, BatchRequest request) {
+        this.emailAddress = emailAddress;
+        this.request = request;
+    }
+
+    /**
+     * Records a message that was queued on the batch request.
+     *
+     * @param callback     Callback for the message
+     * @param messageBytes Size of the message's raw payload
+     */
+    void add(JsonBatchCallback<Message> callback, long messageBytes) {
+        callbacks.add(callback);
+        bytes += messageBytes;
+    }
+
+    /**
+     * Records that GMail rate limited at least part of the batch.
+     */
+    void markThrottled() {
+        throttled = true;
+    }
+}
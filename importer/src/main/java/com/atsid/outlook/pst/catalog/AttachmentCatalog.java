@@ -0,0 +1,99 @@
+package com.atsid.outlook.pst.catalog;
+
+import com.atsid.outlook.pst.io.LogSink;
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the attachment catalog, outputPath/attachment-catalog.tsv, as attachments are extracted.  Each line is a
+ * <code>CatalogEntry</code> recording which message an attachment came from, its size, hash, folder and date, so
+ * <code>CatalogIndex</code> can look attachments up without scanning attachments.log.  The catalog is kept open for the
+ * whole run and flushed before each message is recorded as extracted in the import journal, as a resumed import does
+ * not extract that message again.  Its index files are rebuilt once processing finishes.  Nothing is written unless
+ * attachment.catalog.enable is set.
+ */
+@Component
+@Log4j
+public class AttachmentCatalog {
+    public static final String CATALOG_FILE = "attachment-catalog.tsv";
+    @Value("${attachment.catalog.enable}")
+    private boolean enabled;
+    private final Map<String, LogSink> sinks = new HashMap<>();
+
+    /**
+     * Adds an attachment to the catalog of an output folder.
+     *
+     * @param outputPath Output folder the attachment was extracted to
+     * @param entry      Catalog entry for the attachment
+     */
+    public synchronized void add(String outputPath, CatalogEntry entry) {
+        if (!enabled) {
+            return;
+        }
+
+        LogSink sink = sinks.get(outputPath);
+
+        if (sink == null) {
+            sink = new LogSink(new File(outputPath, CATALOG_FILE));
+            sinks.put(outputPath, sink);
+        }
+
+        try {
+            sink.write(entry.toLine() + System.lineSeparator());
+        } catch (IOException ioe) {
+            log.error("Could not add attachment to the attachment catalog due to error.", ioe);
+        }
+    }
+
+    /**
+     * Writes every catalog entry added so far to disk.  Called before a message is recorded as extracted.
+     */
+    public synchronized void flush() {
+        for (Map.Entry<String, LogSink> entry : sinks.entrySet()) {
+            try {
+                entry.getValue().flush();
+            } catch (IOException ioe) {
+                log.error("Could not flush attachment catalog in " + entry.getKey() + " due to error.", ioe);
+            }
+        }
+    }
+
+    /**
+     * Writes every catalog entry to disk and rebuilds the index files of every catalog written to, so lookups do not
+     * have to rebuild them.  Called once processing finishes.
+     */
+    public synchronized void finish() {
+        flush();
+
+        for (String outputPath : sinks.keySet()) {
+            try {
+                CatalogIndex.build(outputPath);
+            } catch (IOException ioe) {
+                log.error("Could not build attachment catalog index in " + outputPath + " due to error.", ioe);
+            }
+        }
+    }
+
+    /**
+     * Closes the catalogs when the application shuts down.
+     */
+    @PreDestroy
+    public synchronized void shutdown() {
+        for (Map.Entry<String, LogSink> entry : sinks.entrySet()) {
+            try {
+                entry.getValue().close();
+            } catch (IOException ioe) {
+                log.error("Could not close attachment catalog in " + entry.getKey() + " due to error.", ioe);
+            }
+        }
+
+        sinks.clear();
+    }
+}
@@ -0,0 +1,145 @@
+package com.atsid.outlook.pst.catalog;
+
+import lombok.Getter;
+import org.joda.time.DateTime;
+
+import java.util.Date;
+
+/**
+ * One extracted attachment in the attachment catalog.  Entries are stored one per line as tab separated fields, with
+ * tabs, line breaks and backslashes in the text fields escaped.
+ */
+@Getter
+public class CatalogEntry {
+    private static final int FIELD_COUNT = 7;
+    private final long emailId;
+    private final String fileName;
+    private final String displayName;
+    private final long size;
+    private final String hash;
+    private final String folderPath;
+    private final Date date;
+
+    /**
+     * Creates a new catalog entry.
+     *
+     * @param emailId     Descriptor node id of the message the attachment was extracted from
+     * @param fileName    File name of the attachment
+     * @param displayName Display name of the attachment
+     * @param size        Size of the attachment in bytes
+     * @param hash        SHA-256 of the attachment in hex, or null if it was not hashed
+     * @param folderPath  Path of the folder the message was found in, folder names separated by /
+     * @param date        Delivery time of the message, or null if it has none
+     */
+    public CatalogEntry(long emailId, String fileName, String displayName, long size, String hash, String folderPath,
+                        Date date) {
+        this.emailId = emailId;
+        this.fileName = fileName;
+        this.displayName = displayName;
+        this.size = size;
+        this.hash = hash;
+        this.folderPath = folderPath;
+        this.date = date == null ? null : new Date(date.getTime());
+    }
+
+    /**
+     * Parses an entry from a catalog line.
+     *
+     * @param line Catalog line, without its line separator
+     * @return Returns the entry, or null if the line is not a catalog entry
+     */
+    public static CatalogEntry parse(String line) {
+        String[] fields = line.split("\t", -1);
+
+        if (fields.length != FIELD_COUNT) {
+            return null;
+        }
+
+        try {
+            return new CatalogEntry(Long.parseLong(fields[0]), unescape(fields[1]), unescape(fields[2]),
+                    Long.parseLong(fields[3]), fields[4].isEmpty() ? null : fields[4], unescape(fields[5]),
+                    fields[6].isEmpty() ? null : DateTime.parse(fields[6]).toDate());
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Formats the entry as a catalog line.
+     *
+     * @return Returns the catalog line, without a line separator
+     */
+    public String toLine() {
+        return emailId + "\t" + escape(fileName) + "\t" + escape(displayName) + "\t" + size + "\t" +
+               (hash == null ? "" : hash) + "\t" + escape(folderPath) + "\t" +
+               (date == null ? "" : new DateTime(date).toString());
+    }
+
+    /**
+     * Gets the delivery time of the message.
+     *
+     * @return Returns a copy of the delivery time, or null if the message has none
+     */
+    public Date getDate() {
+        return date == null ? null : new Date(date.getTime());
+    }
+
+    @Override
+    public String toString() {
+        return toLine();
+    }
+
+    /**
+     * Escapes the characters that separate fields and lines.
+     *
+     * @param text Text to escape, may be null
+     * @return Returns the escaped text, or an empty string for null
+     */
+    private static String escape(String text) {
+        if (text == null) {
+            return "";
+        }
+
+        return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\r", "\\r").replace("\n", "\\n");
+    }
+
+    /**
+     * Reverses <code>escape</code>.
+     *
+     * @param text Escaped text
+     * @return Returns the original text
+     */
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+
+        StringBuilder builder = new StringBuilder(text.length());
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+
+                switch (next) {
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    default:
+                        builder.append(next);
+                }
+            } else {
+                builder.append(c);
+            }
+        }
+
+        return builder.toString();
+    }
+}
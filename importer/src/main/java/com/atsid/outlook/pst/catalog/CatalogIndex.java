@@ -0,0 +1,303 @@
+package com.atsid.outlook.pst.catalog;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Read side of the attachment catalog.  Lookups by message id, file name and hash go through sorted index files kept
+ * next to outputPath/attachment-catalog.tsv, so each one is a binary search over the index and a seek per match into
+ * the catalog, and the catalog is never read into memory.  The index files record how much of the catalog they cover
+ * and are rebuilt when the catalog has grown since, either by <code>AttachmentCatalog</code> once an import finishes
+ * or on the next lookup.  File names are indexed case insensitively in sorted order so they can be looked up by
+ * prefix.
+ */
+public class CatalogIndex implements Closeable {
+    public static final String ID_INDEX_FILE = "attachment-catalog-id.idx";
+    public static final String NAME_INDEX_FILE = "attachment-catalog-name.idx";
+    public static final String HASH_INDEX_FILE = "attachment-catalog-hash.idx";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final RandomAccessFile catalog;
+    private final KeyIndexFile byEmailId;
+    private final KeyIndexFile byFileName;
+    private final KeyIndexFile byHash;
+
+    /**
+     * Creates an index over opened index files.
+     *
+     * @param catalog    Catalog file, or null if there is no catalog
+     * @param byEmailId  Index by message id, or null if there is no catalog
+     * @param byFileName Index by file name, or null if there is no catalog
+     * @param byHash     Index by hash, or null if there is no catalog
+     */
+    private CatalogIndex(RandomAccessFile catalog, KeyIndexFile byEmailId, KeyIndexFile byFileName,
+                         KeyIndexFile byHash) {
+        this.catalog = catalog;
+        this.byEmailId = byEmailId;
+        this.byFileName = byFileName;
+        this.byHash = byHash;
+    }
+
+    /**
+     * Opens the catalog of an output folder for lookups, first rebuilding its index files if the catalog has grown
+     * since they were built.
+     *
+     * @param outputPath Output folder attachments were extracted to
+     * @return Returns the opened index, which is empty if the folder has no catalog
+     * @throws IOException
+     */
+    public static CatalogIndex open(String outputPath) throws IOException {
+        File catalogFile = new File(outputPath, AttachmentCatalog.CATALOG_FILE);
+
+        if (!catalogFile.exists()) {
+            return new CatalogIndex(null, null, null, null);
+        }
+
+        if (!isCurrent(outputPath)) {
+            build(outputPath);
+        }
+
+        List<Closeable> opened = new ArrayList<>();
+
+        try {
+            RandomAccessFile catalog = open(opened, new RandomAccessFile(catalogFile, "r"));
+            KeyIndexFile byEmailId = open(opened, new KeyIndexFile(new File(outputPath, ID_INDEX_FILE)));
+            KeyIndexFile byFileName = open(opened, new KeyIndexFile(new File(outputPath, NAME_INDEX_FILE)));
+            KeyIndexFile byHash = open(opened, new KeyIndexFile(new File(outputPath, HASH_INDEX_FILE)));
+
+            return new CatalogIndex(catalog, byEmailId, byFileName, byHash);
+        } catch (IOException ex) {
+            for (Closeable closeable : opened) {
+                IOUtils.closeQuietly(closeable);
+            }
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Checks if the index files of an output folder cover the whole catalog.
+     *
+     * @param outputPath Output folder attachments were extracted to
+     * @return Returns true if every index file was built from the catalog as it is now
+     */
+    public static boolean isCurrent(String outputPath) {
+        long catalogLength = new File(outputPath, AttachmentCatalog.CATALOG_FILE).length();
+
+        return KeyIndexFile.readCatalogLength(new File(outputPath, ID_INDEX_FILE)) == catalogLength &&
+               KeyIndexFile.readCatalogLength(new File(outputPath, NAME_INDEX_FILE)) == catalogLength &&
+               KeyIndexFile.readCatalogLength(new File(outputPath, HASH_INDEX_FILE)) == catalogLength;
+    }
+
+    /**
+     * Builds the index files of an output folder from its catalog in one pass.  Lines are indexed by their byte offset
+     * in the catalog; a last line without a line break, left by an interrupted run, is not indexed.
+     *
+     * @param outputPath Output folder attachments were extracted to
+     * @throws IOException
+     */
+    public static void build(String outputPath) throws IOException {
+        File catalogFile = new File(outputPath, AttachmentCatalog.CATALOG_FILE);
+
+        try (InputStream input = new BufferedInputStream(new FileInputStream(catalogFile), BUFFER_SIZE);
+             KeyIndexFile.Builder byEmailId = new KeyIndexFile.Builder(new File(outputPath, ID_INDEX_FILE));
+             KeyIndexFile.Builder byFileName = new KeyIndexFile.Builder(new File(outputPath, NAME_INDEX_FILE));
+             KeyIndexFile.Builder byHash = new KeyIndexFile.Builder(new File(outputPath, HASH_INDEX_FILE))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long lineStart = 0;
+            long position = 0;
+            int b;
+
+            while ((b = input.read()) >= 0) {
+                position++;
+
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+
+                CatalogEntry entry = CatalogEntry.parse(decode(line));
+
+                if (entry != null) {
+                    byEmailId.add(emailIdKey(entry.getEmailId()), lineStart);
+                    byFileName.add(normalize(entry.getFileName()), lineStart);
+
+                    if (entry.getHash() != null) {
+                        byHash.add(normalize(entry.getHash()), lineStart);
+                    }
+                }
+
+                line.reset();
+                lineStart = position;
+            }
+
+            byEmailId.finish(position);
+            byFileName.finish(position);
+            byHash.finish(position);
+        }
+    }
+
+    /**
+     * Finds every attachment extracted from a message.
+     *
+     * @param emailId Descriptor node id of the message
+     * @return Returns the attachments of the message, in the order they were extracted
+     * @throws IOException
+     */
+    public List<CatalogEntry> findByEmailId(long emailId) throws IOException {
+        return byEmailId == null ? Collections.<CatalogEntry>emptyList()
+                                 : readEntries(byEmailId.find(emailIdKey(emailId), false));
+    }
+
+    /**
+     * Finds every attachment whose file name starts with a prefix, ignoring case.
+     *
+     * @param prefix File name prefix
+     * @return Returns the matching attachments, sorted by file name
+     * @throws IOException
+     */
+    public List<CatalogEntry> findByFileNamePrefix(String prefix) throws IOException {
+        return byFileName == null ? Collections.<CatalogEntry>emptyList()
+                                  : readEntries(byFileName.find(normalize(prefix), true));
+    }
+
+    /**
+     * Finds every attachment with the given content.
+     *
+     * @param hash SHA-256 of the attachment in hex
+     * @return Returns the attachments with that hash
+     * @throws IOException
+     */
+    public List<CatalogEntry> findByHash(String hash) throws IOException {
+        return byHash == null ? Collections.<CatalogEntry>emptyList()
+                              : readEntries(byHash.find(normalize(hash), false));
+    }
+
+    /**
+     * Gets the number of entries in the index.
+     *
+     * @return Returns the number of entries
+     */
+    public long size() {
+        return byEmailId == null ? 0 : byEmailId.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.closeQuietly(byEmailId);
+        IOUtils.closeQuietly(byFileName);
+        IOUtils.closeQuietly(byHash);
+        IOUtils.closeQuietly(catalog);
+    }
+
+    /**
+     * Reads the catalog entries at the given offsets.
+     *
+     * @param offsets Byte offsets of the catalog lines
+     * @return Returns an unmodifiable list of the entries
+     * @throws IOException
+     */
+    private synchronized List<CatalogEntry> readEntries(List<Long> offsets) throws IOException {
+        List<CatalogEntry> entries = new ArrayList<>(offsets.size());
+
+        for (long offset : offsets) {
+            CatalogEntry entry = CatalogEntry.parse(readLine(offset));
+
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Reads the catalog line starting at an offset.
+     *
+     * @param offset Byte offset of the line
+     * @return Returns the line without its line separator
+     * @throws IOException
+     */
+    private String readLine(long offset) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+
+        catalog.seek(offset);
+
+        while ((read = catalog.read(buffer)) > 0) {
+            int end = 0;
+
+            while (end < read && buffer[end] != '\n') {
+                end++;
+            }
+
+            line.write(buffer, 0, end);
+
+            if (end < read) {
+                break;
+            }
+        }
+
+        return decode(line);
+    }
+
+    /**
+     * Adds a file opened for the index to the list to close if opening the rest fails.
+     *
+     * @param opened    Files opened so far
+     * @param closeable File just opened
+     * @param <T>       Type of file
+     * @return Returns the file
+     */
+    private static <T extends Closeable> T open(List<Closeable> opened, T closeable) {
+        opened.add(closeable);
+
+        return closeable;
+    }
+
+    /**
+     * Decodes a catalog line, dropping the carriage return of a Windows line separator.
+     *
+     * @param line Bytes of the line without its line feed
+     * @return Returns the line
+     */
+    private static String decode(ByteArrayOutputStream line) {
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * Builds the index key of a message id.  Ids are written as fixed width hex with the sign bit flipped, so the
+     * keys sort in the same order as the ids.
+     *
+     * @param emailId Descriptor node id of the message
+     * @return Returns the index key
+     */
+    private static String emailIdKey(long emailId) {
+        return String.format("%016x", emailId ^ Long.MIN_VALUE);
+    }
+
+    /**
+     * Normalizes a key so lookups ignore case.
+     *
+     * @param key Key to normalize
+     * @return Returns the lower case key
+     */
+    private static String normalize(String key) {
+        return key == null ? "" : key.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,457 @@
+package com.atsid.outlook.pst.catalog;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorted file of keys and the catalog offsets of the lines they belong to, looked up by binary search with a few seeks
+ * instead of being read into memory.  The file starts with the length of the catalog it covers and the number of
+ * records, followed by a table of the position of each record, so record i can be found with one seek, followed by the
+ * records themselves in key order: UTF-8 key length, key and catalog offset.  Records with the same key are in catalog
+ * order.
+ */
+class KeyIndexFile implements Closeable {
+    private static final int HEADER_SIZE = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final RandomAccessFile file;
+    private final long size;
+
+    /**
+     * Opens an index file for lookups.
+     *
+     * @param indexFile Index file to open
+     * @throws IOException
+     */
+    KeyIndexFile(File indexFile) throws IOException {
+        file = new RandomAccessFile(indexFile, "r");
+
+        try {
+            // Skips the catalog length, which only matters when deciding whether to rebuild
+            file.readLong();
+            size = file.readLong();
+        } catch (IOException ex) {
+            IOUtils.closeQuietly(file);
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads the length of the catalog an index file covers without opening it for lookups.
+     *
+     * @param indexFile Index file to read
+     * @return Returns the catalog length, or -1 if the index file is missing or unreadable
+     */
+    static long readCatalogLength(File indexFile) {
+        if (!indexFile.exists()) {
+            return -1;
+        }
+
+        try (DataInputStream input = new DataInputStream(new FileInputStream(indexFile))) {
+            return input.readLong();
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Gets the number of records in the index.
+     *
+     * @return Returns the number of records
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Finds the catalog offsets of every record with a key, or whose key starts with a prefix.
+     *
+     * @param key    Key or key prefix to look for
+     * @param prefix True to match keys starting with the key, false to match only the key itself
+     * @return Returns the catalog offsets of the matching records, in key order
+     * @throws IOException
+     */
+    synchronized List<Long> find(String key, boolean prefix) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        long low = 0;
+        long high = size;
+
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+
+            if (readKey(middle).compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        for (long i = low; i < size; i++) {
+            String recordKey = readKey(i);
+
+            if (prefix ? !recordKey.startsWith(key) : !recordKey.equals(key)) {
+                break;
+            }
+
+            offsets.add(file.readLong());
+        }
+
+        return offsets;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Reads the key of a record, leaving the file positioned at its catalog offset.
+     *
+     * @param index Number of the record
+     * @return Returns the key of the record
+     * @throws IOException
+     */
+    private String readKey(long index) throws IOException {
+        file.seek(HEADER_SIZE + index * 8);
+        file.seek(file.readLong());
+
+        byte[] key = new byte[file.readInt()];
+
+        file.readFully(key);
+
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds an index file from keys added in any order.  Keys are sorted in runs of a bounded size that are spilled to
+     * temp files and merged at the end, so building an index of a large catalog does not need it all in memory.  The
+     * index file is written under a temp name and moved into place, so lookups never see a partly written index.
+     */
+    static class Builder implements Closeable {
+        private static final int RUN_SIZE = 100000;
+        private final File indexFile;
+        private final int runSize;
+        private final List<Record> run = new ArrayList<>();
+        private final List<File> runFiles = new ArrayList<>();
+        private long size;
+
+        /**
+         * Creates a builder for an index file.
+         *
+         * @param indexFile Index file to build
+         */
+        Builder(File indexFile) {
+            this(indexFile, RUN_SIZE);
+        }
+
+        /**
+         * Creates a builder for an index file that sorts keys in runs of a given size.
+         *
+         * @param indexFile Index file to build
+         * @param runSize   Number of keys sorted in memory before they are spilled to a run file
+         */
+        Builder(File indexFile, int runSize) {
+            this.indexFile = indexFile;
+            this.runSize = runSize;
+        }
+
+        /**
+         * Adds a key to the index.
+         *
+         * @param key    Key to add
+         * @param offset Catalog offset of the line the key belongs to
+         * @throws IOException
+         */
+        void add(String key, long offset) throws IOException {
+            run.add(new Record(key, offset));
+            size++;
+
+            if (run.size() >= runSize) {
+                spillRun();
+            }
+        }
+
+        /**
+         * Sorts every key added and writes the index file.
+         *
+         * @param catalogLength Length of the catalog the index covers
+         * @throws IOException
+         */
+        void finish(long catalogLength) throws IOException {
+            File positionsFile = new File(indexFile.getPath() + ".positions");
+            File recordsFile = new File(indexFile.getPath() + ".records");
+            File tempFile = new File(indexFile.getPath() + ".tmp");
+
+            if (!runFiles.isEmpty()) {
+                spillRun();
+            }
+
+            try {
+                // Records start after the header and position table, whose size is known from the number of records
+                long position = HEADER_SIZE + size * 8;
+
+                try (DataOutputStream positions = newOutput(positionsFile);
+                     DataOutputStream records = newOutput(recordsFile);
+                     MergedRecords merged = new MergedRecords(run, runFiles)) {
+                    Record record;
+
+                    while ((record = merged.next()) != null) {
+                        positions.writeLong(position);
+                        position += writeRecord(records, record);
+                    }
+                }
+
+                try (DataOutputStream output = newOutput(tempFile)) {
+                    output.writeLong(catalogLength);
+                    output.writeLong(size);
+                    Files.copy(positionsFile.toPath(), output);
+                    Files.copy(recordsFile.toPath(), output);
+                }
+
+                Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(positionsFile.toPath());
+                Files.deleteIfExists(recordsFile.toPath());
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        }
+
+        @Override
+        public void close() {
+            for (File runFile : runFiles) {
+                runFile.delete();
+            }
+
+            runFiles.clear();
+            run.clear();
+        }
+
+        /**
+         * Sorts the keys added since the last spill and writes them to a temp run file.
+         *
+         * @throws IOException
+         */
+        private void spillRun() throws IOException {
+            File runFile = new File(indexFile.getPath() + ".run" + runFiles.size());
+
+            Collections.sort(run);
+            runFiles.add(runFile);
+
+            try (DataOutputStream output = newOutput(runFile)) {
+                for (Record record : run) {
+                    writeRecord(output, record);
+                }
+            }
+
+            run.clear();
+        }
+    }
+
+    /**
+     * Opens a buffered output file.
+     *
+     * @param file File to write
+     * @return Returns the output stream
+     * @throws IOException
+     */
+    private static DataOutputStream newOutput(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    /**
+     * Writes a record as its UTF-8 key length, key and catalog offset.
+     *
+     * @param output Stream to write to
+     * @param record Record to write
+     * @return Returns the number of bytes written
+     * @throws IOException
+     */
+    private static int writeRecord(DataOutputStream output, Record record) throws IOException {
+        byte[] key = record.key.getBytes(StandardCharsets.UTF_8);
+
+        output.writeInt(key.length);
+        output.write(key);
+        output.writeLong(record.offset);
+
+        return 4 + key.length + 8;
+    }
+
+    /**
+     * Reads a record written by <code>writeRecord</code>.
+     *
+     * @param input Stream to read from
+     * @return Returns the record
+     * @throws IOException
+     */
+    private static Record readRecord(DataInput input) throws IOException {
+        byte[] key = new byte[input.readInt()];
+
+        input.readFully(key);
+
+        return new Record(new String(key, StandardCharsets.UTF_8), input.readLong());
+    }
+
+    /**
+     * Merges sorted runs back into one sorted sequence of records: the run files spilled to disk, or the keys still in
+     * memory if nothing was spilled.
+     */
+    private static class MergedRecords implements Closeable {
+        private final PriorityQueue<RunReader> readers = new PriorityQueue<>();
+        private final List<Record> memoryRun;
+        private int memoryIndex;
+
+        /**
+         * Opens the runs to merge.
+         *
+         * @param memoryRun Keys still in memory, used only when there are no run files
+         * @param runFiles  Sorted run files
+         * @throws IOException
+         */
+        MergedRecords(List<Record> memoryRun, List<File> runFiles) throws IOException {
+            this.memoryRun = runFiles.isEmpty() ? memoryRun : Collections.<Record>emptyList();
+            Collections.sort(this.memoryRun);
+
+            try {
+                for (File runFile : runFiles) {
+                    RunReader reader = new RunReader(runFile);
+
+                    if (reader.advance()) {
+                        readers.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+            } catch (IOException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Gets the next record in key order.
+         *
+         * @return Returns the next record, or null once every record has been returned
+         * @throws IOException
+         */
+        Record next() throws IOException {
+            if (memoryIndex < memoryRun.size()) {
+                return memoryRun.get(memoryIndex++);
+            }
+
+            RunReader reader = readers.poll();
+
+            if (reader == null) {
+                return null;
+            }
+
+            Record record = reader.current;
+
+            if (reader.advance()) {
+                readers.add(reader);
+            } else {
+                reader.close();
+            }
+
+            return record;
+        }
+
+        @Override
+        public void close() {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+
+            readers.clear();
+        }
+    }
+
+    /**
+     * Reads the records of a run file one at a time.
+     */
+    private static class RunReader implements Comparable<RunReader> {
+        private final DataInputStream input;
+        private Record current;
+
+        /**
+         * Opens a run file.
+         *
+         * @param runFile Run file to read
+         * @throws IOException
+         */
+        RunReader(File runFile) throws IOException {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), BUFFER_SIZE));
+        }
+
+        /**
+         * Reads the next record of the run.
+         *
+         * @return Returns false once the run is used up
+         * @throws IOException
+         */
+        boolean advance() throws IOException {
+            try {
+                current = readRecord(input);
+                return true;
+            } catch (EOFException eof) {
+                current = null;
+                return false;
+            }
+        }
+
+        /**
+         * Closes the run file.
+         */
+        void close() {
+            IOUtils.closeQuietly(input);
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            return current.compareTo(other.current);
+        }
+    }
+
+    /**
+     * Key and the catalog offset of the line it belongs to, ordered by key and then offset.
+     */
+    private static class Record implements Comparable<Record> {
+        private final String key;
+        private final long offset;
+
+        /**
+         * Creates a new record.
+         *
+         * @param key    Key of the record
+         * @param offset Catalog offset of the line the key belongs to
+         */
+        Record(String key, long offset) {
+            this.key = key;
+            this.offset = offset;
+        }
+
+        @Override
+        public int compareTo(Record other) {
+            int compare = key.compareTo(other.key);
+
+            return compare != 0 ? compare : Long.compare(offset, other.offset);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.atsid.outlook.pst.folder;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable list of names of folders leading up to a folder in a PST file.  Paths are interned: there is only ever one
+ * <code>FolderPath</code> for a given list of names, created the first time <code>child</code> or <code>of</code>
+ * reaches it, so every message in a folder shares the same path and anything keyed by it is found with a cached hash
+ * and an identity check instead of comparing every name.  Being a <code>List</code>, a path can be passed anywhere a
+ * list of folder names is expected.
+ */
+public final class FolderPath extends AbstractList<String> {
+    /**
+     * Path of the root of the folder tree, which has no names.
+     */
+    public static final FolderPath ROOT = new FolderPath(new String[0], 1);
+    private final String[] names;
+    private final int hash;
+    private final ConcurrentMap<String, FolderPath> children = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new path.
+     *
+     * @param names Names of the folders leading up to the folder
+     * @param hash  List hash code of the names
+     */
+    private FolderPath(String[] names, int hash) {
+        this.names = names;
+        this.hash = hash;
+    }
+
+    /**
+     * Gets the interned path for a list of folder names.
+     *
+     * @param folderNames List of names of folders leading up to a folder
+     * @return Returns the path, which is the list itself if it is already a <code>FolderPath</code>
+     */
+    public static FolderPath of(List<String> folderNames) {
+        if (folderNames instanceof FolderPath) {
+            return (FolderPath) folderNames;
+        }
+
+        FolderPath path = ROOT;
+
+        for (String folderName : folderNames) {
+            path = path.child(folderName);
+        }
+
+        return path;
+    }
+
+    /**
+     * Gets the interned path of a folder inside this one.
+     *
+     * @param folderName Name of the folder, null is taken as an empty name
+     * @return Returns the path of the folder
+     */
+    public FolderPath child(String folderName) {
+        String name = folderName == null ? "" : folderName;
+        FolderPath child = children.get(name);
+
+        if (child == null) {
+            String[] childNames = Arrays.copyOf(names, names.length + 1);
+
+            childNames[names.length] = name;
+
+            FolderPath newChild = new FolderPath(childNames, 31 * hash + name.hashCode());
+
+            child = children.putIfAbsent(name, newChild);
+
+            if (child == null) {
+                child = newChild;
+            }
+        }
+
+        return child;
+    }
+
+    @Override
+    public String get(int index) {
+        return names[index];
+    }
+
+    @Override
+    public int size() {
+        return names.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other == this) {
+            return true;
+        } else if (other instanceof FolderPath) {
+            // Interned, so two different paths never have the same names
+            return false;
+        }
+
+        return super.equals(other);
+    }
+}
@@ -1,14 +1,17 @@
 package com.atsid.outlook.pst.folder;
 
 import com.atsid.outlook.app.ProgressUpdate;
+import com.atsid.outlook.pst.journal.ImportJournal;
 import com.atsid.outlook.pst.message.PstMessageHandler;
 import com.pff.PSTAppointment;
 import com.pff.PSTContact;
 import com.pff.PSTFolder;
 import com.pff.PSTMessage;
+import com.pff.PstFileAccess;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
@@ -33,6 +36,10 @@ public class PstMessageCleaningGmailImportingFolderHandler implements PstFolderH
     private PstMessageHandler messageHandler;
     @Setter
     int count = 0;
+    @Setter
+    private int estimatedTotal = 0;
+    @Autowired
+    private ImportJournal journal;
 
     @Override
     public void processPstFolder(PSTFolder folder, Boolean rootFolder, List<String> folderNames) {
@@ -49,26 +56,65 @@ public class PstMessageCleaningGmailImportingFolderHandler implements PstFolderH
 
     /**
      * Processes an individual message.  If any errors are encountered during import an error is logged and import continues.
+     * Messages the import journal says were already uploaded are skipped.  Safe to call from multiple reader threads.
      *
      * @param folderNames List of folder names where this message resides
      * @param message     Message to be imported
      */
-    private void processMessage(List<String> folderNames, PSTMessage message) {
+    public void processMessage(List<String> folderNames, PSTMessage message) {
         if (PSTContact.class.isAssignableFrom(message.getClass()) ||
             PSTAppointment.class.isAssignableFrom(message.getClass())) {
             System.out.println("Found non-message item " + message.getClass().toString());
+            discountEstimate();
+        } else if (journal.isUploaded(message.getDescriptorNodeId())) {
+            skipMessage();
         } else {
-            count++;
+            int progress;
+
+            synchronized (this) {
+                progress = ++count;
+            }
+
             try {
                 messageHandler.processEmailMessage(message, outputPath, folderNames, emailAddress);
             } catch (RuntimeException re) {
                 log.error(String.format("Caught runtime exception while processing message %d for %s",
                         message.getDescriptorNodeId(), emailAddress), re);
             }
-            progressUpdate.updateProgress(count);
+            progressUpdate.updateProgress(progress);
         }
     }
 
+    /**
+     * Counts a message that was already uploaded by an earlier run towards progress without importing it again.
+     */
+    public void skipMessage() {
+        int progress;
+
+        synchronized (this) {
+            progress = ++count;
+        }
+
+        progressUpdate.updateProgress(progress);
+    }
+
+    /**
+     * Takes a non-message item out of the estimated total, if there is one, and reports the refined total.
+     */
+    private void discountEstimate() {
+        int total;
+
+        synchronized (this) {
+            if (estimatedTotal <= 0) {
+                return;
+            }
+
+            total = --estimatedTotal;
+        }
+
+        progressUpdate.updateTotal(total);
+    }
+
     /**
      * Gets the next folder message entry from the folder.
      *
@@ -77,7 +123,9 @@ public class PstMessageCleaningGmailImportingFolderHandler implements PstFolderH
      */
     private PSTMessage getNextEmail(PSTFolder folder) {
         try {
-            return (PSTMessage) folder.getNextChild();
+            synchronized (PstFileAccess.getReadLock(folder)) {
+                return (PSTMessage) folder.getNextChild();
+            }
         } catch (Exception ex) {
             log.error(String.format("Caught exception while processing folder %s", folder.getDisplayName()), ex);
             return null;
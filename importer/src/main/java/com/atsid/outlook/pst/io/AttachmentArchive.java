@@ -0,0 +1,214 @@
+package com.atsid.outlook.pst.io;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Rolling set of zip segments that extracted attachments are appended to, instead of writing one file per attachment
+ * in one directory per message.  Attachments are added to outputPath/attachments-NNNNN.zip as emailId/fileName, and a
+ * new segment is started once the current one reaches the segment size.  Each attachment added is recorded in
+ * outputPath/attachment-archive.log with the segment and offset of its local zip header, so any attachment can be
+ * found without reading the segments, including a segment left without its central directory by an interrupted run.
+ * The archive log is kept open and only guaranteed to be on disk once the archive has been flushed or closed.
+ * Segments from earlier runs are never appended to; a new run starts a new segment.
+ */
+public class AttachmentArchive {
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("attachments-(\\d+)\\.zip");
+    private static final String SEGMENT_NAME = "attachments-%05d.zip";
+    private static final String INDEX_FILE = "attachment-archive.log";
+    private static final String INDEX_LINE = "%d\t%s\t%s\t%d%n";
+    private static final String LOCATION = "%s: %s";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private final String outputPath;
+    private final long segmentSize;
+    private final Map<String, String> archivedEntries = new HashMap<>();
+    private final Set<String> segmentEntries = new HashSet<>();
+    private final byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+    private final LogSink indexSink;
+    private int segmentNumber;
+    private String segmentName;
+    private CountingOutputStream segmentOutput;
+    private ZipOutputStream zipOutput;
+
+    /**
+     * Opens the archive in an output folder, reading the index left by earlier runs.
+     *
+     * @param outputPath  Output folder attachments are placed in
+     * @param segmentSize Size in bytes after which a new segment is started
+     * @throws IOException
+     */
+    public AttachmentArchive(String outputPath, long segmentSize) throws IOException {
+        this.outputPath = outputPath;
+        this.segmentSize = segmentSize;
+
+        File[] files = new File(outputPath).listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SEGMENT_PATTERN.matcher(file.getName());
+
+                if (matcher.matches()) {
+                    segmentNumber = Math.max(segmentNumber, Integer.parseInt(matcher.group(1)));
+                }
+            }
+        }
+
+        File index = new File(outputPath, INDEX_FILE);
+
+        if (index.exists()) {
+            for (String line : FileUtils.readLines(index, "UTF-8")) {
+                String[] fields = line.split("\t");
+
+                if (fields.length == 4) {
+                    archivedEntries.put(fields[0] + "/" + fields[1], fields[2]);
+                }
+            }
+        }
+
+        indexSink = new LogSink(index);
+    }
+
+    /**
+     * Checks if an attachment has been added to the archive by this run or an earlier one.
+     *
+     * @param emailId  Id of the message the attachment belongs to
+     * @param fileName File name of the attachment
+     * @return Returns true if the attachment is in the archive
+     */
+    public synchronized boolean contains(Long emailId, String fileName) {
+        return archivedEntries.containsKey(emailId + "/" + fileName);
+    }
+
+    /**
+     * Gets where an attachment is in the archive, as listed in the summary added to its message.
+     *
+     * @param emailId  Id of the message the attachment belongs to
+     * @param fileName File name of the attachment
+     * @return Returns the segment name and entry name of the attachment, or null if it is not in the archive
+     */
+    public synchronized String getLocation(Long emailId, String fileName) {
+        String entryName = emailId + "/" + fileName;
+        String segment = archivedEntries.get(entryName);
+
+        return segment == null ? null : String.format(LOCATION, segment, entryName);
+    }
+
+    /**
+     * Adds an attachment to the current segment, starting a new one first if the current one is full or already has
+     * an entry with the same name.
+     *
+     * @param emailId  Id of the message the attachment belongs to
+     * @param fileName File name of the attachment
+     * @param buffers  Buffers holding the start of the attachment, in order
+     * @param input    Rest of the attachment, or null if the buffers hold all of it
+     * @return Returns the segment the attachment was added to
+     * @throws IOException
+     */
+    public synchronized File add(Long emailId, String fileName, List<ByteBuffer> buffers, ReadableByteChannel input)
+            throws IOException {
+        String entryName = emailId + "/" + fileName;
+
+        if (zipOutput == null || segmentOutput.getByteCount() >= segmentSize || segmentEntries.contains(entryName)) {
+            startSegment();
+        }
+
+        long offset = segmentOutput.getByteCount();
+
+        zipOutput.putNextEntry(new ZipEntry(entryName));
+
+        for (ByteBuffer buffer : buffers) {
+            ByteBuffer content = buffer.duplicate();
+
+            content.flip();
+
+            while (content.hasRemaining()) {
+                int length = Math.min(content.remaining(), copyBuffer.length);
+
+                content.get(copyBuffer, 0, length);
+                zipOutput.write(copyBuffer, 0, length);
+            }
+        }
+
+        if (input != null) {
+            ByteBuffer chunk = ByteBuffer.wrap(copyBuffer);
+            int read;
+
+            while ((read = input.read(chunk)) >= 0) {
+                zipOutput.write(copyBuffer, 0, read);
+                chunk.clear();
+            }
+        }
+
+        zipOutput.closeEntry();
+        zipOutput.flush();
+        segmentEntries.add(entryName);
+        archivedEntries.put(entryName, segmentName);
+        indexSink.write(String.format(INDEX_LINE, emailId, fileName, segmentName, offset));
+
+        return new File(outputPath, segmentName);
+    }
+
+    /**
+     * Writes the lines added to the archive log so far to disk.  Every attachment added is already in its segment.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        indexSink.flush();
+    }
+
+    /**
+     * Finishes the current segment, writing its central directory, and closes the archive log.  The next attachment
+     * added starts a new segment.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        indexSink.close();
+
+        if (zipOutput != null) {
+            try {
+                zipOutput.finish();
+            } finally {
+                IOUtils.closeQuietly(zipOutput);
+                zipOutput = null;
+                segmentOutput = null;
+                segmentEntries.clear();
+            }
+        }
+    }
+
+    /**
+     * Finishes the current segment, if any, and starts the next one.
+     *
+     * @throws IOException
+     */
+    private void startSegment() throws IOException {
+        close();
+        FileUtils.forceMkdir(new File(outputPath));
+
+        segmentName = String.format(SEGMENT_NAME, ++segmentNumber);
+        segmentOutput = new CountingOutputStream(
+                new BufferedOutputStream(new FileOutputStream(new File(outputPath, segmentName)), COPY_BUFFER_SIZE));
+        zipOutput = new ZipOutputStream(segmentOutput);
+        zipOutput.setLevel(Deflater.BEST_SPEED);
+    }
+}
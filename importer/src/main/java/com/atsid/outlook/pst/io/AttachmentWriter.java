@@ -0,0 +1,660 @@
+package com.atsid.outlook.pst.io;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes extracted attachments to disk through NIO <code>FileChannel</code>s on a pool of attachment.writer.threads
+ * writer threads, so disk writes overlap with reading the PST file instead of holding it up.  An attachment is read
+ * into direct buffers on the calling thread, which has to hold the PST file lock to read it, and written out on a
+ * writer thread.  The attachment.writer.buffers buffers of attachment.writer.buffer.size bytes are shared by every
+ * write, so callers wait for earlier writes to finish once all of them are in use.  Only the first buffer of an
+ * attachment is waited for: an attachment that would take more than half of the buffers, or needs another buffer when
+ * none is free, is written on the calling thread with the buffers it already holds.  A caller therefore never waits
+ * while holding buffers, so readers cannot deadlock each other by each holding part of the pool.  Directories already
+ * created are remembered so they are not created again for every attachment.
+ *
+ * With attachment.dedupe.enable set attachments are kept in a content store under outputPath/store, named by the
+ * SHA-256 of their content, which is computed as they are written.  Each attachment file is a hard link to its stored
+ * copy, so an attachment forwarded many times is only written and stored once.  outputPath/attachment-index.log maps
+ * each message id and attachment file name to the hash of its content; it is kept open and written to disk by
+ * <code>flush</code>.  Attachment files are always replaced rather than overwritten in place, as a file left by an
+ * earlier run may be a link to a stored copy.  With attachment.archive.enable set attachments
+ * are appended to the rolling zip segments of an <code>AttachmentArchive</code> instead, which takes precedence over
+ * the content store.  Attachments are also hashed when attachment.catalog.enable is set, for the attachment catalog.
+ */
+@Component
+@Log4j
+public class AttachmentWriter {
+    private static final String STORE_FOLDER = "store";
+    private static final String INDEX_FILE = "attachment-index.log";
+    private static final String INDEX_LINE = "%d\t%s\t%s%n";
+    private static final long SHUTDOWN_WAIT_SECONDS = 60;
+    @Value("${attachment.writer.threads}")
+    private int writerThreads;
+    @Value("${attachment.writer.buffer.size}")
+    private int bufferSize;
+    @Value("${attachment.writer.buffers}")
+    private int bufferCount;
+    @Value("${attachment.dedupe.enable}")
+    private boolean dedupeEnabled;
+    @Value("${attachment.archive.enable}")
+    private boolean archiveEnabled;
+    @Value("${attachment.archive.segment.size}")
+    private long segmentSize;
+    @Value("${attachment.catalog.enable}")
+    private boolean catalogEnabled;
+    private final Set<String> createdDirectories = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Queue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<String, FutureTask<File>> storedFiles = new ConcurrentHashMap<>();
+    private final Map<String, AttachmentArchive> archives = new HashMap<>();
+    private final Map<String, LogSink> indexSinks = new HashMap<>();
+    private Semaphore availableBuffers;
+    private ExecutorService executor;
+
+    /**
+     * Helper method called after spring injects properties to create the writer pool.
+     */
+    @PostConstruct
+    private void createExecutor() {
+        availableBuffers = new Semaphore(bufferCount);
+        executor = Executors.newFixedThreadPool(writerThreads,
+                new ThreadFactoryBuilder().setNameFormat("attachment-writer-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Reads an attachment and writes it to outputPath/emailId/fileName, creating its directory if needed.  The stream
+     * is read, but not closed, before this returns.
+     *
+     * @param stream     Attachment content
+     * @param outputPath Output folder attachments are placed in
+     * @param emailId    Id of the message the attachment belongs to
+     * @param fileName   File name of the attachment
+     * @return Returns a future that completes with the written attachment once it has been written, failing with the
+     * write error if any
+     * @throws IOException Throws if the attachment could not be read, or written when written on this thread
+     */
+    public Future<WrittenAttachment> write(InputStream stream, final String outputPath, final Long emailId,
+                                           final String fileName) throws IOException {
+        ReadableByteChannel input = Channels.newChannel(stream);
+        final List<ByteBuffer> buffers = new ArrayList<>();
+        int maxBuffers = Math.max(1, bufferCount / 2);
+        boolean submitted = false;
+
+        try {
+            ByteBuffer buffer = acquireBuffer();
+
+            buffers.add(buffer);
+
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    buffer = buffers.size() < maxBuffers ? tryAcquireBuffer() : null;
+
+                    if (buffer == null) {
+                        return Futures.immediateFuture(writeAttachment(outputPath, emailId, fileName, buffers, input));
+                    }
+
+                    buffers.add(buffer);
+                }
+
+                if (input.read(buffer) < 0) {
+                    break;
+                }
+            }
+
+            Future<WrittenAttachment> write = executor.submit(new Callable<WrittenAttachment>() {
+                @Override
+                public WrittenAttachment call() throws IOException {
+                    try {
+                        return writeAttachment(outputPath, emailId, fileName, buffers, null);
+                    } finally {
+                        releaseBuffers(buffers);
+                    }
+                }
+            });
+
+            submitted = true;
+
+            return write;
+        } finally {
+            if (!submitted) {
+                releaseBuffers(buffers);
+            }
+        }
+    }
+
+    /**
+     * Checks if an attachment was written by this run or an earlier one.
+     *
+     * @param outputPath Output folder attachments are placed in
+     * @param emailId    Id of the message the attachment belongs to
+     * @param fileName   File name of the attachment
+     * @return Returns true if the attachment file exists, or the attachment is in the archive in archive mode
+     * @throws IOException
+     */
+    public boolean isWritten(String outputPath, Long emailId, String fileName) throws IOException {
+        return getLocation(outputPath, emailId, fileName) != null;
+    }
+
+    /**
+     * Gets where an attachment written by this run or an earlier one is in the output folder, as listed in the summary
+     * added to its message.
+     *
+     * @param outputPath Output folder attachments are placed in
+     * @param emailId    Id of the message the attachment belongs to
+     * @param fileName   File name of the attachment
+     * @return Returns emailId/fileName, or the archive segment and entry name in archive mode, or null if the
+     * attachment was not written
+     * @throws IOException
+     */
+    public String getLocation(String outputPath, Long emailId, String fileName) throws IOException {
+        if (archiveEnabled) {
+            return getArchive(outputPath).getLocation(emailId, fileName);
+        }
+
+        String location = emailId + File.separator + fileName;
+
+        return new File(outputPath + File.separator + location).exists() ? location : null;
+    }
+
+    /**
+     * Writes the lines added to the attachment index and archive logs so far to disk.  Called before a message is
+     * recorded as extracted in the import journal, as a resumed import does not extract that message again.
+     */
+    public void flush() {
+        synchronized (this) {
+            for (Map.Entry<String, LogSink> entry : indexSinks.entrySet()) {
+                try {
+                    entry.getValue().flush();
+                } catch (IOException ioe) {
+                    log.error("Could not flush attachment index in " + entry.getKey() + " due to error.", ioe);
+                }
+            }
+        }
+
+        synchronized (archives) {
+            for (Map.Entry<String, AttachmentArchive> entry : archives.entrySet()) {
+                try {
+                    entry.getValue().flush();
+                } catch (IOException ioe) {
+                    log.error("Could not flush attachment archive log in " + entry.getKey() + " due to error.", ioe);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finishes the current segment of every open archive and closes the attachment index.  Called once all
+     * attachments have been written.
+     */
+    public void finish() {
+        closeIndex();
+
+        synchronized (archives) {
+            for (AttachmentArchive archive : archives.values()) {
+                try {
+                    archive.close();
+                } catch (IOException ex) {
+                    log.error("Could not finish attachment archive due to error.", ex);
+                }
+            }
+
+            archives.clear();
+        }
+    }
+
+    /**
+     * Lets queued writes finish and stops the writer pool when the application shuts down.
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+
+        try {
+            executor.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        finish();
+    }
+
+    /**
+     * Closes the attachment index of every output folder.
+     */
+    private synchronized void closeIndex() {
+        for (Map.Entry<String, LogSink> entry : indexSinks.entrySet()) {
+            try {
+                entry.getValue().close();
+            } catch (IOException ioe) {
+                log.error("Could not close attachment index in " + entry.getKey() + " due to error.", ioe);
+            }
+        }
+
+        indexSinks.clear();
+    }
+
+    /**
+     * Gets the archive for an output folder, opening it the first time.
+     *
+     * @param outputPath Output folder attachments are placed in
+     * @return Returns the archive
+     * @throws IOException
+     */
+    private AttachmentArchive getArchive(String outputPath) throws IOException {
+        synchronized (archives) {
+            AttachmentArchive archive = archives.get(outputPath);
+
+            if (archive == null) {
+                archive = new AttachmentArchive(outputPath, segmentSize);
+                archives.put(outputPath, archive);
+            }
+
+            return archive;
+        }
+    }
+
+    /**
+     * Writes an attachment to its file, to the content store with its file linked to the stored copy when
+     * attachment.dedupe.enable is set, or to the archive when attachment.archive.enable is set.
+     *
+     * @param outputPath Output folder attachments are placed in
+     * @param emailId    Id of the message the attachment belongs to
+     * @param fileName   File name of the attachment
+     * @param buffers    Buffers holding the start of the attachment, in order
+     * @param input      Rest of the attachment, or null if the buffers hold all of it
+     * @return Returns the written attachment, whose file is the archive segment it was added to in archive mode
+     * @throws IOException
+     */
+    private WrittenAttachment writeAttachment(String outputPath, Long emailId, String fileName,
+                                              List<ByteBuffer> buffers, ReadableByteChannel input) throws IOException {
+        File file = new File(outputPath + File.separator + emailId + File.separator + fileName);
+        MessageDigest digest = dedupeEnabled || catalogEnabled ? newDigest() : null;
+        long size = 0;
+
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.position();
+
+            if (digest != null) {
+                ByteBuffer content = buffer.duplicate();
+
+                content.flip();
+                digest.update(content);
+            }
+        }
+
+        MeteredChannel meteredInput = input == null ? null : new MeteredChannel(input, digest);
+        String location = emailId + File.separator + fileName;
+        String hash = null;
+
+        if (archiveEnabled) {
+            AttachmentArchive archive = getArchive(outputPath);
+
+            file = archive.add(emailId, fileName, buffers, meteredInput);
+            location = archive.getLocation(emailId, fileName);
+        } else if (!dedupeEnabled) {
+            writeFile(file, buffers, meteredInput);
+        } else {
+            File tempFile = null;
+
+            if (meteredInput != null) {
+                // The hash is only known once the whole attachment has been read, so it has to be written out first
+                tempFile = newTempFile(outputPath);
+                writeFile(tempFile, buffers, meteredInput);
+            }
+
+            hash = toHex(digest.digest());
+            link(store(outputPath, hash, buffers, tempFile), file);
+            writeIndex(outputPath, emailId, fileName, hash);
+        }
+
+        if (hash == null && digest != null) {
+            hash = toHex(digest.digest());
+        }
+
+        return new WrittenAttachment(file, location, size + (meteredInput == null ? 0 : meteredInput.count), hash);
+    }
+
+    /**
+     * Makes sure the content store holds a copy of an attachment.  Only the first write of each hash writes anything;
+     * writes of the same hash at the same time wait for it instead of writing it again.  Once the copy is stored
+     * later writes find it on disk, so nothing is kept in memory for it.
+     *
+     * @param outputPath Output folder attachments are placed in
+     * @param hash       SHA-256 of the attachment in hex
+     * @param buffers    Buffers holding the attachment, used when there is no temp file
+     * @param tempFile   File the attachment was already written to, or null if it is only in the buffers
+     * @return Returns the stored copy of the attachment
+     * @throws IOException
+     */
+    private File store(final String outputPath, String hash, final List<ByteBuffer> buffers, final File tempFile)
+            throws IOException {
+        final File storedFile = new File(outputPath + File.separator + STORE_FOLDER + File.separator +
+                                         hash.substring(0, 2) + File.separator + hash);
+        FutureTask<File> store = new FutureTask<>(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                if (storedFile.exists()) {
+                    // Stored by an earlier run
+                    if (tempFile != null) {
+                        Files.delete(tempFile.toPath());
+                    }
+                } else {
+                    File source = tempFile;
+
+                    if (source == null) {
+                        source = newTempFile(outputPath);
+                        writeFile(source, buffers, null);
+                    }
+
+                    createDirectory(storedFile.getParentFile());
+                    Files.move(source.toPath(), storedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+
+                return storedFile;
+            }
+        });
+        FutureTask<File> existing = storedFiles.putIfAbsent(storedFile.getPath(), store);
+
+        if (existing == null) {
+            existing = store;
+            store.run();
+        } else if (tempFile != null) {
+            Files.delete(tempFile.toPath());
+        }
+
+        try {
+            return Uninterruptibles.getUninterruptibly(existing);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        } finally {
+            storedFiles.remove(storedFile.getPath(), existing);
+        }
+    }
+
+    /**
+     * Links an attachment file to its stored copy.  Falls back to copying the stored copy on file systems that do not
+     * support hard links or when the stored copy has run out of links.
+     *
+     * @param storedFile Stored copy of the attachment
+     * @param file       Attachment file
+     * @throws IOException
+     */
+    private void link(File storedFile, File file) throws IOException {
+        createDirectory(file.getParentFile());
+        Files.deleteIfExists(file.toPath());
+
+        try {
+            Files.createLink(file.toPath(), storedFile.toPath());
+        } catch (UnsupportedOperationException | FileSystemException ex) {
+            log.warn(String.format("Could not link %s to %s, copying instead: %s", file, storedFile, ex));
+            Files.copy(storedFile.toPath(), file.toPath());
+        }
+    }
+
+    /**
+     * Adds an attachment to the index of attachments and the hash of their stored copy.
+     *
+     * @param outputPath Output folder attachments are placed in
+     * @param emailId    Id of the message the attachment belongs to
+     * @param fileName   File name of the attachment
+     * @param hash       SHA-256 of the attachment in hex
+     */
+    private synchronized void writeIndex(String outputPath, Long emailId, String fileName, String hash) {
+        LogSink sink = indexSinks.get(outputPath);
+
+        if (sink == null) {
+            sink = new LogSink(new File(outputPath + File.separator + INDEX_FILE));
+            indexSinks.put(outputPath, sink);
+        }
+
+        try {
+            sink.write(String.format(INDEX_LINE, emailId, fileName, hash));
+        } catch (IOException ioe) {
+            log.error("Could not add attachment to the attachment index due to error.", ioe);
+        }
+    }
+
+    /**
+     * Writes filled buffers to a file, followed by whatever is left in the input when one is given.  An existing file
+     * is deleted first instead of being truncated, so a link to a stored copy is replaced and the copy left alone.
+     *
+     * @param file    File to write
+     * @param buffers Buffers holding the start of the attachment, in order
+     * @param input   Rest of the attachment, or null if the buffers hold all of it
+     * @throws IOException
+     */
+    private void writeFile(File file, List<ByteBuffer> buffers, ReadableByteChannel input) throws IOException {
+        createDirectory(file.getParentFile());
+        Files.deleteIfExists(file.toPath());
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (ByteBuffer buffer : buffers) {
+                buffer.flip();
+                writeFully(channel, buffer);
+            }
+
+            if (input != null) {
+                ByteBuffer buffer = buffers.get(buffers.size() - 1);
+
+                buffer.clear();
+
+                while (input.read(buffer) >= 0) {
+                    buffer.flip();
+                    writeFully(channel, buffer);
+                    buffer.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes everything left in a buffer to a channel.
+     *
+     * @param channel Channel to write to
+     * @param buffer  Buffer to write
+     * @throws IOException
+     */
+    private void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Creates a directory and any missing parents, unless it has been created already.
+     *
+     * @param directory Directory to create
+     * @throws IOException
+     */
+    private void createDirectory(File directory) throws IOException {
+        String path = directory.getAbsolutePath();
+
+        if (!createdDirectories.contains(path)) {
+            Files.createDirectories(directory.toPath());
+            createdDirectories.add(path);
+        }
+    }
+
+    /**
+     * Creates a new temp file name in the content store of an output folder.
+     *
+     * @param outputPath Output folder attachments are placed in
+     * @return Returns the temp file, which does not exist yet
+     */
+    private File newTempFile(String outputPath) {
+        return new File(outputPath + File.separator + STORE_FOLDER + File.separator + "tmp-" + UUID.randomUUID());
+    }
+
+    /**
+     * Creates a SHA-256 digest.
+     *
+     * @return Returns a new digest
+     */
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    /**
+     * Converts bytes to lower case hex.
+     *
+     * @param bytes Bytes to convert
+     * @return Returns the hex string
+     */
+    private String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return hex.toString();
+    }
+
+    /**
+     * Takes a buffer from the pool, waiting for one to be released if they are all in use.
+     *
+     * @return Returns an empty buffer
+     * @throws IOException Throws if interrupted while waiting
+     */
+    private ByteBuffer acquireBuffer() throws IOException {
+        try {
+            availableBuffers.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for an attachment buffer");
+        }
+
+        return takeBuffer();
+    }
+
+    /**
+     * Takes a buffer from the pool without waiting.
+     *
+     * @return Returns an empty buffer, or null if they are all in use
+     */
+    private ByteBuffer tryAcquireBuffer() {
+        return availableBuffers.tryAcquire() ? takeBuffer() : null;
+    }
+
+    /**
+     * Takes a free buffer, allocating it the first time, once a permit for it has been acquired.
+     *
+     * @return Returns an empty buffer
+     */
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = freeBuffers.poll();
+
+        return buffer == null ? ByteBuffer.allocateDirect(bufferSize) : buffer;
+    }
+
+    /**
+     * Returns buffers to the pool.
+     *
+     * @param buffers Buffers to return
+     */
+    private void releaseBuffers(List<ByteBuffer> buffers) {
+        for (ByteBuffer buffer : buffers) {
+            buffer.clear();
+            freeBuffers.offer(buffer);
+            availableBuffers.release();
+        }
+
+        buffers.clear();
+    }
+
+    /**
+     * Channel that counts, and optionally hashes, everything read through it.
+     */
+    private static class MeteredChannel implements ReadableByteChannel {
+        private final ReadableByteChannel input;
+        private final MessageDigest digest;
+        private long count;
+
+        /**
+         * Creates a new metered channel.
+         *
+         * @param input  Channel to read from
+         * @param digest Digest updated with everything read, or null
+         */
+        MeteredChannel(ReadableByteChannel input, MessageDigest digest) {
+            this.input = input;
+            this.digest = digest;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            int start = buffer.position();
+            int read = input.read(buffer);
+
+            if (read > 0) {
+                count += read;
+
+                if (digest != null) {
+                    ByteBuffer content = buffer.duplicate();
+
+                    content.position(start);
+                    content.limit(start + read);
+                    digest.update(content);
+                }
+            }
+
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return input.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+}
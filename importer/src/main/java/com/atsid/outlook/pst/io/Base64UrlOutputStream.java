@@ -0,0 +1,84 @@
+package com.atsid.outlook.pst.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that base64url encodes everything written to it straight into a <code>StringBuilder</code>, using the
+ * URL safe alphabet without padding.  Lets a MIME message be encoded as it is written instead of being collected into
+ * a byte array first.  Remaining bytes are encoded when the stream is closed.
+ */
+public class Base64UrlOutputStream extends OutputStream {
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private final StringBuilder target;
+    private int group;
+    private int groupSize;
+    private boolean closed;
+
+    /**
+     * Creates a new stream that appends encoded characters to a builder.
+     *
+     * @param target Builder encoded characters are appended to
+     */
+    public Base64UrlOutputStream(StringBuilder target) {
+        this.target = target;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        group = (group << 8) | (b & 0xff);
+
+        if (++groupSize == 3) {
+            appendGroup(group);
+            group = 0;
+            groupSize = 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+
+        while (groupSize != 0 && off < end) {
+            write(b[off++]);
+        }
+
+        for (; off + 3 <= end; off += 3) {
+            appendGroup(((b[off] & 0xff) << 16) | ((b[off + 1] & 0xff) << 8) | (b[off + 2] & 0xff));
+        }
+
+        while (off < end) {
+            write(b[off++]);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        if (groupSize == 1) {
+            target.append(ALPHABET[(group >> 2) & 0x3f]).append(ALPHABET[(group << 4) & 0x3f]);
+        } else if (groupSize == 2) {
+            target.append(ALPHABET[(group >> 10) & 0x3f]).append(ALPHABET[(group >> 4) & 0x3f])
+                  .append(ALPHABET[(group << 2) & 0x3f]);
+        }
+
+        group = 0;
+        groupSize = 0;
+    }
+
+    /**
+     * Appends the four characters encoding a full three byte group.
+     *
+     * @param bits The three bytes of the group in the low 24 bits
+     */
+    private void appendGroup(int bits) {
+        target.append(ALPHABET[(bits >> 18) & 0x3f]).append(ALPHABET[(bits >> 12) & 0x3f])
+              .append(ALPHABET[(bits >> 6) & 0x3f]).append(ALPHABET[bits & 0x3f]);
+    }
+}
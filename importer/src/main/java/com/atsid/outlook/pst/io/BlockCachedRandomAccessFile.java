@@ -0,0 +1,160 @@
+package com.atsid.outlook.pst.io;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only <code>RandomAccessFile</code> that serves reads out of an LRU cache of fixed size blocks.  java-libpst
+ * issues many small positioned reads against the same index and table pages, so caching whole blocks turns those into
+ * memory copies and only goes to disk (or the network share) once per block.
+ * <p/>
+ * Like <code>RandomAccessFile</code> itself, instances are not thread-safe.
+ */
+public class BlockCachedRandomAccessFile extends RandomAccessFile {
+    private final int blockSize;
+    private final long length;
+    private final Map<Long, byte[]> blocks;
+    private long position;
+    @Getter
+    private long cacheHits;
+    @Getter
+    private long cacheMisses;
+    @Getter
+    private long bytesRead;
+
+    /**
+     * Opens a file for cached reading.
+     *
+     * @param file      File to open
+     * @param blockSize Size in bytes of each cached block
+     * @param maxBlocks Maximum number of blocks to keep in memory
+     * @throws IOException Throws if the file cannot be opened
+     */
+    public BlockCachedRandomAccessFile(File file, int blockSize, final int maxBlocks) throws IOException {
+        super(file, "r");
+        this.blockSize = blockSize;
+        this.length = super.length();
+        this.blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > maxBlocks;
+            }
+        };
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= length) {
+            return -1;
+        }
+
+        byte[] block = getBlock(position / blockSize);
+
+        return block[(int) (position++ % blockSize)] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer) throws IOException {
+        return read(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        } else if (position >= length) {
+            return -1;
+        }
+
+        int total = 0;
+
+        while (count > 0 && position < length) {
+            byte[] block = getBlock(position / blockSize);
+            int blockOffset = (int) (position % blockSize);
+            int copied = Math.min(count, block.length - blockOffset);
+
+            System.arraycopy(block, blockOffset, buffer, offset, copied);
+            position += copied;
+            offset += copied;
+            count -= copied;
+            total += copied;
+        }
+
+        return total;
+    }
+
+    @Override
+    public int skipBytes(int count) throws IOException {
+        if (count <= 0) {
+            return 0;
+        }
+
+        long newPosition = Math.min(position + count, length);
+        int skipped = (int) (newPosition - position);
+
+        position = newPosition;
+
+        return skipped;
+    }
+
+    @Override
+    public void seek(long newPosition) throws IOException {
+        if (newPosition < 0) {
+            throw new IOException("Negative seek offset");
+        }
+
+        position = newPosition;
+    }
+
+    @Override
+    public long getFilePointer() throws IOException {
+        return position;
+    }
+
+    @Override
+    public long length() throws IOException {
+        return length;
+    }
+
+    /**
+     * Gets a block from the cache, reading it from disk if it is not cached.
+     *
+     * @param blockIndex Index of the block in the file
+     * @return Returns the block contents, which is shorter than the block size for the last block in the file
+     * @throws IOException
+     */
+    private byte[] getBlock(long blockIndex) throws IOException {
+        byte[] block = blocks.get(blockIndex);
+
+        if (block == null) {
+            long start = blockIndex * blockSize;
+            int filled = 0;
+
+            block = new byte[(int) Math.min(blockSize, length - start)];
+            super.seek(start);
+
+            while (filled < block.length) {
+                int read = super.read(block, filled, block.length - filled);
+
+                if (read < 0) {
+                    throw new IOException(String.format("Unexpected end of file reading block at %d", start));
+                }
+
+                filled += read;
+            }
+
+            blocks.put(blockIndex, block);
+            bytesRead += block.length;
+            ++cacheMisses;
+        } else {
+            ++cacheHits;
+        }
+
+        return block;
+    }
+}
@@ -0,0 +1,74 @@
+package com.atsid.outlook.pst.io;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Log file that stays open for the whole run, appending lines through a buffer instead of opening and closing the file
+ * for every line.  Lines are only guaranteed to be on disk once the sink has been flushed or closed.
+ */
+public class LogSink {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private final File file;
+    private Writer writer;
+
+    /**
+     * Creates a new sink for a log file.  The file is not opened until the first line is written.
+     *
+     * @param file Log file lines are appended to
+     */
+    public LogSink(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Appends a line to the log.
+     *
+     * @param line Line to write, including its line separator
+     * @throws IOException
+     */
+    public void write(String line) throws IOException {
+        if (writer == null) {
+            FileUtils.forceMkdir(file.getParentFile());
+            writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), BUFFER_SIZE);
+        }
+
+        writer.write(line);
+    }
+
+    /**
+     * Writes any buffered lines to the log file.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Writes any buffered lines and closes the log file.  Writing another line opens it again.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (writer != null) {
+            try {
+                writer.flush();
+            } finally {
+                IOUtils.closeQuietly(writer);
+                writer = null;
+            }
+        }
+    }
+}
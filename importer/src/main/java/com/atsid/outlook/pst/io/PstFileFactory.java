@@ -0,0 +1,43 @@
+package com.atsid.outlook.pst.io;
+
+import com.pff.PSTException;
+import com.pff.PSTFile;
+import com.pff.PstFileAccess;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Factory for opening <code>PSTFile</code> instances, optionally reading through a block cache.
+ */
+@Component
+public class PstFileFactory {
+    @Value("${pst.io.cache.enable}")
+    private boolean cacheEnabled;
+    @Value("${pst.io.cache.block.size}")
+    private int blockSize;
+    @Value("${pst.io.cache.blocks}")
+    private int maxBlocks;
+
+    /**
+     * Opens up PST file for reading.  If pst.io.cache.enable is set, all reads after the initial index load go through
+     * a <code>BlockCachedRandomAccessFile</code>.
+     *
+     * @param pstFileName Full file path to the PST file to open
+     * @return Returns a <code>PSTFile</code> instance opened on the specified PST file
+     * @throws IOException
+     * @throws PSTException
+     */
+    public PSTFile openPstFile(String pstFileName) throws IOException, PSTException {
+        PSTFile pstFile = new PSTFile(pstFileName);
+
+        if (cacheEnabled) {
+            PstFileAccess.replaceFileHandle(pstFile,
+                    new BlockCachedRandomAccessFile(new File(pstFileName), blockSize, maxBlocks));
+        }
+
+        return pstFile;
+    }
+}
@@ -0,0 +1,32 @@
+package com.atsid.outlook.pst.io;
+
+import lombok.Getter;
+
+import java.io.File;
+
+/**
+ * Result of <code>AttachmentWriter</code> writing an attachment: where it ended up, how big it is and, when the writer
+ * hashes attachments, the SHA-256 of its content.
+ */
+@Getter
+public class WrittenAttachment {
+    private final File file;
+    private final String location;
+    private final long size;
+    private final String hash;
+
+    /**
+     * Creates a new written attachment.
+     *
+     * @param file     File the attachment was written to, or the archive segment it was added to
+     * @param location Where the attachment is in the output folder, as listed in the summary added to its message
+     * @param size     Size of the attachment in bytes
+     * @param hash     SHA-256 of the attachment in hex, or null if it was not hashed
+     */
+    public WrittenAttachment(File file, String location, long size, String hash) {
+        this.file = file;
+        this.location = location;
+        this.size = size;
+        this.hash = hash;
+    }
+}
@@ -0,0 +1,192 @@
+package com.atsid.outlook.pst.journal;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j;
+import org.apache.commons.io.IOUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Durable record of how far each message in a PST file has got through the import, so an import that dies part way
+ * through can pick up where it left off.  The journal lives in the output path and is named after the PST file's
+ * identity (path, size and last modified time) and the account it is imported into, so a changed or different PST
+ * file, or the same PST file imported into another account, starts a fresh journal.  Each state change is appended as
+ * a fixed size record of descriptor node id and state, and every record is read back into a set per state on open so
+ * lookups never touch the disk.
+ */
+@Component
+@Log4j
+public class ImportJournal {
+    private static final String JOURNAL_PREFIX = "import-journal-";
+    private static final String JOURNAL_SUFFIX = ".dat";
+    private static final int RECORD_SIZE = 9;
+    @Value("${import.journal.enable}")
+    private boolean enabled;
+    @Getter
+    private File journalFile;
+    private DataOutputStream output;
+    private final Map<ImportState, LongHashSet> states = new EnumMap<>(ImportState.class);
+
+    /**
+     * Opens the journal for a PST file imported into an account, loading every state already recorded for it.  Any
+     * journal that is already open is closed first.
+     *
+     * @param pstFileName  Full file path to the PST file being imported
+     * @param emailAddress Email address of the account the PST file is imported into
+     * @param outputPath   Full path to the output location where the journal is kept
+     * @throws IOException
+     */
+    public synchronized void open(String pstFileName, String emailAddress, String outputPath) throws IOException {
+        close();
+
+        for (ImportState state : ImportState.values()) {
+            states.put(state, new LongHashSet());
+        }
+
+        if (!enabled) {
+            return;
+        }
+
+        journalFile = new File(outputPath,
+                JOURNAL_PREFIX + getImportIdentity(new File(pstFileName), emailAddress) + JOURNAL_SUFFIX);
+        journalFile.getParentFile().mkdirs();
+
+        long records = load();
+
+        truncate(records * RECORD_SIZE);
+        output = new DataOutputStream(new FileOutputStream(journalFile, true));
+
+        log.info(String.format("Opened import journal %s with %d records, %d messages already uploaded", journalFile,
+                records, states.get(ImportState.UPLOADED).size()));
+    }
+
+    /**
+     * Records that a message has reached a state.  The record is flushed to disk before returning.
+     *
+     * @param descriptorNodeId Node ID of the message in the PST file
+     * @param state            State the message has reached
+     */
+    public synchronized void mark(long descriptorNodeId, ImportState state) {
+        LongHashSet ids = states.get(state);
+
+        if (ids == null || !ids.add(descriptorNodeId) || output == null) {
+            return;
+        }
+
+        try {
+            output.writeLong(descriptorNodeId);
+            output.writeByte(state.ordinal());
+            output.flush();
+        } catch (IOException ioe) {
+            log.error(String.format("Could not write import journal record for message %d", descriptorNodeId), ioe);
+        }
+    }
+
+    /**
+     * Checks if a message has already reached a state.
+     *
+     * @param descriptorNodeId Node ID of the message in the PST file
+     * @param state            State to check for
+     * @return Returns true if the message has reached the state, false otherwise
+     */
+    public synchronized boolean hasReached(long descriptorNodeId, ImportState state) {
+        LongHashSet ids = states.get(state);
+
+        return ids != null && ids.contains(descriptorNodeId);
+    }
+
+    /**
+     * Checks if a message has already been uploaded and can be skipped.
+     *
+     * @param descriptorNodeId Node ID of the message in the PST file
+     * @return Returns true if the message has been uploaded, false otherwise
+     */
+    public boolean isUploaded(long descriptorNodeId) {
+        return hasReached(descriptorNodeId, ImportState.UPLOADED);
+    }
+
+    /**
+     * Closes the journal file.  States stay readable until the next call to <code>open</code>.
+     */
+    public synchronized void close() {
+        IOUtils.closeQuietly(output);
+        output = null;
+    }
+
+    /**
+     * Reads every complete record in the journal file into the state sets.
+     *
+     * @return Returns the number of complete records read
+     * @throws IOException
+     */
+    private long load() throws IOException {
+        long records = 0;
+
+        if (!journalFile.exists()) {
+            return records;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                long descriptorNodeId = input.readLong();
+                int state = input.readUnsignedByte();
+
+                if (state < ImportState.values().length) {
+                    states.get(ImportState.values()[state]).add(descriptorNodeId);
+                }
+
+                ++records;
+            }
+        } catch (EOFException eof) {
+            // End of journal, or a record cut short when the last run died
+        }
+
+        return records;
+    }
+
+    /**
+     * Cuts off a partial record left at the end of the journal file so new records line up.
+     *
+     * @param length Length of the complete records in the journal file
+     * @throws IOException
+     */
+    private void truncate(long length) throws IOException {
+        if (journalFile.exists() && journalFile.length() > length) {
+            log.warn(String.format("Dropping partial record at end of import journal %s", journalFile));
+
+            try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+                file.setLength(length);
+            }
+        }
+    }
+
+    /**
+     * Builds an identity for an import from the PST file's path, size and last modified time and the account it is
+     * imported into.  Email addresses are compared ignoring case.
+     *
+     * @param pstFile      PST file to identify
+     * @param emailAddress Email address of the account the PST file is imported into
+     * @return Returns a hex string that identifies the import
+     */
+    private String getImportIdentity(File pstFile, String emailAddress) {
+        String identity = pstFile.getAbsolutePath() + "|" + pstFile.length() + "|" + pstFile.lastModified() + "|" +
+                          emailAddress.toLowerCase(Locale.ENGLISH);
+
+        return Hashing.sha1().hashString(identity, Charsets.UTF_8).toString();
+    }
+}
@@ -0,0 +1,19 @@
+package com.atsid.outlook.pst.journal;
+
+/**
+ * States a message moves through while being imported, in order.
+ */
+public enum ImportState {
+    /**
+     * Attachments have been written to the output path.
+     */
+    EXTRACTED,
+    /**
+     * Message has been converted into a GMail message.
+     */
+    CONVERTED,
+    /**
+     * Message has been accepted by GMail.
+     */
+    UPLOADED
+}
@@ -0,0 +1,116 @@
+package com.atsid.outlook.pst.journal;
+
+/**
+ * Compact set of primitive longs using open addressing.  Avoids the boxing and per-entry objects of a
+ * <code>HashSet&lt;Long&gt;</code>, so a few million ids fit in a few tens of megabytes.  Not thread-safe.
+ */
+public class LongHashSet {
+    private static final long EMPTY = 0L;
+    private long[] table;
+    private int size;
+    private boolean containsEmpty;
+
+    /**
+     * Creates a new empty set.
+     */
+    public LongHashSet() {
+        table = new long[64];
+    }
+
+    /**
+     * Adds a value to the set.
+     *
+     * @param value Value to add
+     * @return Returns true if the value was added, false if it was already in the set
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            boolean added = !containsEmpty;
+
+            containsEmpty = true;
+            return added;
+        }
+
+        int slot = findSlot(table, value);
+
+        if (table[slot] == value) {
+            return false;
+        }
+
+        table[slot] = value;
+
+        if (++size * 2 > table.length) {
+            resize();
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if a value is in the set.
+     *
+     * @param value Value to look for
+     * @return Returns true if the value is in the set, false otherwise
+     */
+    public boolean contains(long value) {
+        if (value == EMPTY) {
+            return containsEmpty;
+        }
+
+        return table[findSlot(table, value)] == value;
+    }
+
+    /**
+     * Gets the number of values in the set.
+     *
+     * @return Returns the number of values in the set
+     */
+    public int size() {
+        return containsEmpty ? size + 1 : size;
+    }
+
+    /**
+     * Finds the slot holding a value, or the empty slot where it would go.
+     *
+     * @param slots Table to search
+     * @param value Value to look for
+     * @return Returns the index of the slot
+     */
+    private static int findSlot(long[] slots, long value) {
+        int mask = slots.length - 1;
+        int slot = mix(value) & mask;
+
+        while (slots[slot] != EMPTY && slots[slot] != value) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Spreads the bits of a value so sequential ids do not cluster in the table.
+     *
+     * @param value Value to hash
+     * @return Returns the hash of the value
+     */
+    private static int mix(long value) {
+        long hash = value * 0x9E3779B97F4A7C15L;
+
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Doubles the size of the table and re-inserts every value.
+     */
+    private void resize() {
+        long[] newTable = new long[table.length * 2];
+
+        for (long value : table) {
+            if (value != EMPTY) {
+                newTable[findSlot(newTable, value)] = value;
+            }
+        }
+
+        table = newTable;
+    }
+}
@@ -0,0 +1,383 @@
+package com.atsid.outlook.pst.message;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.springframework.stereotype.Component;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Writes the plain text / HTML alternative messages built by <code>MessageConverter</code> as RFC 822 text directly,
+ * instead of building body parts and a multipart and having JavaMail re-encode all of it in <code>writeTo</code>.
+ * Headers are taken as-is from a <code>MimeMessage</code> that has had everything but its content set; messages with
+ * headers that are not plain ASCII are left to JavaMail.  Bodies are written 7bit, quoted-printable or base64 following
+ * the same rules JavaMail uses to pick an encoding, and a new Message-ID is written just as JavaMail does on save.
+ * Bodies are encoded as they are written, prefix first, without building a copy of the whole body.  A body that
+ * already carries a transfer encoding, as set by <code>PayloadSlimmer</code>, is written with that encoding instead.
+ * Attachments kept in the message by <code>AttachmentRules</code> are always written base64.
+ */
+@Component
+public class DirectMimeWriter {
+    private static final String[] REPLACED_HEADERS =
+            new String[] { "Content-Type", "Content-Transfer-Encoding", "MIME-Version", "Message-ID" };
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] CRLF = new byte[] { '\r', '\n' };
+    private static final int MAX_LINE_LENGTH = 998;
+
+    /**
+     * Checks if the headers of a message can be written directly.
+     *
+     * @param mimeMessage Message holding the headers to write
+     * @return Returns true if every header is plain ASCII, false if the message should be written by JavaMail
+     * @throws MessagingException
+     */
+    public boolean canWrite(MimeMessage mimeMessage) throws MessagingException {
+        Enumeration headerLines = mimeMessage.getNonMatchingHeaderLines(REPLACED_HEADERS);
+
+        while (headerLines.hasMoreElements()) {
+            String headerLine = (String) headerLines.nextElement();
+
+            for (int i = 0; i < headerLine.length(); i++) {
+                if (headerLine.charAt(i) > 0x7f) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes a message with a plain text body, an optional HTML alternative and any attachments kept in it.  A message
+     * with only an HTML body is written as a single part instead of an alternative multipart.  Inline attachments are
+     * written in a related multipart with the bodies, and other attachments in a mixed multipart around that.
+     *
+     * @param mimeMessage Message holding the headers to write, its content is ignored
+     * @param text        Plain text body, or null if the message only has an HTML body
+     * @param html        HTML body, or null if the message only has a plain text body
+     * @param attachments Attachments kept in the message
+     * @param output      Stream to write the message to
+     * @throws MessagingException
+     * @throws IOException
+     */
+    public void write(MimeMessage mimeMessage, PrefixedBodyDataSource text, PrefixedBodyDataSource html,
+                      List<KeptAttachment> attachments, OutputStream output) throws MessagingException, IOException {
+        List<KeptAttachment> inline = new ArrayList<>();
+        List<KeptAttachment> attached = new ArrayList<>();
+        String mixedBoundary = null;
+        String relatedBoundary = null;
+        Enumeration headerLines = mimeMessage.getNonMatchingHeaderLines(REPLACED_HEADERS);
+
+        for (KeptAttachment attachment : attachments) {
+            (attachment.isInline() ? inline : attached).add(attachment);
+        }
+
+        while (headerLines.hasMoreElements()) {
+            writeLine(output, normalizeLineBreaks((String) headerLines.nextElement()));
+        }
+
+        writeLine(output, "Message-ID: <" + UUID.randomUUID() + ".DirectMimeWriter@localhost>");
+        writeLine(output, "MIME-Version: 1.0");
+
+        if (!attached.isEmpty()) {
+            mixedBoundary = newBoundary();
+            writeMultipartHeader(output, "mixed", mixedBoundary);
+            writeLine(output, "--" + mixedBoundary);
+        }
+
+        if (!inline.isEmpty()) {
+            relatedBoundary = newBoundary();
+            writeMultipartHeader(output, "related", relatedBoundary);
+            writeLine(output, "--" + relatedBoundary);
+        }
+
+        writeBodies(output, text, html);
+        writeAttachments(output, relatedBoundary, inline);
+        writeAttachments(output, mixedBoundary, attached);
+    }
+
+    /**
+     * Writes the plain text and HTML bodies, as an alternative multipart when there is a plain text body.
+     *
+     * @param output Stream to write to
+     * @param text   Plain text body, or null if there is only an HTML body
+     * @param html   HTML body, or null if there is only a plain text body
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private void writeBodies(OutputStream output, PrefixedBodyDataSource text, PrefixedBodyDataSource html)
+            throws MessagingException, IOException {
+        if (text == null) {
+            writeBody(output, html);
+            return;
+        }
+
+        String boundary = newBoundary();
+
+        writeMultipartHeader(output, "alternative", boundary);
+        writePart(output, boundary, text);
+
+        if (html != null) {
+            writePart(output, boundary, html);
+        }
+
+        writeLine(output, "--" + boundary + "--");
+    }
+
+    /**
+     * Writes the Content-Type header of a multipart, followed by the blank line ending the headers.
+     *
+     * @param output   Stream to write to
+     * @param subtype  Multipart subtype
+     * @param boundary Multipart boundary
+     * @throws IOException
+     */
+    private void writeMultipartHeader(OutputStream output, String subtype, String boundary) throws IOException {
+        writeLine(output, "Content-Type: multipart/" + subtype + "; ");
+        writeLine(output, "\tboundary=\"" + boundary + "\"");
+        output.write(CRLF);
+    }
+
+    /**
+     * Writes attachments as the remaining parts of a multipart and closes it.
+     *
+     * @param output      Stream to write to
+     * @param boundary    Multipart boundary
+     * @param attachments Attachments to write, nothing is written if there are none
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private void writeAttachments(OutputStream output, String boundary, List<KeptAttachment> attachments)
+            throws MessagingException, IOException {
+        if (attachments.isEmpty()) {
+            return;
+        }
+
+        for (KeptAttachment attachment : attachments) {
+            writeAttachment(output, boundary, attachment);
+        }
+
+        writeLine(output, "--" + boundary + "--");
+    }
+
+    /**
+     * Writes one attachment part, base64 encoded, along with the boundary in front of it.
+     *
+     * @param output     Stream to write to
+     * @param boundary   Multipart boundary
+     * @param attachment Attachment to write
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private void writeAttachment(OutputStream output, String boundary, KeptAttachment attachment)
+            throws MessagingException, IOException {
+        ContentType contentType = new ContentType(attachment.getMimeType());
+        ContentDisposition disposition = new ContentDisposition(attachment.isInline() ? "inline" : "attachment");
+
+        if (attachment.getFileName() != null && !attachment.getFileName().isEmpty()) {
+            String fileName = MimeUtility.encodeText(attachment.getFileName(), "UTF-8", null);
+
+            contentType.setParameter("name", fileName);
+            disposition.setParameter("filename", fileName);
+        }
+
+        writeLine(output, "--" + boundary);
+        writeLine(output, "Content-Type: " + contentType);
+        writeLine(output, "Content-Transfer-Encoding: base64");
+        writeLine(output, "Content-Disposition: " + disposition);
+
+        if (attachment.isInline()) {
+            writeLine(output, "Content-ID: " + attachment.getContentIdHeader());
+        }
+
+        output.write(CRLF);
+
+        try (OutputStream encoder = MimeUtility.encode(new CloseShieldOutputStream(output), "base64")) {
+            encoder.write(attachment.getData());
+        }
+
+        output.write(CRLF);
+    }
+
+    /**
+     * Creates a new multipart boundary.
+     *
+     * @return Returns the boundary
+     */
+    private String newBoundary() {
+        return "----=_Part_" + UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /**
+     * Writes one body part along with the boundary in front of it.
+     *
+     * @param output   Stream to write to
+     * @param boundary Multipart boundary
+     * @param body     Body of the part
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private void writePart(OutputStream output, String boundary, PrefixedBodyDataSource body)
+            throws MessagingException, IOException {
+        writeLine(output, "--" + boundary);
+        writeBody(output, body);
+    }
+
+    /**
+     * Writes the content headers of a body, followed by the encoded body.
+     *
+     * @param output Stream to write to
+     * @param body   Body to write
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private void writeBody(OutputStream output, PrefixedBodyDataSource body) throws MessagingException, IOException {
+        String encoding = body.getTransferEncoding() == null ? getEncoding(body) : body.getTransferEncoding();
+        OutputStream target = new CloseShieldOutputStream(output);
+
+        writeLine(output, "Content-Type: " + body.getContentType());
+        writeLine(output, "Content-Transfer-Encoding: " + encoding);
+        output.write(CRLF);
+
+        if (!"7bit".equals(encoding)) {
+            target = MimeUtility.encode(target, encoding);
+        }
+
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(target, body.getCharset()))) {
+            writeNormalized(writer, body.getPrefix());
+            writeNormalized(writer, body.getBody());
+        }
+
+        output.write(CRLF);
+    }
+
+    /**
+     * Picks a transfer encoding the way JavaMail does: 7bit for ASCII text with no overlong lines, quoted-printable
+     * when most of the text is ASCII and base64 otherwise.
+     *
+     * @param body Body of a part
+     * @return Returns the transfer encoding to use
+     */
+    private String getEncoding(PrefixedBodyDataSource body) {
+        int[] counts = new int[4];
+
+        countCharacters(body.getPrefix(), counts);
+        countCharacters(body.getBody(), counts);
+
+        if (counts[1] == 0) {
+            return counts[2] > MAX_LINE_LENGTH ? "quoted-printable" : "7bit";
+        }
+
+        return counts[0] > counts[1] ? "quoted-printable" : "base64";
+    }
+
+    /**
+     * Adds up the ASCII characters, non-ASCII characters and longest line in a piece of text.  The line in progress
+     * carries over from one piece to the next.
+     *
+     * @param text   Text to count
+     * @param counts ASCII count, non-ASCII count, longest line length and current line length, updated in place
+     */
+    private void countCharacters(String text, int[] counts) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (c == '\r' || c == '\n') {
+                counts[3] = 0;
+            } else if (++counts[3] > counts[2]) {
+                counts[2] = counts[3];
+            }
+
+            if (c > 0x7f) {
+                counts[1]++;
+            } else {
+                counts[0]++;
+            }
+        }
+    }
+
+    /**
+     * Writes text with bare CR and LF line breaks turned into CRLF.
+     *
+     * @param writer Writer to write to
+     * @param text   Text to write
+     * @throws IOException
+     */
+    private void writeNormalized(Writer writer, String text) throws IOException {
+        int length = text.length();
+        int start = 0;
+
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+
+            if (c == '\r' && i + 1 < length && text.charAt(i + 1) == '\n') {
+                i++;
+            } else if (c == '\r' || c == '\n') {
+                writer.write(text, start, i - start);
+                writer.write("\r\n");
+                start = i + 1;
+            }
+        }
+
+        writer.write(text, start, length - start);
+    }
+
+    /**
+     * Turns bare CR and LF line breaks into CRLF.
+     *
+     * @param value Text to normalize
+     * @return Returns the text with CRLF line breaks, or the same string if it already had them
+     */
+    private String normalizeLineBreaks(String value) {
+        StringBuilder normalized = null;
+        int length = value.length();
+
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            boolean crlf = c == '\r' && i + 1 < length && value.charAt(i + 1) == '\n';
+
+            if (crlf) {
+                if (normalized != null) {
+                    normalized.append("\r\n");
+                }
+
+                i++;
+            } else if (c == '\r' || c == '\n') {
+                if (normalized == null) {
+                    normalized = new StringBuilder(length + 64).append(value, 0, i);
+                }
+
+                normalized.append("\r\n");
+            } else if (normalized != null) {
+                normalized.append(c);
+            }
+        }
+
+        return normalized == null ? value : normalized.toString();
+    }
+
+    /**
+     * Writes an ASCII line followed by CRLF.
+     *
+     * @param output Stream to write to
+     * @param line   Line to write
+     * @throws IOException
+     */
+    private void writeLine(OutputStream output, String line) throws IOException {
+        output.write(line.getBytes(ASCII));
+        output.write(CRLF);
+    }
+}
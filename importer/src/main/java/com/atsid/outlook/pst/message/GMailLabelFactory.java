@@ -1,6 +1,7 @@
 package com.atsid.outlook.pst.message;
 
 import com.google.api.services.gmail.Gmail;
+import com.google.common.util.concurrent.Uninterruptibles;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
@@ -10,11 +11,16 @@ import org.springframework.context.ApplicationContextAware;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
- * Factory class for obtaining <code>GMailLabeler</code> instances.
+ * Factory class for obtaining <code>GMailLabeler</code> instances.  Each account's labeler is created exactly once:
+ * threads asking for an account whose labeler is still loading its labels wait for that load instead of starting
+ * another.
  */
 @Component
 @Log4j
@@ -22,39 +28,74 @@ public class GMailLabelFactory implements ApplicationContextAware {
     @Setter
     private ApplicationContext applicationContext;
     @Getter(AccessLevel.PROTECTED)
-    private Map<String, GMailLabeler> labelers = new HashMap<>();
+    private ConcurrentMap<String, FutureTask<GMailLabeler>> labelers = new ConcurrentHashMap<>();
 
     /**
      * Creates a <code>GMailLabeler</code> instance and returns it after initialization.
-     * Multiple calls with the same email address will return the same instance using the original <code>Gmail</code> service..
+     * Multiple calls with the same email address will return the same instance using the original <code>Gmail</code>
+     * service.  A labeler that fails to initialize is not kept, so the next call tries again.
      *
      * @param gmailService Gmail service object to use
      * @param emailAddress Email address to associate with this labeler
      * @return Returns an initialized labeler or null if initialization fails.
      */
-    public GMailLabeler getLabeler(Gmail gmailService, String emailAddress) {
-        if (labelers.containsKey(emailAddress)) {
-            return labelers.get(emailAddress);
-        } else {
-            GMailLabeler labeler = (GMailLabeler) applicationContext.getBean("gmailLabeler");
-
-            if (labeler != null) {
-                labeler.setGmailService(gmailService);
-                labeler.setEmailAddress(emailAddress);
-
-                try {
-                    labeler.loadLabels();
-                } catch (IOException ioe) {
-                    log.error(
-                            String.format("Could not create gmail labeler for %s due to an IOException.", emailAddress),
-                            ioe);
-                    return null;
+    public GMailLabeler getLabeler(final Gmail gmailService, final String emailAddress) {
+        FutureTask<GMailLabeler> creation = labelers.get(emailAddress);
+
+        if (creation == null) {
+            FutureTask<GMailLabeler> newCreation = new FutureTask<>(new Callable<GMailLabeler>() {
+                @Override
+                public GMailLabeler call() {
+                    return createLabeler(gmailService, emailAddress);
                 }
+            });
+
+            creation = labelers.putIfAbsent(emailAddress, newCreation);
 
-                labelers.put(emailAddress, labeler);
+            if (creation == null) {
+                creation = newCreation;
+                newCreation.run();
             }
+        }
+
+        GMailLabeler labeler = null;
+
+        try {
+            labeler = Uninterruptibles.getUninterruptibly(creation);
+        } catch (ExecutionException ex) {
+            log.error(String.format("Could not create gmail labeler for %s.", emailAddress), ex.getCause());
+        }
+
+        if (labeler == null) {
+            labelers.remove(emailAddress, creation);
+        }
+
+        return labeler;
+    }
 
-            return labeler;
+    /**
+     * Creates a labeler from the spring context and loads the account's labels into it.
+     *
+     * @param gmailService Gmail service object to use
+     * @param emailAddress Email address to associate with this labeler
+     * @return Returns an initialized labeler or null if initialization fails.
+     */
+    private GMailLabeler createLabeler(Gmail gmailService, String emailAddress) {
+        GMailLabeler labeler = (GMailLabeler) applicationContext.getBean("gmailLabeler");
+
+        if (labeler != null) {
+            labeler.setGmailService(gmailService);
+            labeler.setEmailAddress(emailAddress);
+
+            try {
+                labeler.loadLabels();
+            } catch (IOException ioe) {
+                log.error(String.format("Could not create gmail labeler for %s due to an IOException.", emailAddress),
+                        ioe);
+                return null;
+            }
         }
+
+        return labeler;
     }
-}
\ No newline at end of file
+}
@@ -1,30 +1,51 @@
 package com.atsid.outlook.pst.message;
 
+import com.atsid.outlook.pst.folder.FolderPath;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.model.Label;
 import com.google.api.services.gmail.model.ListLabelsResponse;
+import com.google.common.util.concurrent.Uninterruptibles;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
+import lombok.extern.log4j.Log4j;
 import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 @Component("gmailLabeler")
 @Scope("prototype")
+@Log4j
 public class GMailLabeler {
     @Setter
     private Gmail gmailService;
     @Setter
     private String emailAddress;
     @Getter(AccessLevel.PROTECTED)
-    private Map<String, Label> availableLabels = new HashMap<>();
+    private Map<String, Label> availableLabels = new ConcurrentHashMap<>();
+    private final Map<FolderPath, Label> folderLabels = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, FutureTask<Label>> pendingLabels = new ConcurrentHashMap<>();
     public static final String PST_IMPORT_LABEL = "PST Import";
+    @Value("${import.label.batch.size}")
+    private int labelBatchSize;
 
     public GMailLabeler() {
     }
@@ -52,12 +73,125 @@ public class GMailLabeler {
         return label;
     }
 
+    /**
+     * Gets the label for a folder, creating it and any missing parent labels first.  The label is resolved once per
+     * folder and then read from a cache keyed by the interned <code>FolderPath</code>, so messages after the first in a
+     * folder only cost a map lookup.
+     *
+     * @param folderNames  List of names of folders leading up to the folder
+     * @param emailAddress Email address of the account the labels belong to
+     * @return Returns the label for the folder
+     * @throws IOException
+     */
     public Label getLabel(List<String> folderNames, String emailAddress) throws IOException {
+        FolderPath folderPath = FolderPath.of(folderNames);
+        Label label = folderLabels.get(folderPath);
+
+        if (label == null) {
+            label = resolveLabel(folderPath, emailAddress);
+
+            if (label != null) {
+                folderLabels.put(folderPath, label);
+            }
+        }
+
+        return label;
+    }
+
+    public Label getAvailableLabel(String labelName) {
+        return availableLabels.get(labelName);
+    }
+
+    /**
+     * Creates every label missing for a set of folders up front, in batches of import.label.batch.size, so importing
+     * messages does not stop to create labels one at a time.  Labels are created a level at a time so parents exist
+     * before their children.  Labels that fail to be created are logged and left for <code>getLabel</code> to create.
+     *
+     * @param folderPaths Lists of names of folders leading up to each folder messages will be imported from
+     * @throws IOException
+     */
+    public void createLabels(Collection<List<String>> folderPaths) throws IOException {
+        List<Set<String>> levels = new ArrayList<>();
+
+        levels.add(new LinkedHashSet<String>());
+
+        if (!availableLabels.containsKey(PST_IMPORT_LABEL)) {
+            levels.get(0).add(PST_IMPORT_LABEL);
+        }
+
+        for (List<String> folderNames : folderPaths) {
+            String label = "";
+
+            for (int depth = 0; depth < folderNames.size(); ++depth) {
+                label = appendLabel(label, folderNames.get(depth));
+
+                if (levels.size() <= depth) {
+                    levels.add(new LinkedHashSet<String>());
+                }
+
+                if (!availableLabels.containsKey(label)) {
+                    levels.get(depth).add(label);
+                }
+            }
+        }
+
+        for (Set<String> level : levels) {
+            createLabelBatches(level);
+        }
+    }
+
+    /**
+     * Creates labels in batches of at most import.label.batch.size requests.
+     *
+     * @param labelNames Names of the labels to create
+     * @throws IOException
+     */
+    private void createLabelBatches(Collection<String> labelNames) throws IOException {
+        BatchRequest batch = null;
+
+        for (final String labelName : labelNames) {
+            if (batch == null) {
+                batch = gmailService.batch();
+            }
+
+            gmailService.users().labels().create(emailAddress, newLabel(labelName))
+                        .queue(batch, new JsonBatchCallback<Label>() {
+                            @Override
+                            public void onSuccess(Label label, HttpHeaders responseHeaders) {
+                                availableLabels.put(labelName, label);
+                            }
+
+                            @Override
+                            public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                                log.warn(String.format("Could not create label %s for %s: %s", labelName,
+                                        emailAddress, e.getMessage()));
+                            }
+                        });
+
+            if (batch.size() >= labelBatchSize) {
+                batch.execute();
+                batch = null;
+            }
+        }
+
+        if (batch != null) {
+            batch.execute();
+        }
+    }
+
+    /**
+     * Builds the label for a folder, creating it and any missing parent labels.
+     *
+     * @param folderPath   Path of the folder
+     * @param emailAddress Email address of the account the labels belong to
+     * @return Returns the label for the folder
+     * @throws IOException
+     */
+    private Label resolveLabel(FolderPath folderPath, String emailAddress) throws IOException {
         String label = "";
 
-        for (String folderName : folderNames) {
-            String cleanLabel = sanitizeLabel(convertIfReserved(folderName));
-            label += StringUtils.isEmpty(label) ? cleanLabel : "/" + cleanLabel;
+        for (String folderName : folderPath) {
+            label = appendLabel(label, folderName);
 
             createLabelIfNotExist(label, emailAddress);
         }
@@ -67,23 +201,79 @@ public class GMailLabeler {
         return availableLabels.get(label);
     }
 
-    public Label getAvailableLabel(String labelName) {
-        return availableLabels.get(labelName);
-    }
+    /**
+     * Creates a label unless it already exists.  Threads that need the same missing label at the same time wait for a
+     * single create request instead of each sending one, which GMail would reject for all but the first.
+     *
+     * @param labelName    Full name of the label
+     * @param emailAddress Email address of the account the label belongs to
+     * @throws IOException
+     */
+    private void createLabelIfNotExist(final String labelName, final String emailAddress) throws IOException {
+        if (availableLabels.containsKey(labelName)) {
+            return;
+        }
 
-    private void createLabelIfNotExist(String labelName, String emailAddress) throws IOException {
-        if (!availableLabels.containsKey(labelName)) {
-            Label gmailLabel = new Label();
-            gmailLabel.setName(labelName);
-            gmailLabel.setLabelListVisibility("labelShow");
-            gmailLabel.setMessageListVisibility("hide");
-            gmailLabel = gmailService.users().labels().create(emailAddress, gmailLabel).execute();
+        FutureTask<Label> creation = new FutureTask<>(new Callable<Label>() {
+            @Override
+            public Label call() throws IOException {
+                Label gmailLabel = availableLabels.get(labelName);
 
-            availableLabels.put(labelName, gmailLabel);
+                // Checked again as another thread may have just finished creating it
+                if (gmailLabel == null) {
+                    gmailLabel = gmailService.users().labels().create(emailAddress, newLabel(labelName)).execute();
+                    availableLabels.put(labelName, gmailLabel);
+                }
+
+                return gmailLabel;
+            }
+        });
+        FutureTask<Label> existing = pendingLabels.putIfAbsent(labelName, creation);
+
+        if (existing == null) {
+            existing = creation;
+            creation.run();
+        }
+
+        try {
+            Uninterruptibles.getUninterruptibly(existing);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        } finally {
+            pendingLabels.remove(labelName, existing);
         }
     }
 
+    /**
+     * Creates a label to send to GMail.
+     *
+     * @param labelName Full name of the label
+     * @return Returns the label, shown in the label list but hidden in the message list
+     */
+    private Label newLabel(String labelName) {
+        Label gmailLabel = new Label();
+
+        gmailLabel.setName(labelName);
+        gmailLabel.setLabelListVisibility("labelShow");
+        gmailLabel.setMessageListVisibility("hide");
+
+        return gmailLabel;
+    }
+
+    /**
+     * Appends a folder to a label path.
+     *
+     * @param label      Label of the parent folder, or an empty string for a top level folder
+     * @param folderName Name of the folder
+     * @return Returns the label of the folder
+     */
+    private String appendLabel(String label, String folderName) {
+        String cleanLabel = sanitizeLabel(convertIfReserved(folderName));
+
+        return StringUtils.isEmpty(label) ? cleanLabel : label + "/" + cleanLabel;
+    }
+
     private String sanitizeLabel(String label) {
-        return label.replaceAll("/", "_").replaceAll("-", "_");
+        return label.replace('/', '_').replace('-', '_');
     }
 }
\ No newline at end of file
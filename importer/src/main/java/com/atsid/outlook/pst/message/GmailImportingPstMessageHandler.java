@@ -1,26 +1,38 @@
 package com.atsid.outlook.pst.message;
 
 import com.atsid.outlook.pst.AttachmentExtractor;
+import com.atsid.outlook.pst.AttachmentLogger;
+import com.atsid.outlook.pst.ExtractedAttachments;
 import com.atsid.outlook.pst.GmailServiceFactory;
-import com.google.api.client.googleapis.batch.BatchRequest;
+import com.atsid.outlook.pst.batch.GmailBatchManager;
+import com.atsid.outlook.pst.batch.ImportRateController;
+import com.atsid.outlook.pst.catalog.AttachmentCatalog;
+import com.atsid.outlook.pst.folder.FolderPath;
+import com.atsid.outlook.pst.io.AttachmentWriter;
+import com.atsid.outlook.pst.journal.ImportJournal;
+import com.atsid.outlook.pst.journal.ImportState;
+import com.atsid.outlook.pst.retry.RetryScheduler;
 import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.http.HttpHeaders;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.model.Label;
 import com.google.api.services.gmail.model.Message;
+import com.pff.PSTException;
 import com.pff.PSTMessage;
+import com.pff.PstFileAccess;
 import lombok.extern.log4j.Log4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.mail.MessagingException;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -37,57 +49,250 @@ public class GmailImportingPstMessageHandler implements PstMessageHandler {
     private MessageConverter converter;
     @Autowired
     private GMailLabelFactory labelFactory;
-    @Value("${import.batch.size}")
-    private int batchSize;
-    @Value("${import.batch.connect.timeout}")
-    private int connectTimeout;
-    @Value("${import.batch.read.timeout}")
-    private int readTimeout;
+    @Autowired
+    private ImportJournal journal;
+    @Autowired
+    private GmailBatchManager batchManager;
+    @Autowired
+    private ImportRateController rateController;
+    @Autowired
+    private RetryScheduler retryScheduler;
+    @Autowired
+    private PayloadSlimmer payloadSlimmer;
+    @Autowired
+    private AttachmentWriter attachmentWriter;
+    @Autowired
+    private AttachmentLogger attachmentLogger;
+    @Autowired
+    private AttachmentCatalog attachmentCatalog;
     @Value("${import.batch.enable}")
     private boolean useBatch;
-    private BatchRequest batch;
     @Value("${import.error.subject.and.date}")
     private boolean detailedErrorLog;
-    @Value("${import.retry.count}")
-    private int retryCount;
-    @Value("${import.retry.backoff.ms}")
-    private int retrySleep;
+    @Value("${import.retry.spool.bytes}")
+    private int spoolThreshold;
 
     @Override
     public void processEmailMessage(PSTMessage pstMessage, String outputPath, List<String> folderNames,
                                     String emailAddress) {
-        processEmailMessage(pstMessage, outputPath, folderNames, emailAddress, 0);
+        importMessage(pstMessage, outputPath, FolderPath.of(folderNames), emailAddress);
     }
 
-    private void processEmailMessage(PSTMessage pstMessage, String outputPath, List<String> folderNames, String emailAddress, int currentRetry) {
+    /**
+     * Creates the GMail labels for every folder before any message is imported, in batches, so messages do not wait
+     * on labels being created one request at a time.  If that fails, labels are created as messages need them.
+     *
+     * @param folderPaths         Lists of names of folders leading up to each folder holding messages
+     * @param accountEmailAddress Email address for account we are processing
+     */
+    @Override
+    public void prepareFolders(List<List<String>> folderPaths, String accountEmailAddress) {
         try {
-            Gmail gmailService = gmailServiceFactory.getGmailService(emailAddress);
-            GMailLabeler labeler = labelFactory.getLabeler(gmailService, emailAddress);
-            List<String> attachmentsRemoved = extractor.extractAttachments(pstMessage, outputPath);
-            Message gmailMessage = converter.convertMessage(pstMessage, outputPath, attachmentsRemoved);
-            Label label = labeler.getLabel(folderNames, emailAddress);
+            Gmail gmailService = gmailServiceFactory.getGmailService(accountEmailAddress);
+            GMailLabeler labeler = labelFactory.getLabeler(gmailService, accountEmailAddress);
 
-            gmailMessage.setLabelIds(
-                    Arrays.asList(label.getId(), labeler.getAvailableLabel(GMailLabeler.PST_IMPORT_LABEL).getId()));
+            if (labeler != null) {
+                labeler.createLabels(folderPaths);
+            }
+        } catch (IOException ex) {
+            log.error(String.format("Could not create labels for %s up front, creating them as needed instead",
+                    accountEmailAddress), ex);
+        }
+    }
 
+    /**
+     * Sends any batches still pending and waits for outstanding retries.  Retried messages can end up in new batches,
+     * so this repeats until nothing is left.
+     */
+    @Override
+    public void finishProcessing() {
+        do {
             if (useBatch) {
-                importBatch(emailAddress, gmailService, gmailMessage);
-            } else {
-                importNonBatch(emailAddress, gmailService, gmailMessage);
+                batchManager.flushAll();
             }
+
+            retryScheduler.awaitIdle();
+        } while (useBatch && batchManager.hasPendingBatches());
+
+        attachmentWriter.finish();
+        attachmentLogger.flush();
+        attachmentCatalog.finish();
+        payloadSlimmer.logSavings();
+    }
+
+    /**
+     * Reads, prepares and uploads a message.  On failure another attempt is scheduled with the retry scheduler instead
+     * of holding up this thread.  Once the message has been read, retries work from its snapshot.
+     *
+     * @param pstMessage   PST Message to import
+     * @param outputPath   Full path to output location where we can dump content
+     * @param folderNames  List of names of folders leading up to where this message was found
+     * @param emailAddress Email address for account we are processing
+     */
+    private void importMessage(final PSTMessage pstMessage, final String outputPath, final List<String> folderNames,
+                               final String emailAddress) {
+        PstMessageSnapshot snapshot;
+
+        try {
+            snapshot = readMessage(pstMessage, outputPath);
         } catch (Exception ex) {
-            logMessageFailure(pstMessage, emailAddress, currentRetry, ex);
+            long descriptorNodeId = pstMessage.getDescriptorNodeId();
 
-            // If we have not reached our max retry count, backoff for 'retrySleep' ms and then try again
-            if (currentRetry < retryCount) {
-                try {
-                    Thread.currentThread().sleep(retrySleep);
-                } catch (InterruptedException e) {
-                    log.error("Encountered thread interruption exception during backoff period");
+            logMessageFailure(pstMessage, emailAddress, retryScheduler.getRetryCount(descriptorNodeId), ex);
+            retryScheduler.schedule(descriptorNodeId, new Runnable() {
+                @Override
+                public void run() {
+                    importMessage(pstMessage, outputPath, folderNames, emailAddress);
+                }
+            });
+            return;
+        }
+
+        importMessage(snapshot, outputPath, folderNames, emailAddress);
+    }
+
+    /**
+     * Prepares and uploads a message that has been read.  If only the upload failed, only the upload is retried,
+     * reusing the prepared message.
+     *
+     * @param snapshot     Snapshot of the PST Message to import
+     * @param outputPath   Full path to output location where we can dump content
+     * @param folderNames  List of names of folders leading up to where this message was found
+     * @param emailAddress Email address for account we are processing
+     */
+    private void importMessage(final PstMessageSnapshot snapshot, final String outputPath,
+                               final List<String> folderNames, final String emailAddress) {
+        PreparedMessage preparedMessage;
+
+        try {
+            preparedMessage = prepareMessage(snapshot, outputPath, folderNames, emailAddress);
+        } catch (Exception ex) {
+            long descriptorNodeId = snapshot.getDescriptorNodeId();
+
+            logMessageFailure(snapshot, emailAddress, retryScheduler.getRetryCount(descriptorNodeId), ex);
+            retryScheduler.schedule(descriptorNodeId, new Runnable() {
+                @Override
+                public void run() {
+                    importMessage(snapshot, outputPath, folderNames, emailAddress);
                 }
-                processEmailMessage(pstMessage, outputPath, folderNames, emailAddress, ++currentRetry);
+            });
+            return;
+        }
+
+        try {
+            uploadMessage(preparedMessage);
+        } catch (Exception ex) {
+            logMessageFailure(preparedMessage, retryScheduler.getRetryCount(preparedMessage.getDescriptorNodeId()),
+                    ex);
+            retryUpload(preparedMessage);
+        }
+    }
+
+    /**
+     * Extracts attachments from a message and takes a snapshot of everything else needed to import it, so the
+     * <code>PSTMessage</code> can be let go.  Reads against the PST file are serialized so this can safely be called
+     * from multiple threads.  Attachments the import journal says were already extracted by an earlier run are not
+     * written out again, and attachments kept in the message are read into the snapshot.  Attachments are written to
+     * disk in the background; <code>prepareMessage</code> waits for them.
+     *
+     * @param pstMessage PST Message to read
+     * @param outputPath Full path to output location where we can dump content
+     * @return Returns a snapshot ready to be passed to <code>prepareMessage</code>
+     * @throws IOException
+     * @throws PSTException
+     */
+    public PstMessageSnapshot readMessage(PSTMessage pstMessage, String outputPath) throws IOException, PSTException {
+        synchronized (PstFileAccess.getReadLock(pstMessage)) {
+            long descriptorNodeId = pstMessage.getDescriptorNodeId();
+            List<KeptAttachment> attachmentsKept = new ArrayList<>();
+            ExtractedAttachments attachmentsRemoved;
+
+            if (journal.hasReached(descriptorNodeId, ImportState.EXTRACTED)) {
+                attachmentsRemoved = new ExtractedAttachments(
+                        extractor.listExtractedAttachments(pstMessage, outputPath, attachmentsKept));
             } else {
-                log.error("Max retries reached, will not try again");
+                attachmentsRemoved = extractor.extractAttachments(pstMessage, outputPath, attachmentsKept);
+            }
+
+            return PstMessageSnapshot.of(pstMessage, attachmentsRemoved, attachmentsKept);
+        }
+    }
+
+    /**
+     * Converts and labels a message that has been read so it is ready for upload.  Works only from the snapshot, so it
+     * never touches the PST file.  Waits for the attachments of the message to be written to disk first, so the list
+     * of removed attachments added to the message only names attachments that were written.
+     *
+     * @param snapshot     Snapshot of the PST Message to prepare
+     * @param outputPath   Full path to output location where we can dump content
+     * @param folderNames  List of names of folders leading up to where this message was found
+     * @param emailAddress Email address for account we are processing
+     * @return Returns a message ready to be passed to <code>uploadMessage</code>
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public PreparedMessage prepareMessage(PstMessageSnapshot snapshot, String outputPath, List<String> folderNames,
+                                          String emailAddress) throws IOException, MessagingException {
+        Gmail gmailService = gmailServiceFactory.getGmailService(emailAddress);
+        GMailLabeler labeler = labelFactory.getLabeler(gmailService, emailAddress);
+        long descriptorNodeId = snapshot.getDescriptorNodeId();
+
+        // Attachments are only marked as extracted once their writes have finished and been indexed, cataloged and
+        // logged on disk, as a resumed import does not extract them again
+        snapshot.catalogAttachmentsRemoved(attachmentCatalog, folderNames);
+        attachmentCatalog.flush();
+        attachmentWriter.flush();
+        attachmentLogger.flush();
+        journal.mark(descriptorNodeId, ImportState.EXTRACTED);
+
+        Message gmailMessage = converter.convertMessage(snapshot, outputPath);
+
+        journal.mark(descriptorNodeId, ImportState.CONVERTED);
+
+        Label label = labeler.getLabel(folderNames, emailAddress);
+
+        gmailMessage.setLabelIds(
+                Arrays.asList(label.getId(), labeler.getAvailableLabel(GMailLabeler.PST_IMPORT_LABEL).getId()));
+
+        return new PreparedMessage(descriptorNodeId, snapshot.getSubject(), snapshot.getMessageDeliveryTime(),
+                emailAddress, gmailService, gmailMessage);
+    }
+
+    /**
+     * Uploads a prepared message to GMail, either directly or through the current batch.  The message is marked as
+     * uploaded in the import journal once GMail accepts it.  Messages that fail inside a batch are retried through
+     * the retry scheduler.  A payload spooled to disk while waiting for a retry is read back first.
+     *
+     * @param preparedMessage Message returned by <code>prepareMessage</code>
+     * @throws IOException
+     */
+    public void uploadMessage(PreparedMessage preparedMessage) throws IOException {
+        preparedMessage.restore();
+
+        if (useBatch) {
+            importBatch(preparedMessage);
+        } else {
+            importNonBatch(preparedMessage.getEmailAddress(), preparedMessage.getGmailService(),
+                    preparedMessage.getGmailMessage());
+            uploadSucceeded(preparedMessage.getDescriptorNodeId());
+        }
+    }
+
+    /**
+     * Gets a prepared message ready to wait for an upload retry, spooling its payload to disk if it is bigger than
+     * import.retry.spool.bytes.  If spooling fails the payload just stays in memory.
+     *
+     * @param preparedMessage Message that is about to wait for a retry
+     */
+    public void holdForRetry(PreparedMessage preparedMessage) {
+        Message gmailMessage = preparedMessage.getGmailMessage();
+
+        if (gmailMessage.getRaw() != null && gmailMessage.getRaw().length() > spoolThreshold) {
+            try {
+                preparedMessage.spool();
+            } catch (IOException ioe) {
+                log.warn(String.format("Could not spool message %d to disk, keeping it in memory",
+                        preparedMessage.getDescriptorNodeId()), ioe);
             }
         }
     }
@@ -100,97 +305,135 @@ public class GmailImportingPstMessageHandler implements PstMessageHandler {
      * @param retryCount   Current retry count
      * @param ex           Exception that was encountered
      */
-    private void logMessageFailure(PSTMessage pstMessage, String emailAddress, int retryCount, Exception ex) {
+    public void logMessageFailure(PSTMessage pstMessage, String emailAddress, int retryCount, Exception ex) {
+        synchronized (PstFileAccess.getReadLock(pstMessage)) {
+            logMessageFailure(pstMessage.getDescriptorNodeId(), pstMessage.getSubject(),
+                    pstMessage.getMessageDeliveryTime(), emailAddress, retryCount, ex);
+        }
+    }
+
+    /**
+     * Helper method to log an error encountered when an email that has been read could not be prepared.
+     *
+     * @param snapshot     Snapshot of PST Message currently being processed
+     * @param emailAddress Email address for account we are processing
+     * @param retryCount   Current retry count
+     * @param ex           Exception that was encountered
+     */
+    public void logMessageFailure(PstMessageSnapshot snapshot, String emailAddress, int retryCount, Exception ex) {
+        logMessageFailure(snapshot.getDescriptorNodeId(), snapshot.getSubject(), snapshot.getMessageDeliveryTime(),
+                emailAddress, retryCount, ex);
+    }
+
+    /**
+     * Helper method to log an error encountered when a prepared email could not be uploaded.
+     *
+     * @param preparedMessage Prepared message currently being processed
+     * @param retryCount      Current retry count
+     * @param ex              Exception that was encountered
+     */
+    public void logMessageFailure(PreparedMessage preparedMessage, int retryCount, Exception ex) {
+        logMessageFailure(preparedMessage.getDescriptorNodeId(), preparedMessage.getSubject(),
+                preparedMessage.getDeliveryTime(), preparedMessage.getEmailAddress(), retryCount, ex);
+    }
+
+    private void logMessageFailure(long descriptorNodeId, String subject, Date deliveryTime, String emailAddress,
+                                   int retryCount, Exception ex) {
         if (detailedErrorLog) {
             DateFormat formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-            String messageDate = formatter.format(pstMessage.getMessageDeliveryTime());
+            String messageDate = formatter.format(deliveryTime);
             String message =
                     String.format("Caught exception while processing message %d for %s retry %d\n\tSubject: %s\n\tDate: %s",
-                            pstMessage.getDescriptorNodeId(), emailAddress, retryCount, pstMessage.getSubject(), messageDate);
+                            descriptorNodeId, emailAddress, retryCount, subject, messageDate);
             log.error(message, ex);
         } else {
             log.error(String.format("Caught exception while processing message %d for %s retry %d",
-                    pstMessage.getDescriptorNodeId(), emailAddress, retryCount), ex);
+                    descriptorNodeId, emailAddress, retryCount), ex);
         }
     }
 
     /**
-     * Performs an import using GMail batch APIs.
+     * Performs an import using GMail batch APIs.  The message is queued on the batch manager, which sends it in the
+     * background.
      *
-     * @param emailAddress Email address for account we are importing
-     * @param gmailService GMail service client
-     * @param gmailMessage Converted message to send
+     * @param preparedMessage Message to send
      * @throws IOException
      */
-    private void importBatch(String emailAddress, Gmail gmailService, Message gmailMessage) throws IOException {
-        checkBatch(gmailService);
-
-        gmailService.users().messages().gmailImport(emailAddress, gmailMessage)
-                .queue(batch, new JsonBatchCallback<Message>() {
+    private void importBatch(final PreparedMessage preparedMessage) throws IOException {
+        batchManager.queue(preparedMessage.getEmailAddress(), preparedMessage.getGmailService(),
+                preparedMessage.getGmailMessage(), new JsonBatchCallback<Message>() {
                     @Override
                     public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) throws IOException {
-                        log.error(String.format("Caught exception while processing messages: %s", e));
+                        log.error(String.format("Caught exception while importing message %d for %s retry %d: %s",
+                                preparedMessage.getDescriptorNodeId(), preparedMessage.getEmailAddress(),
+                                retryScheduler.getRetryCount(preparedMessage.getDescriptorNodeId()), e));
+                        retryUpload(preparedMessage);
                     }
 
                     @Override
                     public void onSuccess(Message message, HttpHeaders responseHeaders) throws IOException {
-
+                        uploadSucceeded(preparedMessage.getDescriptorNodeId());
                     }
                 });
-        checkBatchForSending(gmailService);
     }
 
     /**
-     * Performs an import making direct calls to GMail APIs with each message.
+     * Schedules another upload of a message whose upload failed, reusing the prepared payload.
      *
-     * @param emailAddress Email address for account we are importing
-     * @param gmailService GMail service client
-     * @param gmailMessage Converted message to send
-     * @throws IOException
+     * @param preparedMessage Message to upload again
      */
-    private void importNonBatch(String emailAddress, Gmail gmailService, Message gmailMessage) throws IOException {
+    private void retryUpload(final PreparedMessage preparedMessage) {
+        holdForRetry(preparedMessage);
+
+        boolean scheduled = retryScheduler.schedule(preparedMessage.getDescriptorNodeId(), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    uploadMessage(preparedMessage);
+                } catch (IOException ioe) {
+                    logMessageFailure(preparedMessage,
+                            retryScheduler.getRetryCount(preparedMessage.getDescriptorNodeId()), ioe);
+                    retryUpload(preparedMessage);
+                }
+            }
+        });
 
-        gmailService.users().messages().gmailImport(emailAddress, gmailMessage).execute();
+        if (!scheduled) {
+            preparedMessage.discard();
+        }
     }
 
     /**
-     * Checks if batch is available and creates it if it isn't.
+     * Records a message GMail has accepted in the import journal and forgets its retry count.
      *
-     * @param gmailService GMail service client
+     * @param descriptorNodeId Node ID of the message in the PST file
      */
-    private void checkBatch(Gmail gmailService) {
-        if (batch == null) {
-            batch = getBatch(gmailService);
-        }
+    private void uploadSucceeded(long descriptorNodeId) {
+        journal.mark(descriptorNodeId, ImportState.UPLOADED);
+        retryScheduler.succeeded(descriptorNodeId);
     }
 
     /**
-     * Checks if the batch is ready to execute.  If ready, it executes and creates a new batch.
+     * Performs an import making direct calls to GMail APIs with each message, paced by the rate controller.
      *
+     * @param emailAddress Email address for account we are importing
      * @param gmailService GMail service client
+     * @param gmailMessage Converted message to send
      * @throws IOException
      */
-    private void checkBatchForSending(Gmail gmailService) throws IOException {
-        if (batch.size() >= batchSize) {
-            batch.execute();
+    private void importNonBatch(String emailAddress, Gmail gmailService, Message gmailMessage) throws IOException {
+        boolean throttled = false;
 
-            batch = getBatch(gmailService);
-        }
-    }
+        rateController.acquire(emailAddress, 1);
+        long startTime = System.currentTimeMillis();
 
-    /**
-     * Gets a new batch request from the GMail service client.
-     *
-     * @param gmailService GMail service client
-     * @return Returns a new batch request with connect and read timeouts set appropriately
-     */
-    private BatchRequest getBatch(Gmail gmailService) {
-        return gmailService.batch(new HttpRequestInitializer() {
-            @Override
-            public void initialize(HttpRequest httpRequest) throws IOException {
-                httpRequest.setConnectTimeout(connectTimeout);
-                httpRequest.setReadTimeout(readTimeout);
-            }
-        });
+        try {
+            gmailService.users().messages().gmailImport(emailAddress, gmailMessage).execute();
+        } catch (IOException ioe) {
+            throttled = ImportRateController.isRateLimited(ioe);
+            throw ioe;
+        } finally {
+            rateController.release(emailAddress, System.currentTimeMillis() - startTime, throttled);
+        }
     }
 }
\ No newline at end of file
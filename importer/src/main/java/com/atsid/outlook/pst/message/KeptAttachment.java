@@ -0,0 +1,53 @@
+package com.atsid.outlook.pst.message;
+
+import lombok.Getter;
+
+/**
+ * Attachment that <code>AttachmentRules</code> decided to leave in the uploaded message instead of extracting it to
+ * disk.  Its content is read while the PST file is locked, the same as the rest of the snapshot, so conversion never
+ * touches the PST file.  Kept attachments are small by rule, so holding them in memory is cheap.
+ */
+@Getter
+public class KeptAttachment {
+    private final String fileName;
+    private final String mimeType;
+    private final String contentId;
+    private final byte[] data;
+
+    /**
+     * Creates a new kept attachment.
+     *
+     * @param fileName  File name of the attachment
+     * @param mimeType  MIME type of the attachment, without parameters
+     * @param contentId Content id HTML bodies use to show the attachment inline, or null if it is not inline
+     * @param data      Content of the attachment
+     */
+    public KeptAttachment(String fileName, String mimeType, String contentId, byte[] data) {
+        this.fileName = fileName;
+        this.mimeType = mimeType;
+        this.contentId = contentId == null || contentId.trim().isEmpty() ? null : contentId.trim();
+        this.data = data;
+    }
+
+    /**
+     * Checks if the attachment is shown inline by the HTML body.
+     *
+     * @return Returns true if the attachment has a content id
+     */
+    public boolean isInline() {
+        return contentId != null;
+    }
+
+    /**
+     * Gets the content id in the angle brackets used by the Content-ID header.
+     *
+     * @return Returns the Content-ID header value, or null if the attachment is not inline
+     */
+    public String getContentIdHeader() {
+        if (contentId == null) {
+            return null;
+        }
+
+        return contentId.startsWith("<") ? contentId : "<" + contentId + ">";
+    }
+}
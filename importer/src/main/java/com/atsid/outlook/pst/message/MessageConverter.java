@@ -1,61 +1,74 @@
 package com.atsid.outlook.pst.message;
 
 import com.atsid.exchange.email.SenderResolver;
-import com.google.api.client.util.Base64;
+import com.atsid.outlook.pst.io.Base64UrlOutputStream;
 import com.google.api.services.gmail.model.Message;
-import com.pff.PSTException;
-import com.pff.PSTMessage;
 import lombok.extern.log4j.Log4j;
 import org.apache.commons.lang.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.activation.DataHandler;
 import javax.mail.Flags;
 import javax.mail.MessagingException;
+import javax.mail.Part;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
-import java.io.ByteArrayOutputStream;
+import javax.mail.util.ByteArrayDataSource;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Converts <code>PSTMessage</code> into a <code>Message</code> using a <code>MimeMessage</code> instance as
- * a container.
+ * Converts a <code>PstMessageSnapshot</code> of a <code>PSTMessage</code> into a <code>Message</code> using a
+ * <code>MimeMessage</code> instance as a container.  With conversion.direct.writer.enable set the message body is
+ * written by <code>DirectMimeWriter</code> and only the headers go through JavaMail, after being slimmed by
+ * <code>PayloadSlimmer</code> when conversion.slim.enable is set.
  */
 @Component
 @Log4j
 public class MessageConverter {
+    private static final int INITIAL_ENCODE_BUFFER = 64 * 1024;
+    private static final int MAX_POOLED_ENCODE_BUFFER = 4 * 1024 * 1024;
     @Autowired
     private SenderResolver senderResolver;
     @Autowired
     private MessageUtils messageUtils;
     @Autowired
     private MimeMessageFactory mimeMessageFactory;
+    @Autowired
+    private DirectMimeWriter directMimeWriter;
+    @Autowired
+    private PayloadSlimmer payloadSlimmer;
+    @Value("${conversion.direct.writer.enable}")
+    private boolean directWriterEnabled;
+    private final ThreadLocal<StringBuilder> encodeBuffers = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(INITIAL_ENCODE_BUFFER);
+        }
+    };
 
     /**
      * Converts a <code>PSTMessage</code> to a <code>Message</code> and alters subject and body to indicate
      * that attachments have been removed.
      *
-     * @param pstMessage          PSTMessage to convert
-     * @param outputPath          Output path where attachments and log files are written
-     * @param strippedAttachments List of attachments that ahve been stripped from this email
+     * @param pstMessage Snapshot of the PSTMessage to convert, including the attachments stripped from it
+     * @param outputPath Output path where attachments and log files are written
      * @return Returns a <code>Message</code> object ready for import into GMail
      * @throws MessagingException
-     * @throws PSTException
      * @throws IOException
      */
-    public Message convertMessage(PSTMessage pstMessage, String outputPath, List<String> strippedAttachments)
-            throws MessagingException, PSTException, IOException {
+    public Message convertMessage(PstMessageSnapshot pstMessage, String outputPath)
+            throws MessagingException, IOException {
         MimeMessage mimeMessage = mimeMessageFactory.getMimeMessage();
-        MimeBodyPart text = mimeMessageFactory.getMimeBodyPart();
-        MimeBodyPart html = mimeMessageFactory.getMimeBodyPart();
-        MimeMultipart content = mimeMessageFactory.getMimemultipart("alternative");
 
-        messageUtils.copyContent(pstMessage, strippedAttachments, text, html, content);
-        mimeMessage.setContent(content);
-        mimeMessage.setHeader("Content-Type", content.getContentType());
+        if (!directWriterEnabled) {
+            setContent(pstMessage, mimeMessage);
+        }
 
         messageUtils.copyRecipients(pstMessage, mimeMessage);
         messageUtils.copyHeaders(pstMessage, outputPath, mimeMessage);
@@ -64,28 +77,105 @@ public class MessageConverter {
             setFromExchange(pstMessage, mimeMessage);
         }
 
-        messageUtils.updateSubject(pstMessage, !strippedAttachments.isEmpty(), mimeMessage);
+        messageUtils.updateSubject(pstMessage, !pstMessage.getAttachmentsRemoved().isEmpty(), mimeMessage);
         mimeMessage.setSentDate(pstMessage.getMessageDeliveryTime());
-        mimeMessage.setFlag(Flags.Flag.ANSWERED, pstMessage.hasReplied());
+        mimeMessage.setFlag(Flags.Flag.ANSWERED, pstMessage.isReplied());
         mimeMessage.setFlag(Flags.Flag.FLAGGED, pstMessage.isFlagged());
         mimeMessage.setFlag(Flags.Flag.SEEN, pstMessage.isRead());
 
-        Message message = createGmailMessageFromMimeMessage(mimeMessage);
+        Message message;
+
+        if (directWriterEnabled && directMimeWriter.canWrite(mimeMessage)) {
+            message = createGmailMessageDirect(pstMessage, mimeMessage);
+        } else {
+            if (directWriterEnabled) {
+                setContent(pstMessage, mimeMessage);
+            }
+
+            message = createGmailMessageFromMimeMessage(mimeMessage);
+        }
 
         message.set("internalDate", pstMessage.getMessageDeliveryTime().getTime());
 
         return message;
     }
 
+    /**
+     * Builds the plain text and HTML body parts for a message and sets them as its content.  Inline attachments kept in
+     * the message are put in a related multipart with the bodies, and other kept attachments in a mixed multipart
+     * around that, the same as <code>DirectMimeWriter</code> writes them.
+     *
+     * @param pstMessage  Snapshot of the PSTMessage being converted
+     * @param mimeMessage Mime message to set the content of
+     * @throws MessagingException
+     */
+    private void setContent(PstMessageSnapshot pstMessage, MimeMessage mimeMessage) throws MessagingException {
+        MimeBodyPart text = mimeMessageFactory.getMimeBodyPart();
+        MimeBodyPart html = mimeMessageFactory.getMimeBodyPart();
+        MimeMultipart content = mimeMessageFactory.getMimemultipart("alternative");
+        List<KeptAttachment> inline = new ArrayList<>();
+        List<KeptAttachment> attached = new ArrayList<>();
+
+        for (KeptAttachment attachment : pstMessage.getAttachmentsKept()) {
+            (attachment.isInline() ? inline : attached).add(attachment);
+        }
+
+        messageUtils.copyContent(pstMessage, text, html, content);
+        content = wrapContent(content, "related", inline);
+        content = wrapContent(content, "mixed", attached);
+        mimeMessage.setContent(content);
+        mimeMessage.setHeader("Content-Type", content.getContentType());
+    }
+
+    /**
+     * Wraps message content in a multipart followed by attachments.
+     *
+     * @param content     Content to wrap
+     * @param subtype     Subtype of the wrapping multipart
+     * @param attachments Attachments to add after the content
+     * @return Returns the wrapping multipart, or the content itself if there are no attachments
+     * @throws MessagingException
+     */
+    private MimeMultipart wrapContent(MimeMultipart content, String subtype, List<KeptAttachment> attachments)
+            throws MessagingException {
+        if (attachments.isEmpty()) {
+            return content;
+        }
+
+        MimeMultipart wrapper = mimeMessageFactory.getMimemultipart(subtype);
+        MimeBodyPart contentPart = mimeMessageFactory.getMimeBodyPart();
+
+        contentPart.setContent(content);
+        wrapper.addBodyPart(contentPart);
+
+        for (KeptAttachment attachment : attachments) {
+            MimeBodyPart attachmentPart = mimeMessageFactory.getMimeBodyPart();
+
+            attachmentPart.setDataHandler(
+                    new DataHandler(new ByteArrayDataSource(attachment.getData(), attachment.getMimeType())));
+            attachmentPart.setFileName(attachment.getFileName());
+            attachmentPart.setDisposition(attachment.isInline() ? Part.INLINE : Part.ATTACHMENT);
+
+            if (attachment.isInline()) {
+                attachmentPart.setContentID(attachment.getContentIdHeader());
+            }
+
+            wrapper.addBodyPart(attachmentPart);
+        }
+
+        return wrapper;
+    }
+
     /**
      * Resolves an address from exchange to an email address.
      *
-     * @param pstMessage  Message to extract email from
+     * @param pstMessage  Snapshot of the message to extract email from
      * @param mimeMessage Mime message to place sender in
      * @throws MessagingException
      */
-    private void setFromExchange(PSTMessage pstMessage, MimeMessage mimeMessage) throws MessagingException {
-        String senderEmail = senderResolver.resolveSender(pstMessage);
+    private void setFromExchange(PstMessageSnapshot pstMessage, MimeMessage mimeMessage) throws MessagingException {
+        String senderEmail =
+                senderResolver.resolveSender(pstMessage.getSenderAddrtype(), pstMessage.getSenderEmailAddress());
 
         if (StringUtils.isNotBlank(senderEmail)) {
             mimeMessage.setFrom(new InternetAddress(senderEmail));
@@ -96,7 +186,9 @@ public class MessageConverter {
     }
 
     /**
-     * Creates a GMail <code>Message</code> model from a <code>MimeMessage</code>.
+     * Creates a GMail <code>Message</code> model from a <code>MimeMessage</code>.  The MIME message is base64url
+     * encoded as it is written, into a buffer kept per thread, so the only full copy made is the final raw string.
+     * Buffers that grew past 4MB for a large message are not kept.
      *
      * @param email Mime message to convert
      * @return Returns a GMail Message model from the specified MimeMessage
@@ -105,11 +197,65 @@ public class MessageConverter {
      */
     private com.google.api.services.gmail.model.Message createGmailMessageFromMimeMessage(MimeMessage email)
             throws MessagingException, IOException {
-        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-        email.writeTo(bytes);
-        String encodedEmail = Base64.encodeBase64URLSafeString(bytes.toByteArray());
+        StringBuilder encodedEmail = encodeBuffers.get();
+
+        encodedEmail.setLength(0);
+
+        try (Base64UrlOutputStream output = new Base64UrlOutputStream(encodedEmail)) {
+            email.writeTo(output);
+        }
+
+        return createGmailMessage(encodedEmail);
+    }
+
+    /**
+     * Creates a GMail <code>Message</code> model by writing the headers of a <code>MimeMessage</code> and the bodies
+     * of a <code>PSTMessage</code> with <code>DirectMimeWriter</code>, base64url encoded into the per thread buffer.
+     *
+     * @param pstMessage Snapshot of the PSTMessage being converted
+     * @param email      Mime message holding the headers
+     * @return Returns a GMail Message model for the message
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private com.google.api.services.gmail.model.Message createGmailMessageDirect(PstMessageSnapshot pstMessage,
+                                                                                 MimeMessage email)
+            throws MessagingException, IOException {
+        StringBuilder encodedEmail = encodeBuffers.get();
+        PrefixedBodyDataSource text = messageUtils.getTextContent(pstMessage);
+        PrefixedBodyDataSource html = messageUtils.getHtmlContent(pstMessage);
+
+        if (payloadSlimmer.isEnabled()) {
+            PayloadSlimmer.Bodies bodies = payloadSlimmer.slim(text, html);
+
+            text = bodies.getText();
+            html = bodies.getHtml();
+        }
+
+        encodedEmail.setLength(0);
+
+        try (Base64UrlOutputStream output = new Base64UrlOutputStream(encodedEmail)) {
+            directMimeWriter.write(email, text, html, pstMessage.getAttachmentsKept(), output);
+        }
+
+        return createGmailMessage(encodedEmail);
+    }
+
+    /**
+     * Creates a GMail <code>Message</code> model from an encoded message and releases the buffer it was encoded into.
+     *
+     * @param encodedEmail Buffer holding the base64url encoded message
+     * @return Returns a GMail Message model with the encoded message as raw content
+     */
+    private com.google.api.services.gmail.model.Message createGmailMessage(StringBuilder encodedEmail) {
         com.google.api.services.gmail.model.Message message = new com.google.api.services.gmail.model.Message();
-        message.setRaw(encodedEmail);
+        message.setRaw(encodedEmail.toString());
+
+        if (encodedEmail.capacity() > MAX_POOLED_ENCODE_BUFFER) {
+            encodeBuffers.remove();
+        } else {
+            encodedEmail.setLength(0);
+        }
 
         return message;
     }
@@ -1,26 +1,24 @@
 package com.atsid.outlook.pst.message;
 
 import com.atsid.outlook.pst.AttachmentLogger;
-import com.pff.PSTException;
-import com.pff.PSTMessage;
 import com.pff.PSTRecipient;
 import lombok.extern.log4j.Log4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.activation.DataHandler;
 import javax.mail.MessagingException;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
-import java.io.IOException;
 import java.util.List;
 
 /**
- * Various utility methods for interacting with <code>PSTMessage</code>, <code>MimeMessage</code> and <code>Message</code>
- * classes.
+ * Various utility methods for copying a <code>PstMessageSnapshot</code> of a <code>PSTMessage</code> into
+ * <code>MimeMessage</code> and <code>Message</code> classes.
  */
 @Log4j
 @Component
@@ -38,12 +36,12 @@ public class MessageUtils {
      * Updates the subject to indicate that attachments have been removed.  If no attachments are removed, subject
      * is copied as-is from the <code>PSTMessage</code>.
      *
-     * @param pstMessage         Email message from PST file
+     * @param pstMessage         Snapshot of email message from PST file
      * @param attachmentsRemoved Flag to indicate if attachments have been removed.
      * @param mimeMessage        Mime message used in the conversion process
      * @throws MessagingException
      */
-    public void updateSubject(PSTMessage pstMessage, boolean attachmentsRemoved, MimeMessage mimeMessage)
+    public void updateSubject(PstMessageSnapshot pstMessage, boolean attachmentsRemoved, MimeMessage mimeMessage)
             throws MessagingException {
         if (attachmentsRemoved) {
             mimeMessage.setSubject(buildSubject(pstMessage.getSubject()));
@@ -54,96 +52,133 @@ public class MessageUtils {
 
     /**
      * Copies the content from the <code>PSTMessage</code> to a <code>MimeMessage</code>.  If it is an HTML message,
-     * both text and HTML content are copied.  If just a text message, no HTML parts are added.
+     * both text and HTML content are copied.  If just a text message, no HTML parts are added.  When attachments have
+     * been stripped, the parts stream the attachment list and the original body one after the other instead of holding
+     * a copy of the body with the list in front of it.
      *
-     * @param pstMessage          Email message from PST file
-     * @param strippedAttachments List of attachments that have been stripped for this message
-     * @param text                Text <code>MimeBodyPart</code> used in all messages
-     * @param html                HTML <code>MimeBodyPart</code> used in HTML messages
-     * @param content             Message content <code>MimeMultipart</code>
+     * @param pstMessage Snapshot of email message from PST file
+     * @param text       Text <code>MimeBodyPart</code> used in all messages
+     * @param html       HTML <code>MimeBodyPart</code> used in HTML messages
+     * @param content    Message content <code>MimeMultipart</code>
      * @throws MessagingException
      */
-    public void copyContent(PSTMessage pstMessage, List<String> strippedAttachments, MimeBodyPart text,
-                            MimeBodyPart html, MimeMultipart content) throws MessagingException {
-        if (strippedAttachments == null || strippedAttachments.isEmpty()) {
-            text.setText(pstMessage.getBody());
-            content.addBodyPart(text);
-
-            if (!pstMessage.getBodyHTML().isEmpty()) {
-                html.setContent(pstMessage.getBodyHTML(), "text/html");
-                content.addBodyPart(html);
-            }
-        } else {
-            String attachmentMap = buildAttachmentMap(strippedAttachments);
+    public void copyContent(PstMessageSnapshot pstMessage, MimeBodyPart text, MimeBodyPart html,
+                            MimeMultipart content) throws MessagingException {
+        setBody(text, getTextContent(pstMessage));
+        content.addBodyPart(text);
 
-            text.setText(attachmentMap + pstMessage.getBody());
-            content.addBodyPart(text);
+        PrefixedBodyDataSource htmlContent = getHtmlContent(pstMessage);
 
-            if (!pstMessage.getBodyHTML().isEmpty()) {
-                html.setContent(buildHtmlContent(attachmentMap, pstMessage.getBodyHTML()), "text/html");
-                content.addBodyPart(html);
-            }
+        if (htmlContent != null) {
+            setBody(html, htmlContent);
+            content.addBodyPart(html);
+        }
+    }
+
+    /**
+     * Gets the plain text body for the converted message, prefixed with the list of stripped attachments if any.
+     *
+     * @param pstMessage Snapshot of email message from PST file
+     * @return Returns the plain text body
+     */
+    public PrefixedBodyDataSource getTextContent(PstMessageSnapshot pstMessage) {
+        List<String> strippedAttachments = pstMessage.getAttachmentsRemoved();
+        String prefix = strippedAttachments.isEmpty() ? "" : buildAttachmentMap(strippedAttachments);
+
+        return new PrefixedBodyDataSource(prefix, pstMessage.getBody(), "text/plain");
+    }
+
+    /**
+     * Gets the HTML body for the converted message, prefixed with the list of stripped attachments if any.
+     *
+     * @param pstMessage Snapshot of email message from PST file
+     * @return Returns the HTML body, or null if the message has no HTML body
+     */
+    public PrefixedBodyDataSource getHtmlContent(PstMessageSnapshot pstMessage) {
+        List<String> strippedAttachments = pstMessage.getAttachmentsRemoved();
+
+        if (!pstMessage.hasBodyHtml()) {
+            return null;
         }
+
+        String prefix = strippedAttachments.isEmpty() ? "" : buildHtmlPrefix(buildAttachmentMap(strippedAttachments));
+
+        return new PrefixedBodyDataSource(prefix, pstMessage.getBodyHtml(), "text/html");
     }
 
     /**
-     * Copies headers from <code>PSTMessage</code> over to the <code>MimeMessage</code>.
+     * Copies headers from <code>PSTMessage</code> over to the <code>MimeMessage</code>.  Headers are scanned in a
+     * single pass over the transport header text: folded continuation lines are kept with the header they belong to,
+     * each complete header is cut out of the text once and added to the message, and a blank line ends the headers.
      *
-     * @param pstMessage  Email message from PST file
+     * @param pstMessage  Snapshot of email message from PST file
      * @param outputPath  Output path for attachments and log files
      * @param mimeMessage Mime message to copy headers to
      * @throws MessagingException
      */
-    public void copyHeaders(PSTMessage pstMessage, String outputPath, MimeMessage mimeMessage)
+    public void copyHeaders(PstMessageSnapshot pstMessage, String outputPath, MimeMessage mimeMessage)
             throws MessagingException {
-        String[] headers = pstMessage.getTransportMessageHeaders().split("\n");
-        String header = headers[0];
+        String headers = pstMessage.getTransportMessageHeaders();
+        int length = headers.length();
+        int headerStart = -1;
+        int headerEnd = -1;
+        int lineStart = 0;
+
+        while (lineStart < length) {
+            int lineEnd = headers.indexOf('\n', lineStart);
+            int nextLineStart = lineEnd < 0 ? length : lineEnd + 1;
+
+            if (lineEnd < 0) {
+                lineEnd = length;
+            }
+
+            if (lineEnd > lineStart && headers.charAt(lineEnd - 1) == '\r') {
+                --lineEnd;
+            }
 
-        for (int i = 1; i < headers.length; ++i) {
-            // if we are a continuation of the previous header, append otherwise add
-            String nextHeader = headers[i];
+            if (lineEnd == lineStart) {
+                break;
+            }
 
-            if (Character.isWhitespace(nextHeader.charAt(0))) {
-                // we need to append!
-                header = header + "\n" + nextHeader;
+            if (headerStart >= 0 && Character.isWhitespace(headers.charAt(lineStart))) {
+                // continuation of the previous header
+                headerEnd = lineEnd;
             } else {
-                if (isFromHeader(header)) {
-                    extractFromAddressFromHeader(pstMessage, outputPath, mimeMessage, header);
-                } else if (isUsableHeader(header)) {
-                    mimeMessage.addHeaderLine(header);
+                if (headerStart >= 0) {
+                    copyHeader(pstMessage, outputPath, mimeMessage, headers, headerStart, headerEnd);
                 }
 
-                header = nextHeader;
+                headerStart = lineStart;
+                headerEnd = lineEnd;
             }
+
+            lineStart = nextLineStart;
+        }
+
+        if (headerStart >= 0) {
+            copyHeader(pstMessage, outputPath, mimeMessage, headers, headerStart, headerEnd);
         }
     }
 
     /**
      * Copies recipients from <code>PSTMessage</code> to <code>MimeMessage</code>.
      *
-     * @param pstMessage  Email message from PST file
+     * @param pstMessage  Snapshot of email message from PST file
      * @param mimeMessage Mime message to copy recipients to
-     * @throws PSTException
-     * @throws IOException
      * @throws MessagingException
      */
-    public void copyRecipients(PSTMessage pstMessage, MimeMessage mimeMessage)
-            throws PSTException, IOException, MessagingException {
-        if (pstMessage.getNumberOfRecipients() > 0) {
-            for (int i = 0; i < pstMessage.getNumberOfRecipients(); ++i) {
-                PSTRecipient recipient = pstMessage.getRecipient(i);
-
-                switch (recipient.getRecipientType()) {
-                    case PSTRecipient.MAPI_TO:
-                        mimeMessage.addRecipients(javax.mail.Message.RecipientType.TO, recipient.getSmtpAddress());
-                        break;
-                    case PSTRecipient.MAPI_CC:
-                        mimeMessage.addRecipients(javax.mail.Message.RecipientType.CC, recipient.getSmtpAddress());
-                        break;
-                    case PSTRecipient.MAPI_BCC:
-                        mimeMessage.addRecipients(javax.mail.Message.RecipientType.BCC, recipient.getSmtpAddress());
-                        break;
-                }
+    public void copyRecipients(PstMessageSnapshot pstMessage, MimeMessage mimeMessage) throws MessagingException {
+        for (PstMessageSnapshot.Recipient recipient : pstMessage.getRecipients()) {
+            switch (recipient.getRecipientType()) {
+                case PSTRecipient.MAPI_TO:
+                    mimeMessage.addRecipients(javax.mail.Message.RecipientType.TO, recipient.getSmtpAddress());
+                    break;
+                case PSTRecipient.MAPI_CC:
+                    mimeMessage.addRecipients(javax.mail.Message.RecipientType.CC, recipient.getSmtpAddress());
+                    break;
+                case PSTRecipient.MAPI_BCC:
+                    mimeMessage.addRecipients(javax.mail.Message.RecipientType.BCC, recipient.getSmtpAddress());
+                    break;
             }
         }
     }
@@ -151,14 +186,14 @@ public class MessageUtils {
     /**
      * Extracts the from email address from the headers.
      *
-     * @param pstMessage  Email message from PST file
+     * @param pstMessage  Snapshot of email message from PST file
      * @param outputPath  Output path for attachments and log files
      * @param mimeMessage Mime message to set from address on
      * @param header      Header that contains from address
      * @throws MessagingException
      */
-    private void extractFromAddressFromHeader(PSTMessage pstMessage, String outputPath, MimeMessage mimeMessage,
-                                              String header) throws MessagingException {
+    private void extractFromAddressFromHeader(PstMessageSnapshot pstMessage, String outputPath,
+                                              MimeMessage mimeMessage, String header) throws MessagingException {
         String sender;
 
         if (!"SMTP".equals(pstMessage.getSenderAddrtype())) {
@@ -176,39 +211,76 @@ public class MessageUtils {
         }
     }
 
+    /**
+     * Copies a single header found in the transport header text to the <code>MimeMessage</code>.  The FROM header
+     * sets the sender, recipient headers are skipped and everything else is added as-is.
+     *
+     * @param pstMessage  Snapshot of email message from PST file
+     * @param outputPath  Output path for attachments and log files
+     * @param mimeMessage Mime message to copy header to
+     * @param headers     Transport header text
+     * @param start       Index of the start of the header
+     * @param end         Index just past the end of the header, not including the line break
+     * @throws MessagingException
+     */
+    private void copyHeader(PstMessageSnapshot pstMessage, String outputPath, MimeMessage mimeMessage,
+                            String headers, int start, int end) throws MessagingException {
+        if (isFromHeader(headers, start)) {
+            extractFromAddressFromHeader(pstMessage, outputPath, mimeMessage, headers.substring(start, end));
+        } else if (isUsableHeader(headers, start)) {
+            mimeMessage.addHeaderLine(headers.substring(start, end));
+        }
+    }
+
     /**
      * Helper method used to determine if header is a FROM header.
      *
-     * @param header header to check
+     * @param headers Transport header text
+     * @param start   Index of the start of the header to check
      * @return Returns true if it is a FROM header, false otherwise
      */
-    private boolean isFromHeader(String header) {
-        return header.toLowerCase().startsWith("from:");
+    private boolean isFromHeader(String headers, int start) {
+        return headers.regionMatches(true, start, "from:", 0, 5);
     }
 
     /**
      * Helper method used to identify if the header is one that contains a recipient header type.
      *
-     * @param header Header to check
-     * @return Returns true if  header is a recipient type, false otherwise
+     * @param headers Transport header text
+     * @param start   Index of the start of the header to check
+     * @return Returns true if header is not a recipient type, false otherwise
      */
-    private boolean isUsableHeader(String header) {
-        String lowerHeader = header.toLowerCase();
-
-        return !lowerHeader.startsWith("to:") && !lowerHeader.startsWith("cc:") && !lowerHeader.startsWith("bcc:");
+    private boolean isUsableHeader(String headers, int start) {
+        return !headers.regionMatches(true, start, "to:", 0, 3) && !headers.regionMatches(true, start, "cc:", 0, 3) &&
+               !headers.regionMatches(true, start, "bcc:", 0, 4);
     }
 
     /**
-     * Helper method used to build HTML body content for message.
+     * Helper method used to build the HTML written in front of the body of a message.
      *
      * @param attachmentMap Content of attachments that have been removed for this message
-     * @param bodyHtml      Body HTML for the remainder of the message
-     * @return Returns a properly formatted HTMl message with the attachments prefixed into the message using PRE tags
-     * to preserve formatting.
+     * @return Returns the attachments wrapped in PRE tags to preserve formatting, ready to go in front of the body HTML
      */
-    private String buildHtmlContent(String attachmentMap, String bodyHtml) {
-        return "<pre>" + attachmentMap + "</pre>" + bodyHtml;
+    private String buildHtmlPrefix(String attachmentMap) {
+        return "<pre>" + attachmentMap + "</pre>";
+    }
 
+    /**
+     * Helper method used to set the content of a body part.  A body with nothing in front of it is set as a plain
+     * string; otherwise the part streams the prefix and body from the data source when it is written.
+     *
+     * @param part Body part to set the content of
+     * @param body Body to set
+     * @throws MessagingException
+     */
+    private void setBody(MimeBodyPart part, PrefixedBodyDataSource body) throws MessagingException {
+        if (!body.getPrefix().isEmpty()) {
+            part.setDataHandler(new DataHandler(body));
+        } else if ("text/html".equals(body.getMimeType())) {
+            part.setContent(body.getBody(), "text/html");
+        } else {
+            part.setText(body.getBody());
+        }
     }
 
     /**
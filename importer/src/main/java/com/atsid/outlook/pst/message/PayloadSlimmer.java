@@ -0,0 +1,340 @@
+package com.atsid.outlook.pst.message;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cuts down the size of message payloads before they are written by <code>DirectMimeWriter</code>.  When
+ * conversion.slim.enable is set it can drop the plain text alternative of messages that have an HTML body, collapse
+ * runs of whitespace in HTML outside of PRE and TEXTAREA elements, and picks whichever of 7bit, quoted-printable or
+ * base64 comes out smallest for each part instead of following the JavaMail rules.  Keeps a running estimate of the
+ * MIME bytes saved, which is logged when an import finishes.
+ */
+@Component
+@Log4j
+public class PayloadSlimmer {
+    private static final String SEVEN_BIT = "7bit";
+    private static final String QUOTED_PRINTABLE = "quoted-printable";
+    private static final String BASE64 = "base64";
+    private static final int MAX_LINE_LENGTH = 998;
+    private static final int QP_LINE_LENGTH = 76;
+    private static final int BASE64_LINE_LENGTH = 76;
+    @Getter
+    @Value("${conversion.slim.enable}")
+    private boolean enabled;
+    @Value("${conversion.slim.drop.text}")
+    private boolean dropText;
+    @Value("${conversion.slim.collapse.whitespace}")
+    private boolean collapseWhitespace;
+    private final AtomicLong bytesBefore = new AtomicLong();
+    private final AtomicLong bytesAfter = new AtomicLong();
+
+    /**
+     * Slims the bodies of a message.
+     *
+     * @param text Plain text body
+     * @param html HTML body, or null if the message only has a plain text body
+     * @return Returns the bodies to write, the plain text body is null if it was dropped
+     */
+    public Bodies slim(PrefixedBodyDataSource text, PrefixedBodyDataSource html) {
+        BodyStats textStats = new BodyStats(text);
+        BodyStats htmlStats = html == null ? null : new BodyStats(html);
+        long before = textStats.getSize(getDefaultEncoding(textStats));
+        long after = 0;
+        PrefixedBodyDataSource slimText = null;
+        PrefixedBodyDataSource slimHtml = null;
+
+        if (html != null) {
+            before += htmlStats.getSize(getDefaultEncoding(htmlStats));
+
+            if (collapseWhitespace) {
+                String body = collapseWhitespace(html.getBody());
+
+                if (body != html.getBody()) {
+                    html = new PrefixedBodyDataSource(html.getPrefix(), body, html.getMimeType());
+                    htmlStats = new BodyStats(html);
+                }
+            }
+
+            slimHtml = withTightestEncoding(html, htmlStats);
+            after += htmlStats.getSize(slimHtml.getTransferEncoding());
+        }
+
+        if (html == null || !dropText) {
+            slimText = withTightestEncoding(text, textStats);
+            after += textStats.getSize(slimText.getTransferEncoding());
+        }
+
+        bytesBefore.addAndGet(before);
+        bytesAfter.addAndGet(after);
+
+        return new Bodies(slimText, slimHtml);
+    }
+
+    /**
+     * Gets the estimated number of MIME bytes saved so far.
+     *
+     * @return Returns the estimated bytes saved
+     */
+    public long getBytesSaved() {
+        return bytesBefore.get() - bytesAfter.get();
+    }
+
+    /**
+     * Logs the estimated bytes saved so far, both in the MIME messages and in the base64url encoded upload.
+     */
+    public void logSavings() {
+        if (enabled) {
+            long saved = getBytesSaved();
+            long before = bytesBefore.get();
+
+            log.info(String.format("Payload slimming saved about %d MIME bytes (%d uploaded), %.1f%% of message bodies",
+                    saved, saved * 4 / 3, before == 0 ? 0.0 : saved * 100.0 / before));
+        }
+    }
+
+    /**
+     * Collapses each run of whitespace in HTML into a single character, a line break if the run held one and a space
+     * otherwise.  Whitespace inside PRE and TEXTAREA elements is left alone.
+     *
+     * @param html HTML to collapse
+     * @return Returns the collapsed HTML, or the same string if there was nothing to collapse
+     */
+    protected String collapseWhitespace(String html) {
+        StringBuilder collapsed = new StringBuilder(html.length());
+        boolean preserve = false;
+        int length = html.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = html.charAt(i);
+
+            if (c == '<') {
+                if (isTag(html, i + 1, "pre") || isTag(html, i + 1, "textarea")) {
+                    preserve = true;
+                } else if (isTag(html, i + 1, "/pre") || isTag(html, i + 1, "/textarea")) {
+                    preserve = false;
+                }
+            }
+
+            if (preserve || !isWhitespace(c)) {
+                collapsed.append(c);
+                i++;
+                continue;
+            }
+
+            boolean lineBreak = false;
+            int start = i;
+
+            while (i < length && isWhitespace(html.charAt(i))) {
+                lineBreak |= html.charAt(i) == '\n';
+                i++;
+            }
+
+            if (i - start == 1) {
+                collapsed.append(c);
+            } else {
+                collapsed.append(lineBreak ? "\r\n" : " ");
+            }
+        }
+
+        return collapsed.length() == length ? html : collapsed.toString();
+    }
+
+    /**
+     * Gets the transfer encoding JavaMail would pick for a body, which is what is used when not slimming.
+     *
+     * @param stats Counts for the body
+     * @return Returns the transfer encoding
+     */
+    private String getDefaultEncoding(BodyStats stats) {
+        if (stats.nonAscii == 0) {
+            return stats.longestLine > MAX_LINE_LENGTH ? QUOTED_PRINTABLE : SEVEN_BIT;
+        }
+
+        return stats.ascii > stats.nonAscii ? QUOTED_PRINTABLE : BASE64;
+    }
+
+    /**
+     * Gets a copy of a body set to be written with whichever transfer encoding makes it smallest.
+     *
+     * @param body  Body to copy
+     * @param stats Counts for the body
+     * @return Returns the copy
+     */
+    private PrefixedBodyDataSource withTightestEncoding(PrefixedBodyDataSource body, BodyStats stats) {
+        String encoding;
+
+        if (stats.nonAscii == 0 && stats.longestLine <= MAX_LINE_LENGTH) {
+            encoding = SEVEN_BIT;
+        } else if (stats.getSize(QUOTED_PRINTABLE) <= stats.getSize(BASE64)) {
+            encoding = QUOTED_PRINTABLE;
+        } else {
+            encoding = BASE64;
+        }
+
+        return new PrefixedBodyDataSource(body.getPrefix(), body.getBody(), body.getMimeType(), encoding);
+    }
+
+    /**
+     * Checks if the text at an index is the start of an HTML tag name, followed by the end of the tag or whitespace.
+     *
+     * @param html  HTML to check
+     * @param start Index just past the opening angle bracket
+     * @param name  Tag name to look for
+     * @return Returns true if the tag name is found
+     */
+    private boolean isTag(String html, int start, String name) {
+        int end = start + name.length();
+
+        return html.regionMatches(true, start, name, 0, name.length()) &&
+               (end == html.length() || html.charAt(end) == '>' || isWhitespace(html.charAt(end)));
+    }
+
+    /**
+     * Checks if a character is HTML whitespace.
+     *
+     * @param c Character to check
+     * @return Returns true for space, tab, carriage return, line feed and form feed
+     */
+    private boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f';
+    }
+
+    /**
+     * Bodies left after slimming a message.
+     */
+    @Getter
+    public static class Bodies {
+        private final PrefixedBodyDataSource text;
+        private final PrefixedBodyDataSource html;
+
+        /**
+         * Creates a new set of bodies.
+         *
+         * @param text Plain text body, or null if it was dropped
+         * @param html HTML body, or null if the message only has a plain text body
+         */
+        public Bodies(PrefixedBodyDataSource text, PrefixedBodyDataSource html) {
+            this.text = text;
+            this.html = html;
+        }
+    }
+
+    /**
+     * Counts gathered in one pass over a body, used to pick and size transfer encodings.  Sizes are for the body
+     * once line breaks are written as CRLF.
+     */
+    private static class BodyStats {
+        private long bytes;
+        private long ascii;
+        private long nonAscii;
+        private int longestLine;
+        private long quotedPrintable;
+
+        /**
+         * Gathers the counts for a body.
+         *
+         * @param body Body to count
+         */
+        BodyStats(PrefixedBodyDataSource body) {
+            int[] line = new int[2];
+
+            count(body.getPrefix(), line);
+            count(body.getBody(), line);
+            quotedPrintable += line[1] + softBreaks(line[1]);
+        }
+
+        /**
+         * Adds the counts for a piece of a body.  The line in progress carries over from one piece to the next.
+         *
+         * @param text Text to count
+         * @param line Length of the line in progress in characters and in quoted-printable bytes, updated in place
+         */
+        private void count(String text, int[] line) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+
+                if (c == '\r' || c == '\n') {
+                    if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                        i++;
+                    }
+
+                    bytes += 2;
+                    ascii += 2;
+                    quotedPrintable += line[1] + softBreaks(line[1]) + 2;
+                    longestLine = Math.max(longestLine, line[0]);
+                    line[0] = 0;
+                    line[1] = 0;
+                    continue;
+                }
+
+                int encodedBytes = getUtf8Length(c);
+
+                bytes += encodedBytes;
+                line[0]++;
+
+                if (c > 0x7f) {
+                    nonAscii++;
+                    line[1] += 3 * encodedBytes;
+                } else if (c == '=' || (c < ' ' && c != '\t')) {
+                    ascii++;
+                    line[1] += 3;
+                } else {
+                    ascii++;
+                    line[1]++;
+                }
+            }
+
+            longestLine = Math.max(longestLine, line[0]);
+        }
+
+        /**
+         * Gets the number of bytes soft line breaks add to a quoted-printable line.
+         *
+         * @param lineBytes Encoded length of the line
+         * @return Returns the bytes added by soft line breaks
+         */
+        private long softBreaks(int lineBytes) {
+            return lineBytes <= QP_LINE_LENGTH ? 0 : 3L * ((lineBytes - 1) / (QP_LINE_LENGTH - 1));
+        }
+
+        /**
+         * Gets the number of bytes a character takes in UTF-8.  Each half of a surrogate pair counts for two.
+         *
+         * @param c Character to check
+         * @return Returns the encoded length
+         */
+        private int getUtf8Length(char c) {
+            if (c < 0x80) {
+                return 1;
+            } else if (c < 0x800 || Character.isSurrogate(c)) {
+                return 2;
+            }
+
+            return 3;
+        }
+
+        /**
+         * Gets the size of the body once encoded, estimated for quoted-printable.
+         *
+         * @param encoding Transfer encoding
+         * @return Returns the size in bytes
+         */
+        long getSize(String encoding) {
+            if (QUOTED_PRINTABLE.equals(encoding)) {
+                return quotedPrintable;
+            } else if (BASE64.equals(encoding)) {
+                long encoded = (bytes + 2) / 3 * 4;
+
+                return encoded + 2 * (encoded / BASE64_LINE_LENGTH);
+            }
+
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.atsid.outlook.pst.message;
+
+import lombok.Getter;
+import org.apache.commons.io.input.CharSequenceReader;
+import org.apache.commons.io.input.ReaderInputStream;
+
+import javax.activation.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Text body made of a short prefix followed by the original message body, such as the list of stripped attachments in
+ * front of the body.  The two parts are kept as they are and only joined while the body is streamed out, so a large
+ * body is never copied into a new string just to put a few lines in front of it.  Used as the
+ * <code>DataSource</code> of a body part for JavaMail and read directly by <code>DirectMimeWriter</code>.
+ */
+@Getter
+public class PrefixedBodyDataSource implements DataSource {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final String prefix;
+    private final String body;
+    private final String mimeType;
+    private final String transferEncoding;
+    private final boolean ascii;
+
+    /**
+     * Creates a new body, leaving the transfer encoding to be picked when it is written.
+     *
+     * @param prefix   Text written in front of the body
+     * @param body     Original message body
+     * @param mimeType MIME type of the body, without charset
+     */
+    public PrefixedBodyDataSource(String prefix, String body, String mimeType) {
+        this(prefix, body, mimeType, null);
+    }
+
+    /**
+     * Creates a new body.
+     *
+     * @param prefix           Text written in front of the body
+     * @param body             Original message body
+     * @param mimeType         MIME type of the body, without charset
+     * @param transferEncoding Transfer encoding to write the body with, or null to pick one when it is written
+     */
+    public PrefixedBodyDataSource(String prefix, String body, String mimeType, String transferEncoding) {
+        this.prefix = prefix == null ? "" : prefix;
+        this.body = body == null ? "" : body;
+        this.mimeType = mimeType;
+        this.transferEncoding = transferEncoding;
+        this.ascii = isAscii(this.prefix) && isAscii(this.body);
+    }
+
+    /**
+     * Gets the charset the body is written in: us-ascii when it allows, UTF-8 otherwise.
+     *
+     * @return Returns the charset of the body
+     */
+    public Charset getCharset() {
+        return ascii ? ASCII : UTF8;
+    }
+
+    @Override
+    public String getContentType() {
+        return mimeType + "; charset=" + (ascii ? "us-ascii" : "UTF-8");
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new SequenceInputStream(new ReaderInputStream(new CharSequenceReader(prefix), getCharset()),
+                new ReaderInputStream(new CharSequenceReader(body), getCharset()));
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Message body is read only");
+    }
+
+    @Override
+    public String getName() {
+        return null;
+    }
+
+    /**
+     * Checks if text only holds ASCII characters.
+     *
+     * @param text Text to check
+     * @return Returns true if every character is ASCII
+     */
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
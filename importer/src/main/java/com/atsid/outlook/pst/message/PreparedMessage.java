@@ -0,0 +1,95 @@
+package com.atsid.outlook.pst.message;
+
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import lombok.Getter;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * A message that has been extracted, converted and labeled and is ready to be uploaded to GMail.  Holds everything the
+ * upload stage needs so it never has to touch the PST file again, and is kept between upload retries so only the
+ * upload is repeated.  While waiting for a retry, a large raw payload can be spooled to disk and read back just before
+ * the next upload.
+ */
+@Getter
+public class PreparedMessage {
+    private final long descriptorNodeId;
+    private final String subject;
+    private final Date deliveryTime;
+    private final String emailAddress;
+    private final Gmail gmailService;
+    private final Message gmailMessage;
+    private File spoolFile;
+
+    /**
+     * Creates a new prepared message.
+     *
+     * @param descriptorNodeId Node ID of the message in the PST file
+     * @param subject          Subject of the original message, used for error logging
+     * @param deliveryTime     Delivery time of the original message, used for error logging
+     * @param emailAddress     Email address of account we are importing into
+     * @param gmailService     GMail service client for the account
+     * @param gmailMessage     Converted and labeled message ready to send
+     */
+    public PreparedMessage(long descriptorNodeId, String subject, Date deliveryTime, String emailAddress,
+                           Gmail gmailService, Message gmailMessage) {
+        this.descriptorNodeId = descriptorNodeId;
+        this.subject = subject;
+        this.deliveryTime = deliveryTime;
+        this.emailAddress = emailAddress;
+        this.gmailService = gmailService;
+        this.gmailMessage = gmailMessage;
+    }
+
+    /**
+     * Moves the raw payload out of memory into a temporary file.  Does nothing if it is already spooled.
+     *
+     * @throws IOException
+     */
+    public synchronized void spool() throws IOException {
+        if (spoolFile == null && gmailMessage.getRaw() != null) {
+            File file = File.createTempFile("pst-import-", ".raw");
+
+            file.deleteOnExit();
+            FileUtils.writeStringToFile(file, gmailMessage.getRaw(), "US-ASCII");
+            gmailMessage.setRaw(null);
+            spoolFile = file;
+        }
+    }
+
+    /**
+     * Reads a spooled raw payload back into the message and deletes the temporary file.  Does nothing if the payload
+     * is not spooled.
+     *
+     * @throws IOException
+     */
+    public synchronized void restore() throws IOException {
+        if (spoolFile != null) {
+            gmailMessage.setRaw(FileUtils.readFileToString(spoolFile, "US-ASCII"));
+            discard();
+        }
+    }
+
+    /**
+     * Deletes the spooled raw payload, if any, once the message is given up on.
+     */
+    public synchronized void discard() {
+        if (spoolFile != null) {
+            FileUtils.deleteQuietly(spoolFile);
+            spoolFile = null;
+        }
+    }
+
+    /**
+     * Checks if the raw payload is currently spooled to disk.
+     *
+     * @return Returns true if the payload is spooled, false otherwise
+     */
+    public synchronized boolean isSpooled() {
+        return spoolFile != null;
+    }
+}
@@ -18,4 +18,19 @@ public interface PstMessageHandler {
      */
     void processEmailMessage(PSTMessage pstMessage, String outputPath, List<String> folderNames,
                              String accountEmailAddress);
+
+    /**
+     * Called by the <code>PstParser</code> before any message is processed with every folder messages may come from,
+     * so anything needed per folder can be set up in one go instead of as each folder's first message arrives.
+     *
+     * @param folderPaths         Lists of names of folders leading up to each folder holding messages
+     * @param accountEmailAddress Email address for account we are processing
+     */
+    void prepareFolders(List<List<String>> folderPaths, String accountEmailAddress);
+
+    /**
+     * Called once the <code>PstParser</code> has walked the whole PST file.  Blocks until any work the handler is still
+     * holding on to has completed.
+     */
+    void finishProcessing();
 }
\ No newline at end of file
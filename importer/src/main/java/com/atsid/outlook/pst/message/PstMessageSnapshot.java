@@ -0,0 +1,178 @@
+package com.atsid.outlook.pst.message;
+
+import com.atsid.outlook.pst.ExtractedAttachments;
+import com.atsid.outlook.pst.catalog.AttachmentCatalog;
+import com.pff.PSTException;
+import com.pff.PSTMessage;
+import com.pff.PSTRecipient;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Immutable copy of everything conversion needs from a <code>PSTMessage</code>.  Every property is decoded from the
+ * PST property tables exactly once, by the thread reading the PST file, after which the <code>PSTMessage</code> can be
+ * let go.  Conversion, labeling and error logging work from the snapshot and never touch the PST file.  Attachments
+ * may still be being written to disk when the snapshot is taken; the list of attachments removed waits for them.
+ */
+@Getter
+public class PstMessageSnapshot {
+    private final long descriptorNodeId;
+    private final String subject;
+    private final String body;
+    private final String bodyHtml;
+    private final String transportMessageHeaders;
+    private final String senderAddrtype;
+    private final String senderEmailAddress;
+    private final Date messageDeliveryTime;
+    private final boolean replied;
+    private final boolean flagged;
+    private final boolean read;
+    private final List<Recipient> recipients;
+    @Getter(AccessLevel.NONE)
+    private final ExtractedAttachments attachmentsRemoved;
+    private final List<KeptAttachment> attachmentsKept;
+
+    /**
+     * Creates a snapshot from properties already read from a message.
+     *
+     * @param pstMessage         Message the properties were read from
+     * @param recipients         Recipients read from the message
+     * @param attachmentsRemoved Attachments that have been stripped from the message
+     * @param attachmentsKept    List of attachments kept in the message
+     */
+    private PstMessageSnapshot(PSTMessage pstMessage, List<Recipient> recipients,
+                               ExtractedAttachments attachmentsRemoved, List<KeptAttachment> attachmentsKept) {
+        Date deliveryTime = pstMessage.getMessageDeliveryTime();
+
+        this.descriptorNodeId = pstMessage.getDescriptorNodeId();
+        this.subject = pstMessage.getSubject();
+        this.body = pstMessage.getBody();
+        this.bodyHtml = pstMessage.getBodyHTML();
+        this.transportMessageHeaders = pstMessage.getTransportMessageHeaders();
+        this.senderAddrtype = pstMessage.getSenderAddrtype();
+        this.senderEmailAddress = pstMessage.getSenderEmailAddress();
+        this.messageDeliveryTime = deliveryTime == null ? null : new Date(deliveryTime.getTime());
+        this.replied = pstMessage.hasReplied();
+        this.flagged = pstMessage.isFlagged();
+        this.read = pstMessage.isRead();
+        this.recipients = Collections.unmodifiableList(recipients);
+
+        this.attachmentsRemoved = attachmentsRemoved;
+
+        if (attachmentsKept == null) {
+            this.attachmentsKept = Collections.emptyList();
+        } else {
+            this.attachmentsKept = Collections.unmodifiableList(new ArrayList<>(attachmentsKept));
+        }
+    }
+
+    /**
+     * Takes a snapshot of a message.  Callers reading from a shared PST file must hold its read lock.
+     *
+     * @param pstMessage         Message to take a snapshot of
+     * @param attachmentsRemoved List of attachments that have been stripped from the message
+     * @return Returns the snapshot
+     * @throws PSTException
+     * @throws IOException
+     */
+    public static PstMessageSnapshot of(PSTMessage pstMessage, List<String> attachmentsRemoved)
+            throws PSTException, IOException {
+        return of(pstMessage, attachmentsRemoved, null);
+    }
+
+    /**
+     * Takes a snapshot of a message along with the attachments kept in it.  Callers reading from a shared PST file
+     * must hold its read lock.
+     *
+     * @param pstMessage         Message to take a snapshot of
+     * @param attachmentsRemoved List of attachments that have been stripped from the message
+     * @param attachmentsKept    List of attachments kept in the message
+     * @return Returns the snapshot
+     * @throws PSTException
+     * @throws IOException
+     */
+    public static PstMessageSnapshot of(PSTMessage pstMessage, List<String> attachmentsRemoved,
+                                        List<KeptAttachment> attachmentsKept) throws PSTException, IOException {
+        return of(pstMessage, new ExtractedAttachments(attachmentsRemoved), attachmentsKept);
+    }
+
+    /**
+     * Takes a snapshot of a message whose attachments may still be being written to disk.  Callers reading from a
+     * shared PST file must hold its read lock.
+     *
+     * @param pstMessage         Message to take a snapshot of
+     * @param attachmentsRemoved Attachments that have been stripped from the message
+     * @param attachmentsKept    List of attachments kept in the message
+     * @return Returns the snapshot
+     * @throws PSTException
+     * @throws IOException
+     */
+    public static PstMessageSnapshot of(PSTMessage pstMessage, ExtractedAttachments attachmentsRemoved,
+                                        List<KeptAttachment> attachmentsKept) throws PSTException, IOException {
+        int numberOfRecipients = pstMessage.getNumberOfRecipients();
+        List<Recipient> recipients = new ArrayList<>(numberOfRecipients);
+
+        for (int i = 0; i < numberOfRecipients; ++i) {
+            PSTRecipient recipient = pstMessage.getRecipient(i);
+
+            recipients.add(new Recipient(recipient.getRecipientType(), recipient.getSmtpAddress()));
+        }
+
+        return new PstMessageSnapshot(pstMessage, recipients, attachmentsRemoved, attachmentsKept);
+    }
+
+    /**
+     * Gets the list of attachments stripped from the message, waiting for any still being written to disk.
+     *
+     * @return Returns the list of attachments written to disk
+     */
+    public List<String> getAttachmentsRemoved() {
+        return attachmentsRemoved.await();
+    }
+
+    /**
+     * Adds the attachments stripped from the message to the attachment catalog, waiting for any still being written to
+     * disk.  Attachments are only added the first time this is called.
+     *
+     * @param catalog     Catalog to add the attachments to
+     * @param folderNames List of names of folders leading up to where the message was found
+     */
+    public void catalogAttachmentsRemoved(AttachmentCatalog catalog, List<String> folderNames) {
+        attachmentsRemoved.catalog(catalog, folderNames, messageDeliveryTime);
+    }
+
+    /**
+     * Checks if the message has an HTML body.
+     *
+     * @return Returns true if there is an HTML body, false otherwise
+     */
+    public boolean hasBodyHtml() {
+        return bodyHtml != null && !bodyHtml.isEmpty();
+    }
+
+    /**
+     * Recipient of a message, as read from a <code>PSTRecipient</code>.
+     */
+    @Getter
+    public static class Recipient {
+        private final int recipientType;
+        private final String smtpAddress;
+
+        /**
+         * Creates a new recipient.
+         *
+         * @param recipientType One of the <code>PSTRecipient</code> MAPI_TO, MAPI_CC or MAPI_BCC constants
+         * @param smtpAddress   SMTP address of the recipient
+         */
+        public Recipient(int recipientType, String smtpAddress) {
+            this.recipientType = recipientType;
+            this.smtpAddress = smtpAddress;
+        }
+    }
+}
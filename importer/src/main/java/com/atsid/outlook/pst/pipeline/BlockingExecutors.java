@@ -0,0 +1,68 @@
+package com.atsid.outlook.pst.pipeline;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.log4j.Log4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates fixed size executors backed by bounded queues.  When the queue is full the submitting thread blocks until
+ * space frees up, which gives each pipeline stage backpressure against the stage feeding it.
+ */
+@Log4j
+public final class BlockingExecutors {
+    private BlockingExecutors() {
+    }
+
+    /**
+     * Creates a new fixed size executor whose <code>execute</code> blocks while its queue is full.
+     *
+     * @param name          Name used for the worker threads
+     * @param threads       Number of worker threads
+     * @param queueCapacity Maximum number of tasks waiting to run
+     * @return Returns a new bounded executor
+     */
+    public static ExecutorService newBoundedPool(String name, int threads, int queueCapacity) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build(),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException("Executor has been shut down");
+                        }
+
+                        try {
+                            executor.getQueue().put(task);
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException("Interrupted while waiting for queue space", ie);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Stops accepting new tasks and waits for every queued task to finish.
+     *
+     * @param executor Executor to drain
+     */
+    public static void drain(ExecutorService executor) {
+        executor.shutdown();
+
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.debug("Still waiting for executor to drain");
+            }
+        } catch (InterruptedException ie) {
+            log.error("Interrupted while waiting for executor to drain");
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.atsid.outlook.pst.pipeline;
+
+import com.atsid.outlook.pst.folder.FolderPath;
+import com.atsid.outlook.pst.message.GmailImportingPstMessageHandler;
+import com.atsid.outlook.pst.message.PreparedMessage;
+import com.atsid.outlook.pst.message.PstMessageHandler;
+import com.atsid.outlook.pst.message.PstMessageSnapshot;
+import com.atsid.outlook.pst.retry.RetryScheduler;
+import com.pff.PSTMessage;
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Staged import pipeline that sits behind <code>PstParser.processPst</code>.  The thread walking the PST file acts as
+ * the reader stage: it extracts attachments and takes a snapshot of each message, then hands the snapshot to a pool of
+ * conversion workers, which convert and label the message without touching the PST file before passing it on to a
+ * pool of upload workers.  Stages are connected by bounded queues so a slow stage pushes back on the stage feeding
+ * it.  A message that fails in a stage is handed to the retry scheduler, which puts it back on the same stage after a
+ * backoff while the workers carry on with other messages.
+ */
+@Component
+@Scope("prototype")
+@Log4j
+public class ImportPipeline implements PstMessageHandler {
+    @Autowired
+    private GmailImportingPstMessageHandler messageHandler;
+    @Autowired
+    private RetryScheduler retryScheduler;
+    @Value("${pipeline.conversion.threads}")
+    private int conversionThreads;
+    @Value("${pipeline.upload.threads}")
+    private int uploadThreads;
+    @Value("${pipeline.queue.capacity}")
+    private int queueCapacity;
+    private ExecutorService conversionStage;
+    private ExecutorService uploadStage;
+    private int tasksOutstanding;
+
+    /**
+     * Helper method called after spring injects properties to create the worker pools for each stage.
+     */
+    @PostConstruct
+    private void createStages() {
+        conversionStage = BlockingExecutors.newBoundedPool("pipeline-convert", conversionThreads, queueCapacity);
+        uploadStage = BlockingExecutors.newBoundedPool("pipeline-upload", uploadThreads, queueCapacity);
+    }
+
+    @Override
+    public void processEmailMessage(final PSTMessage pstMessage, final String outputPath, List<String> folderNames,
+                                    final String accountEmailAddress) {
+        final List<String> folderPath = FolderPath.of(folderNames);
+        final PstMessageSnapshot snapshot;
+
+        try {
+            snapshot = messageHandler.readMessage(pstMessage, outputPath);
+        } catch (Exception ex) {
+            long descriptorNodeId = pstMessage.getDescriptorNodeId();
+
+            messageHandler.logMessageFailure(pstMessage, accountEmailAddress,
+                    retryScheduler.getRetryCount(descriptorNodeId), ex);
+            retryLater(descriptorNodeId, conversionStage, new Runnable() {
+                @Override
+                public void run() {
+                    readAndConvertMessage(pstMessage, outputPath, folderPath, accountEmailAddress);
+                }
+            });
+            return;
+        }
+
+        submit(conversionStage, new Runnable() {
+            @Override
+            public void run() {
+                convertMessage(snapshot, outputPath, folderPath, accountEmailAddress);
+            }
+        });
+    }
+
+    @Override
+    public void prepareFolders(List<List<String>> folderPaths, String accountEmailAddress) {
+        messageHandler.prepareFolders(folderPaths, accountEmailAddress);
+    }
+
+    @Override
+    public void finishProcessing() {
+        awaitIdle();
+        BlockingExecutors.drain(conversionStage);
+        BlockingExecutors.drain(uploadStage);
+        messageHandler.finishProcessing();
+        log.info("Import pipeline drained");
+    }
+
+    /**
+     * Conversion stage task for a message that could not be read by the reader stage.  Reads it again and converts it
+     * on this thread, scheduling another retry on failure.
+     *
+     * @param pstMessage   PST Message to read
+     * @param outputPath   Full path to output location where we can dump content
+     * @param folderNames  List of names of folders leading up to where this message was found
+     * @param emailAddress Email address for account we are processing
+     */
+    private void readAndConvertMessage(final PSTMessage pstMessage, final String outputPath,
+                                       final List<String> folderNames, final String emailAddress) {
+        PstMessageSnapshot snapshot;
+
+        try {
+            snapshot = messageHandler.readMessage(pstMessage, outputPath);
+        } catch (Exception ex) {
+            long descriptorNodeId = pstMessage.getDescriptorNodeId();
+
+            messageHandler.logMessageFailure(pstMessage, emailAddress, retryScheduler.getRetryCount(descriptorNodeId),
+                    ex);
+            retryLater(descriptorNodeId, conversionStage, new Runnable() {
+                @Override
+                public void run() {
+                    readAndConvertMessage(pstMessage, outputPath, folderNames, emailAddress);
+                }
+            });
+            return;
+        }
+
+        convertMessage(snapshot, outputPath, folderNames, emailAddress);
+    }
+
+    /**
+     * Conversion stage task.  Prepares the message and queues it for upload, scheduling a retry on failure.
+     *
+     * @param snapshot     Snapshot of the PST Message to convert
+     * @param outputPath   Full path to output location where we can dump content
+     * @param folderNames  List of names of folders leading up to where this message was found
+     * @param emailAddress Email address for account we are processing
+     */
+    private void convertMessage(final PstMessageSnapshot snapshot, final String outputPath,
+                                final List<String> folderNames, final String emailAddress) {
+        try {
+            final PreparedMessage preparedMessage =
+                    messageHandler.prepareMessage(snapshot, outputPath, folderNames, emailAddress);
+
+            submit(uploadStage, new Runnable() {
+                @Override
+                public void run() {
+                    uploadMessage(preparedMessage);
+                }
+            });
+        } catch (Exception ex) {
+            long descriptorNodeId = snapshot.getDescriptorNodeId();
+
+            messageHandler.logMessageFailure(snapshot, emailAddress, retryScheduler.getRetryCount(descriptorNodeId),
+                    ex);
+            retryLater(descriptorNodeId, conversionStage, new Runnable() {
+                @Override
+                public void run() {
+                    convertMessage(snapshot, outputPath, folderNames, emailAddress);
+                }
+            });
+        }
+    }
+
+    /**
+     * Upload stage task.  Sends the prepared message, scheduling a retry of only the upload on failure.  The prepared
+     * payload is kept for the retry, spooled to disk if it is large.
+     *
+     * @param preparedMessage Message to upload
+     */
+    private void uploadMessage(final PreparedMessage preparedMessage) {
+        try {
+            messageHandler.uploadMessage(preparedMessage);
+        } catch (Exception ex) {
+            long descriptorNodeId = preparedMessage.getDescriptorNodeId();
+
+            messageHandler.logMessageFailure(preparedMessage, retryScheduler.getRetryCount(descriptorNodeId), ex);
+            messageHandler.holdForRetry(preparedMessage);
+
+            boolean scheduled = retryLater(descriptorNodeId, uploadStage, new Runnable() {
+                @Override
+                public void run() {
+                    uploadMessage(preparedMessage);
+                }
+            });
+
+            if (!scheduled) {
+                preparedMessage.discard();
+            }
+        }
+    }
+
+    /**
+     * Runs a task on a stage, counting it as outstanding until it finishes.
+     *
+     * @param stage Stage to run the task on
+     * @param task  Task to run
+     */
+    private void submit(ExecutorService stage, final Runnable task) {
+        taskStarted();
+
+        try {
+            stage.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        taskFinished();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            taskFinished();
+            throw ree;
+        }
+    }
+
+    /**
+     * Asks the retry scheduler to put a task back on a stage after a backoff.  The retry counts as outstanding until it
+     * has been put back on the stage.
+     *
+     * @param descriptorNodeId Node ID of the message being retried
+     * @param stage            Stage to run the task on
+     * @param task             Task to retry
+     * @return Returns true if the retry was scheduled, false if max retries have been reached
+     */
+    private boolean retryLater(long descriptorNodeId, final ExecutorService stage, final Runnable task) {
+        taskStarted();
+
+        boolean scheduled = retryScheduler.schedule(descriptorNodeId, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    submit(stage, task);
+                } finally {
+                    taskFinished();
+                }
+            }
+        });
+
+        if (!scheduled) {
+            taskFinished();
+        }
+
+        return scheduled;
+    }
+
+    /**
+     * Counts a task as outstanding.
+     */
+    private synchronized void taskStarted() {
+        ++tasksOutstanding;
+    }
+
+    /**
+     * Counts an outstanding task as finished and wakes up anyone waiting for the pipeline to go idle.
+     */
+    private synchronized void taskFinished() {
+        --tasksOutstanding;
+        notifyAll();
+    }
+
+    /**
+     * Waits until no task is queued, running or waiting to be retried in any stage.
+     */
+    private synchronized void awaitIdle() {
+        while (tasksOutstanding > 0) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                log.error("Interrupted while waiting for import pipeline to go idle");
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
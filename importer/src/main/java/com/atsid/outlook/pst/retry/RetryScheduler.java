@@ -0,0 +1,153 @@
+package com.atsid.outlook.pst.retry;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.log4j.Log4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs retries of failed messages after a delay without holding up the threads that are still importing.  The delay
+ * doubles with each retry of a message, starting at import.retry.backoff.ms and capped at import.retry.backoff.max.ms,
+ * with up to half of it randomized so messages that failed together do not all retry together.  Retry counts are kept
+ * per message; once a message has been retried import.retry.count times it is given up on.
+ */
+@Component
+@Log4j
+public class RetryScheduler {
+    @Value("${import.retry.count}")
+    private int retryCount;
+    @Value("${import.retry.backoff.ms}")
+    private long retryBackoff;
+    @Value("${import.retry.backoff.max.ms}")
+    private long maxRetryBackoff;
+    @Value("${import.retry.threads}")
+    private int retryThreads;
+    private final Map<Long, Integer> retryCounts = new HashMap<>();
+    private final Random random = new Random();
+    private ScheduledExecutorService executor;
+    private int retriesOutstanding;
+
+    /**
+     * Helper method called after spring injects properties to create the retry executor.
+     */
+    @PostConstruct
+    private void createExecutor() {
+        executor = Executors.newScheduledThreadPool(retryThreads,
+                new ThreadFactoryBuilder().setNameFormat("import-retry-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Gets the number of times a message has been retried so far.
+     *
+     * @param descriptorNodeId Node ID of the message in the PST file
+     * @return Returns the number of retries scheduled for the message
+     */
+    public synchronized int getRetryCount(long descriptorNodeId) {
+        Integer count = retryCounts.get(descriptorNodeId);
+
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Schedules another attempt at a failed message, unless it has already been retried import.retry.count times.
+     *
+     * @param descriptorNodeId Node ID of the message in the PST file
+     * @param task             Task that retries the message
+     * @return Returns true if the retry was scheduled, false if max retries have been reached
+     */
+    public boolean schedule(long descriptorNodeId, final Runnable task) {
+        long delay;
+
+        synchronized (this) {
+            int count = getRetryCount(descriptorNodeId) + 1;
+
+            if (count > retryCount) {
+                retryCounts.remove(descriptorNodeId);
+                log.error(String.format("Max retries reached for message %d, will not try again", descriptorNodeId));
+
+                return false;
+            }
+
+            retryCounts.put(descriptorNodeId, count);
+            ++retriesOutstanding;
+            delay = getBackoff(count);
+        }
+
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException re) {
+                    log.error("Caught runtime exception while retrying message", re);
+                } finally {
+                    retryFinished();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+        return true;
+    }
+
+    /**
+     * Forgets the retry count for a message once it has gone through.
+     *
+     * @param descriptorNodeId Node ID of the message in the PST file
+     */
+    public synchronized void succeeded(long descriptorNodeId) {
+        retryCounts.remove(descriptorNodeId);
+    }
+
+    /**
+     * Waits until every scheduled retry has run.  Retries scheduled by those retries are waited for as well.
+     */
+    public synchronized void awaitIdle() {
+        while (retriesOutstanding > 0) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                log.error("Interrupted while waiting for retries to finish");
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops the retry executor when the application shuts down.
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Counts a scheduled retry as finished and wakes up anyone waiting for retries to finish.
+     */
+    private synchronized void retryFinished() {
+        --retriesOutstanding;
+        notifyAll();
+    }
+
+    /**
+     * Works out how long to wait before a retry: exponential backoff with the upper half randomized.
+     *
+     * @param retry Retry number, starting at 1
+     * @return Returns the delay in ms
+     */
+    private long getBackoff(int retry) {
+        long backoff = Math.min(maxRetryBackoff, retryBackoff << Math.min(retry - 1, 20));
+        long half = backoff / 2;
+
+        return half + (long) (random.nextDouble() * (backoff - half));
+    }
+}
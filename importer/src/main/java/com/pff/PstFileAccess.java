@@ -0,0 +1,65 @@
+package com.pff;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+
+/**
+ * Exposes pieces of java-libpst that are package-private but needed by the importer.  This class lives in the
+ * <code>com.pff</code> package so it can reach them without reflection.
+ */
+public final class PstFileAccess {
+    private PstFileAccess() {
+    }
+
+    /**
+     * Gets the object whose monitor guards reads against the PST file a <code>PSTObject</code> was loaded from.
+     * java-libpst shares a single <code>RandomAccessFile</code> per <code>PSTFile</code>, so every thread touching
+     * objects from the same file must synchronize on this lock.
+     *
+     * @param pstObject Object loaded from a PST file
+     * @return Returns the owning <code>PSTFile</code>, or the object itself if it is not attached to a file
+     */
+    public static Object getReadLock(PSTObject pstObject) {
+        return pstObject.pstFile != null ? pstObject.pstFile : pstObject;
+    }
+
+    /**
+     * Swaps the file handle a <code>PSTFile</code> reads through, closing the original handle.  The handle is a
+     * private field of <code>PSTFile</code>, so this has to go through reflection.
+     *
+     * @param pstFile    PST file to update
+     * @param fileHandle New handle opened on the same file
+     * @throws IOException Throws if the original handle cannot be closed
+     */
+    public static void replaceFileHandle(PSTFile pstFile, RandomAccessFile fileHandle) throws IOException {
+        try {
+            Field field = PSTFile.class.getDeclaredField("in");
+
+            field.setAccessible(true);
+
+            RandomAccessFile original = (RandomAccessFile) field.get(pstFile);
+
+            field.set(pstFile, fileHandle);
+            original.close();
+        } catch (NoSuchFieldException | IllegalAccessException ex) {
+            throw new IllegalStateException("Cannot replace file handle on this version of java-libpst", ex);
+        }
+    }
+
+    /**
+     * Looks up the file offset of a descriptor's data block through the descriptor and offset indexes, without loading
+     * the object itself.
+     *
+     * @param pstFile      PST file to look in
+     * @param descriptorId Descriptor id to look up
+     * @return Returns the offset in the file where the descriptor's data block starts
+     * @throws IOException
+     * @throws PSTException
+     */
+    public static long getDataOffset(PSTFile pstFile, long descriptorId) throws IOException, PSTException {
+        DescriptorIndexNode descriptorNode = pstFile.getDescriptorIndexNode(descriptorId);
+
+        return pstFile.getOffsetIndexNode(descriptorNode.dataOffsetIndexIdentifier).fileOffset;
+    }
+}
@@ -1,5 +1,6 @@
 package com.atsid.outlook.pst;
 
+import com.atsid.outlook.pst.message.KeptAttachment;
 import com.google.common.io.Files;
 import com.pff.PSTAttachment;
 import com.pff.PSTException;
@@ -22,6 +23,7 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 @RunWith(SpringJUnit4ClassRunner.class)
@@ -30,6 +32,8 @@ public class TestAttachmentExtractor {
     @Mock
     private AttachmentLogger mockLogger;
     @Mock
+    private AttachmentRules mockRules;
+    @Mock
     private PSTMessage mockMessage;
     @Mock
     private PSTAttachment mockAttachment;
@@ -63,7 +67,7 @@ public class TestAttachmentExtractor {
         Mockito.when(mockAttachment.getLongFilename()).thenReturn("test-file.txt");
         Mockito.when(mockAttachment.getDisplayName()).thenReturn("test-file");
 
-        extractor.extractAttachments(mockMessage, tmpDir.getAbsolutePath());
+        extractor.extractAttachments(mockMessage, tmpDir.getAbsolutePath(), new ArrayList<KeptAttachment>());
 
         Mockito.verify(mockMessage).getAttachment(Mockito.eq(0));
         Mockito.verify(mockAttachment).getFileInputStream();
@@ -77,7 +81,7 @@ public class TestAttachmentExtractor {
         Mockito.when(mockMessage.getNumberOfAttachments()).thenReturn(0);
         Mockito.when(mockMessage.getDescriptorNodeId()).thenReturn(1L);
 
-        extractor.extractAttachments(mockMessage, tmpDir.getAbsolutePath());
+        extractor.extractAttachments(mockMessage, tmpDir.getAbsolutePath(), new ArrayList<KeptAttachment>());
 
         Mockito.verify(mockMessage).getDescriptorNodeId();
         Mockito.verify(mockMessage).getNumberOfAttachments();
@@ -95,7 +99,9 @@ public class TestAttachmentExtractor {
         Mockito.when(mockAttachment.getLongFilename()).thenReturn("test-file.txt");
         Mockito.when(mockAttachment.getDisplayName()).thenReturn("test-file");
 
-        List<String> attachments = extractor.extractAttachments(mockMessage, tmpDir.getAbsolutePath());
+        List<String> attachments =
+                extractor.extractAttachments(mockMessage, tmpDir.getAbsolutePath(), new ArrayList<KeptAttachment>())
+                         .await();
 
         Mockito.verify(mockMessage).getAttachment(Mockito.eq(0));
         Mockito.verify(mockAttachment).getFileInputStream();
@@ -109,4 +115,30 @@ public class TestAttachmentExtractor {
         Assert.assertEquals(1, attachments.size());
         Assert.assertTrue(attachments.contains("1" + File.separator + "test-file.txt"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testExtractAttachmentKept() throws PSTException, IOException {
+        List<KeptAttachment> keptAttachments = new ArrayList<>();
+        Mockito.when(mockMessage.getNumberOfAttachments()).thenReturn(1);
+        Mockito.when(mockMessage.getAttachment(0)).thenReturn(mockAttachment);
+        Mockito.when(mockMessage.getDescriptorNodeId()).thenReturn(1L);
+        Mockito.when(mockAttachment.getFileInputStream()).thenReturn(inputStream);
+        Mockito.when(mockAttachment.getLongFilename()).thenReturn("test-file.txt");
+        Mockito.when(mockAttachment.getMimeTag()).thenReturn("text/plain");
+        Mockito.when(mockAttachment.getContentId()).thenReturn("image001@01");
+        Mockito.when(mockRules.shouldKeep(mockAttachment)).thenReturn(true);
+        Mockito.when(mockRules.getMimeType("text/plain", "test-file.txt")).thenReturn("text/plain");
+
+        List<String> attachments =
+                extractor.extractAttachments(mockMessage, tmpDir.getAbsolutePath(), keptAttachments).await();
+
+        Mockito.verifyZeroInteractions(mockLogger);
+        Assert.assertTrue(attachments.isEmpty());
+        Assert.assertFalse(new File(tmpDir.getAbsoluteFile() + File.separator + "1").exists());
+        Assert.assertEquals(1, keptAttachments.size());
+        Assert.assertEquals("test-file.txt", keptAttachments.get(0).getFileName());
+        Assert.assertEquals("text/plain", keptAttachments.get(0).getMimeType());
+        Assert.assertEquals("<image001@01>", keptAttachments.get(0).getContentIdHeader());
+        Assert.assertEquals("This is a test", new String(keptAttachments.get(0).getData(), "UTF-8"));
+    }
+}
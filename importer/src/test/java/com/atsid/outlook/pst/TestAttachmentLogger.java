@@ -0,0 +1,103 @@
+package com.atsid.outlook.pst;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestAttachmentLogger {
+    private AttachmentLogger attachmentLogger;
+    private File tmpDir;
+
+    @Before
+    public void setup() {
+        attachmentLogger = new AttachmentLogger();
+        ReflectionTestUtils.setField(attachmentLogger, "flushInterval", 60000L);
+        ReflectionTestUtils.setField(attachmentLogger, "batchSize", 1000);
+        ReflectionTestUtils.invokeMethod(attachmentLogger, "createExecutor");
+        tmpDir = Files.createTempDir();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        attachmentLogger.shutdown();
+        FileUtils.deleteDirectory(tmpDir);
+    }
+
+    @Test
+    public void testLog() throws Exception {
+        attachmentLogger.logAttachmentRemoved(1L, "a.txt", "A", tmpDir.getAbsolutePath());
+        attachmentLogger.logAttachmentError(1L, "b.txt", "B", tmpDir.getAbsolutePath(), new IOException("failed"));
+        attachmentLogger.logSenderError(2L, tmpDir.getAbsolutePath(), "sender");
+
+        Assert.assertFalse(new File(tmpDir, "attachments.log").exists());
+
+        attachmentLogger.flush();
+        attachmentLogger.logAttachmentRemoved(3L, "c.txt", "C", tmpDir.getAbsolutePath());
+        attachmentLogger.flush();
+
+        List<String> attachmentLines = FileUtils.readLines(new File(tmpDir, "attachments.log"));
+        List<String> errorLines = FileUtils.readLines(new File(tmpDir, "error.log"));
+
+        Assert.assertEquals(2, attachmentLines.size());
+        Assert.assertEquals("Extracted attachment a.txt (A) from email 1", attachmentLines.get(0));
+        Assert.assertEquals("Extracted attachment c.txt (C) from email 3", attachmentLines.get(1));
+        Assert.assertEquals(2, errorLines.size());
+        Assert.assertEquals("Error extracting attachment from b.txt (B) from email 1 with error failed",
+                errorLines.get(0));
+        Assert.assertEquals("Could not resolve sender sender to proper email address in email with id 2",
+                errorLines.get(1));
+    }
+
+    @Test
+    public void testLogAfterShutdown() throws Exception {
+        ReflectionTestUtils.setField(attachmentLogger, "batchSize", 1);
+        attachmentLogger.shutdown();
+
+        attachmentLogger.logAttachmentRemoved(1L, "a.txt", "A", tmpDir.getAbsolutePath());
+        attachmentLogger.shutdown();
+
+        Assert.assertEquals(Arrays.asList("Extracted attachment a.txt (A) from email 1"),
+                FileUtils.readLines(new File(tmpDir, "attachments.log")));
+    }
+
+    @Test
+    public void testLogBatchFull() throws Exception {
+        ReflectionTestUtils.setField(attachmentLogger, "batchSize", 2);
+
+        attachmentLogger.logAttachmentRemoved(1L, "a.txt", "A", tmpDir.getAbsolutePath());
+        attachmentLogger.logAttachmentRemoved(1L, "b.txt", "B", tmpDir.getAbsolutePath());
+
+        File attachmentLog = new File(tmpDir, "attachments.log");
+
+        for (int i = 0; i < 50 && (!attachmentLog.exists() || FileUtils.readLines(attachmentLog).size() < 2); i++) {
+            Thread.sleep(100);
+        }
+
+        Assert.assertEquals(2, FileUtils.readLines(attachmentLog).size());
+    }
+
+    @Test
+    public void testLogJson() throws Exception {
+        ReflectionTestUtils.setField(attachmentLogger, "jsonEnabled", true);
+
+        attachmentLogger.logAttachmentRemoved(1L, "a.txt", "A", tmpDir.getAbsolutePath());
+        attachmentLogger.logSenderError(2L, tmpDir.getAbsolutePath(), "sender \"quoted\"");
+        attachmentLogger.flush();
+
+        String attachmentLine = FileUtils.readLines(new File(tmpDir, "attachments.jsonl")).get(0);
+        String errorLine = FileUtils.readLines(new File(tmpDir, "error.jsonl")).get(0);
+
+        Assert.assertTrue(attachmentLine.contains("\"type\":\"attachmentRemoved\",\"emailId\":1"));
+        Assert.assertTrue(attachmentLine.contains("\"fileName\":\"a.txt\""));
+        Assert.assertTrue(errorLine.contains("\"sender\":\"sender \\\"quoted\\\"\""));
+    }
+}
@@ -0,0 +1,46 @@
+package com.atsid.outlook.pst;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class TestAttachmentRules {
+    private AttachmentRules attachmentRules;
+
+    @Before
+    public void setup() {
+        attachmentRules = new AttachmentRules();
+        ReflectionTestUtils.setField(attachmentRules, "maxSize", 1024L);
+        ReflectionTestUtils.setField(attachmentRules, "keepInline", true);
+        ReflectionTestUtils.setField(attachmentRules, "mimeTypeString", "image/*, application/pdf");
+        ReflectionTestUtils.setField(attachmentRules, "extensionString", ".ics,vcf");
+        ReflectionTestUtils.invokeMethod(attachmentRules, "createLists");
+    }
+
+    @Test
+    public void testShouldKeep() {
+        Assert.assertTrue(attachmentRules.shouldKeep("logo.png", "image/png", null, 512));
+        Assert.assertTrue(attachmentRules.shouldKeep("report.pdf", "application/pdf", null, 1024));
+        Assert.assertTrue(attachmentRules.shouldKeep("invite.ICS", "application/octet-stream", null, 100));
+        Assert.assertTrue(attachmentRules.shouldKeep("card.vcf", "text/x-vcard", null, 100));
+        Assert.assertTrue(attachmentRules.shouldKeep("image001.bmp", "image/bmp", "image001@01", 100));
+        Assert.assertFalse(attachmentRules.shouldKeep("notes.doc", "application/msword", null, 100));
+        Assert.assertFalse(attachmentRules.shouldKeep("photo.jpg", "image/jpeg", "photo@01", 2048));
+    }
+
+    @Test
+    public void testShouldKeepDisabled() {
+        ReflectionTestUtils.setField(attachmentRules, "maxSize", 0L);
+
+        Assert.assertFalse(attachmentRules.shouldKeep("logo.png", "image/png", "logo@01", 0));
+    }
+
+    @Test
+    public void testGetMimeType() {
+        Assert.assertEquals("image/png", attachmentRules.getMimeType("IMAGE/PNG; name=logo.png", "logo.png"));
+        Assert.assertEquals("image/gif", attachmentRules.getMimeType(null, "logo.gif"));
+        Assert.assertEquals("image/jpeg", attachmentRules.getMimeType("not a mime type", "photo.jpg"));
+        Assert.assertEquals("application/octet-stream", attachmentRules.getMimeType("", ""));
+    }
+}
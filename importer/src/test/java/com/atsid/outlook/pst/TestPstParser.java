@@ -0,0 +1,341 @@
+package com.atsid.outlook.pst;
+
+import com.atsid.outlook.app.ProgressUpdate;
+import com.atsid.outlook.pst.folder.PstMessageCleaningGmailImportingFolderHandler;
+import com.atsid.outlook.pst.io.PstFileFactory;
+import com.atsid.outlook.pst.journal.ImportJournal;
+import com.pff.PSTException;
+import com.pff.PSTFile;
+import com.pff.PSTFolder;
+import com.pff.PstFileMocks;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestPstParser {
+    private static final String PST_FILE = "test.pst";
+    @Mock
+    private PstFileFactory mockPstFileFactory;
+    @Mock
+    private ImportJournal mockJournal;
+    @Mock
+    private PstMessageCleaningGmailImportingFolderHandler mockFolderHandler;
+    @Mock
+    private ProgressUpdate mockProgressUpdate;
+    @Mock
+    private PSTFile mockPstFile;
+    private PstParser parser;
+    private List<String> readMessages;
+
+    /**
+     * Builds a folder tree where the root and "Top of Information Store" add no label, Inbox holds a Projects
+     * subfolder, and Deleted Items is ignored:
+     * <pre>
+     * Inbox          11, 12, 13
+     * Inbox/Projects 41, 42, 43, 44, 45
+     * Sent           21, 22
+     * Deleted Items  31
+     * </pre>
+     */
+    @Before
+    public void setup() throws IOException, PSTException {
+        MockitoAnnotations.initMocks(this);
+        parser = new PstParser();
+        readMessages = Collections.synchronizedList(new ArrayList<String>());
+        ReflectionTestUtils.setField(parser, "pstFileFactory", mockPstFileFactory);
+        ReflectionTestUtils.setField(parser, "journal", mockJournal);
+        ReflectionTestUtils.setField(parser, "ignoredFolders", Arrays.asList("Deleted Items", "Calendar"));
+        ReflectionTestUtils.setField(parser, "readerThreads", 1);
+        ReflectionTestUtils.setField(parser, "sliceSize", 2);
+        ReflectionTestUtils.setField(parser, "readerOrder", "folder");
+
+        PSTFolder projects = mockFolder("Projects", new Integer[] { 41, 42, 43, 44, 45 });
+        PSTFolder inbox = mockFolder("Inbox", new Integer[] { 11, 12, 13 }, projects);
+        PSTFolder sent = mockFolder("Sent", new Integer[] { 21, 22 });
+        PSTFolder deleted = mockFolder("Deleted Items", new Integer[] { 31 });
+        PSTFolder store = mockFolder("Top of Information Store", new Integer[0], inbox, sent, deleted);
+        PSTFolder root = mockFolder("", new Integer[0], store);
+
+        Mockito.when(mockPstFile.getRootFolder()).thenReturn(root);
+
+        // Every message reads as already uploaded, so readers record what they were given without loading anything
+        Mockito.when(mockJournal.isUploaded(Mockito.anyLong())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                readMessages.add(Thread.currentThread().getName() + ":" + invocation.getArguments()[0]);
+                return true;
+            }
+        });
+    }
+
+    @Test
+    public void testCollectMessageSlicesFolderOrder() {
+        List<PstMessageSlice> slices = collectMessageSlices();
+        Map<Integer, List<String>> folderNames = getFolderNames(slices);
+
+        Assert.assertEquals(Arrays.asList(41, 42, 43, 44, 45, 11, 12, 13, 21, 22), getDescriptorIds(slices));
+        Assert.assertEquals(10, folderNames.size());
+        Assert.assertEquals(Arrays.asList("Inbox", "Projects"), folderNames.get(41));
+        Assert.assertEquals(Arrays.asList("Inbox", "Projects"), folderNames.get(45));
+        Assert.assertEquals(Arrays.asList("Inbox"), folderNames.get(11));
+        Assert.assertEquals(Arrays.asList("Inbox"), folderNames.get(13));
+        Assert.assertEquals(Arrays.asList("Sent"), folderNames.get(22));
+        Assert.assertFalse(folderNames.containsKey(31));
+
+        int previousScheduleSize = Integer.MAX_VALUE;
+
+        for (PstMessageSlice slice : slices) {
+            Assert.assertTrue(slice.getMessages().size() <= 2);
+            Assert.assertTrue(slice.getScheduleSize() <= previousScheduleSize);
+            Assert.assertEquals(1, new HashSet<>(getFolderNames(Arrays.asList(slice)).values()).size());
+            previousScheduleSize = slice.getScheduleSize();
+        }
+    }
+
+    @Test
+    public void testCollectMessageSlicesOffsetOrder() throws IOException, PSTException {
+        ReflectionTestUtils.setField(parser, "readerOrder", "offset");
+        stubDataOffsets();
+
+        List<PstMessageSlice> slices = collectMessageSlices();
+        Map<Integer, List<String>> folderNames = getFolderNames(slices);
+        long previousOffset = -1;
+
+        Assert.assertEquals(Arrays.asList(21, 41, 11, 42, 22, 12, 43, 13, 44, 45), getDescriptorIds(slices));
+        Assert.assertEquals(Arrays.asList("Inbox", "Projects"), folderNames.get(41));
+        Assert.assertEquals(Arrays.asList("Inbox"), folderNames.get(11));
+        Assert.assertEquals(Arrays.asList("Sent"), folderNames.get(21));
+
+        for (PstMessageSlice slice : slices) {
+            Assert.assertTrue(slice.getMessages().size() <= 2);
+
+            for (PstMessageRef message : slice.getMessages()) {
+                Assert.assertTrue(message.getDataOffset() >= previousOffset);
+                previousOffset = message.getDataOffset();
+            }
+        }
+
+        // Message 45 has no data offset, so it sorts last
+        Assert.assertEquals(Long.MAX_VALUE, previousOffset);
+    }
+
+    @Test
+    public void testProcessPstSlicesOffsetOrder() throws IOException, PSTException {
+        ReflectionTestUtils.setField(parser, "readerOrder", "offset");
+        stubDataOffsets();
+
+        processPstSlices(new ArrayList<>(Arrays.asList(mockPstFile)));
+
+        List<String> expected = new ArrayList<>();
+
+        for (int descriptorId : new int[] { 21, 41, 11, 42, 22, 12, 43, 13, 44, 45 }) {
+            expected.add(Thread.currentThread().getName() + ":" + descriptorId);
+        }
+
+        Assert.assertEquals(expected, readMessages);
+        Mockito.verify(mockFolderHandler, Mockito.times(10)).skipMessage();
+        Mockito.verifyZeroInteractions(mockPstFileFactory);
+    }
+
+    @Test
+    public void testProcessPstSlicesMultipleReaders() throws IOException, PSTException {
+        List<PSTFile> openHandles = new ArrayList<>(Arrays.asList(mockPstFile));
+
+        ReflectionTestUtils.setField(parser, "readerThreads", 3);
+        Mockito.when(mockPstFileFactory.openPstFile(PST_FILE))
+               .thenReturn(Mockito.mock(PSTFile.class), Mockito.mock(PSTFile.class));
+
+        processPstSlices(openHandles);
+
+        Map<Integer, String> readers = new HashMap<>();
+
+        for (String readMessage : readMessages) {
+            String[] parts = readMessage.split(":");
+
+            Assert.assertNull("Read more than once: " + parts[1], readers.put(Integer.valueOf(parts[1]), parts[0]));
+        }
+
+        Assert.assertEquals(10, readers.size());
+
+        // Each slice is read by a single reader in order
+        for (PstMessageSlice slice : collectMessageSlices()) {
+            List<Integer> descriptorIds = getDescriptorIds(Arrays.asList(slice));
+            String reader = readers.get(descriptorIds.get(0));
+            int previousIndex = -1;
+
+            for (int descriptorId : descriptorIds) {
+                int index = readMessages.indexOf(reader + ":" + descriptorId);
+
+                Assert.assertTrue(index > previousIndex);
+                previousIndex = index;
+            }
+        }
+
+        Assert.assertEquals(3, openHandles.size());
+        Mockito.verify(mockPstFileFactory, Mockito.times(2)).openPstFile(PST_FILE);
+        Mockito.verify(mockFolderHandler).setEstimatedTotal(10);
+        Mockito.verify(mockProgressUpdate).updateTotal(10);
+        Mockito.verify(mockFolderHandler, Mockito.times(10)).skipMessage();
+    }
+
+    @Test
+    public void testProcessPstSlicesLoadWaitsForRetryRead() throws Exception {
+        final AtomicBoolean retryReading = new AtomicBoolean();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch retryStarted = new CountDownLatch(1);
+        Thread retry = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // A conversion worker re-reading a message loaded from this handle holds its read lock
+                synchronized (mockPstFile) {
+                    retryReading.set(true);
+                    retryStarted.countDown();
+
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    retryReading.set(false);
+                }
+            }
+        });
+
+        Mockito.when(mockJournal.isUploaded(Mockito.anyLong())).thenReturn(false);
+        PstFileMocks.answerDescriptorLookup(mockPstFile, new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                loads.incrementAndGet();
+
+                if (retryReading.get()) {
+                    overlapped.set(true);
+                }
+
+                throw new IOException("not a real PST file");
+            }
+        });
+
+        retry.start();
+        retryStarted.await();
+        processPstSlices(new ArrayList<>(Arrays.asList(mockPstFile)));
+        retry.join();
+
+        Assert.assertEquals(10, loads.get());
+        Assert.assertFalse("Slice reader loaded a message while a retry was reading", overlapped.get());
+    }
+
+    /**
+     * Stubs data offsets that interleave the folders, leaving message 45 without one.
+     *
+     * @throws IOException
+     * @throws PSTException
+     */
+    private void stubDataOffsets() throws IOException, PSTException {
+        int[] descriptorIds = { 21, 41, 11, 42, 22, 12, 43, 13, 44 };
+
+        for (int i = 0; i < descriptorIds.length; i++) {
+            PstFileMocks.stubDataOffset(mockPstFile, descriptorIds[i], 1000 + i * 512);
+        }
+    }
+
+    /**
+     * Calls the private collectMessageSlices on the test PST file.
+     *
+     * @return Returns the collected slices
+     */
+    @SuppressWarnings("unchecked")
+    private List<PstMessageSlice> collectMessageSlices() {
+        return (List<PstMessageSlice>) ReflectionTestUtils.invokeMethod(parser, "collectMessageSlices", mockPstFile);
+    }
+
+    /**
+     * Calls the private processPstSlices on the test PST file.
+     *
+     * @param openHandles List extra handles are added to
+     */
+    private void processPstSlices(List<PSTFile> openHandles) {
+        ReflectionTestUtils.invokeMethod(parser, "processPstSlices", PST_FILE, mockPstFile, openHandles,
+                mockFolderHandler, mockProgressUpdate);
+    }
+
+    /**
+     * Lists the descriptor ids of every message in a list of slices, in slice order.
+     *
+     * @param slices Slices to list
+     * @return Returns the descriptor ids
+     */
+    private List<Integer> getDescriptorIds(List<PstMessageSlice> slices) {
+        List<Integer> descriptorIds = new ArrayList<>();
+
+        for (PstMessageSlice slice : slices) {
+            for (PstMessageRef message : slice.getMessages()) {
+                descriptorIds.add(message.getDescriptorId());
+            }
+        }
+
+        return descriptorIds;
+    }
+
+    /**
+     * Maps the descriptor id of every message in a list of slices to its folder path.
+     *
+     * @param slices Slices to map
+     * @return Returns the folder path of each message
+     */
+    private Map<Integer, List<String>> getFolderNames(List<PstMessageSlice> slices) {
+        Map<Integer, List<String>> folderNames = new HashMap<>();
+
+        for (PstMessageSlice slice : slices) {
+            for (PstMessageRef message : slice.getMessages()) {
+                folderNames.put(message.getDescriptorId(), message.getFolderNames());
+            }
+        }
+
+        return folderNames;
+    }
+
+    /**
+     * Creates a mocked folder.
+     *
+     * @param displayName   Name of the folder
+     * @param descriptorIds Descriptor ids of the messages in the folder
+     * @param subfolders    Folders held by the folder
+     * @return Returns the mocked folder
+     * @throws IOException
+     * @throws PSTException
+     */
+    private PSTFolder mockFolder(String displayName, Integer[] descriptorIds, PSTFolder... subfolders)
+            throws IOException, PSTException {
+        PSTFolder folder = Mockito.mock(PSTFolder.class);
+
+        Mockito.when(folder.getDisplayName()).thenReturn(displayName);
+        Mockito.when(folder.getContentCount()).thenReturn(descriptorIds.length);
+        Mockito.when(folder.getChildDescriptorNodes()).thenReturn(new LinkedList<>(Arrays.asList(descriptorIds)));
+        Mockito.when(folder.hasSubfolders()).thenReturn(subfolders.length > 0);
+        Mockito.when(folder.getSubFolders()).thenReturn(new Vector<>(Arrays.asList(subfolders)));
+
+        return folder;
+    }
+}
@@ -0,0 +1,118 @@
+package com.atsid.outlook.pst.batch;
+
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "classpath:applicationContext-test.xml" })
+public class TestGmailBatchManager {
+    private static final String EMAIL_ADDRESS = "test@example.com";
+    private static final String BOUNDARY = "batch_test";
+    @Autowired
+    private GmailBatchManager batchManager;
+    private Gmail gmailService;
+    private CountDownLatch batchSent;
+    private AtomicInteger successCount;
+    private volatile int responseParts;
+
+    @Before
+    public void setup() {
+        batchSent = new CountDownLatch(1);
+        successCount = new AtomicInteger();
+        gmailService = new Gmail.Builder(new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        batchSent.countDown();
+
+                        return new MockLowLevelHttpResponse().setContentType("multipart/mixed; boundary=" + BOUNDARY)
+                                                             .setContent(getBatchResponse(responseParts));
+                    }
+                };
+            }
+        }, JacksonFactory.getDefaultInstance(), null).setApplicationName("test").build();
+    }
+
+    @Test
+    public void testPartialBatchSentByFlushAll() throws IOException {
+        responseParts = 3;
+
+        for (int i = 0; i < 3; ++i) {
+            batchManager.queue(EMAIL_ADDRESS, gmailService, new Message().setRaw("abc"), getCallback());
+        }
+
+        Assert.assertEquals(1, batchSent.getCount());
+
+        batchManager.flushAll();
+
+        Assert.assertEquals(0, batchSent.getCount());
+        Assert.assertEquals(3, successCount.get());
+    }
+
+    @Test
+    public void testFullBatchSentInBackground() throws IOException, InterruptedException {
+        responseParts = 10;
+
+        for (int i = 0; i < 10; ++i) {
+            batchManager.queue(EMAIL_ADDRESS, gmailService, new Message().setRaw("abc"), getCallback());
+        }
+
+        Assert.assertTrue(batchSent.await(5, TimeUnit.SECONDS));
+
+        batchManager.flushAll();
+
+        Assert.assertEquals(10, successCount.get());
+    }
+
+    private JsonBatchCallback<Message> getCallback() {
+        return new JsonBatchCallback<Message>() {
+            @Override
+            public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) throws IOException {
+                Assert.fail("Unexpected failure: " + e);
+            }
+
+            @Override
+            public void onSuccess(Message message, HttpHeaders responseHeaders) throws IOException {
+                successCount.incrementAndGet();
+            }
+        };
+    }
+
+    private static String getBatchResponse(int parts) {
+        StringBuilder response = new StringBuilder();
+
+        for (int i = 1; i <= parts; ++i) {
+            response.append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: <response-").append(i).append(">\r\n\r\n")
+                    .append("HTTP/1.1 200 OK\r\n")
+                    .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                    .append("{\"id\":\"").append(i).append("\"}\r\n");
+        }
+
+        return response.append("--").append(BOUNDARY).append("--\r\n").toString();
+    }
+}
@@ -0,0 +1,69 @@
+package com.atsid.outlook.pst.batch;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "classpath:applicationContext-test.xml" })
+public class TestImportRateController {
+    @Autowired
+    private ImportRateController rateController;
+
+    @Test
+    public void testThrottleHalvesBatchSize() throws IOException {
+        String emailAddress = "throttled@example.com";
+
+        Assert.assertEquals(10, rateController.getBatchSize(emailAddress));
+
+        rateController.acquire(emailAddress, 10);
+        rateController.release(emailAddress, 100, true);
+
+        Assert.assertEquals(5, rateController.getBatchSize(emailAddress));
+
+        rateController.acquire(emailAddress, 5);
+        rateController.release(emailAddress, 100, false);
+
+        Assert.assertEquals(6, rateController.getBatchSize(emailAddress));
+    }
+
+    @Test
+    public void testSlowRequestHoldsBatchSize() throws IOException {
+        String emailAddress = "slow@example.com";
+
+        rateController.acquire(emailAddress, 10);
+        rateController.release(emailAddress, 100, true);
+        rateController.acquire(emailAddress, 5);
+        rateController.release(emailAddress, 60000, false);
+
+        Assert.assertEquals(5, rateController.getBatchSize(emailAddress));
+    }
+
+    @Test
+    public void testIsRateLimited() {
+        Assert.assertTrue(ImportRateController.isRateLimited(getError(429, "rateLimitExceeded")));
+        Assert.assertTrue(ImportRateController.isRateLimited(getError(403, "userRateLimitExceeded")));
+        Assert.assertTrue(ImportRateController.isRateLimited(getError(403, "rateLimitExceeded")));
+        Assert.assertFalse(ImportRateController.isRateLimited(getError(403, "insufficientPermissions")));
+        Assert.assertFalse(ImportRateController.isRateLimited(getError(400, "invalidArgument")));
+        Assert.assertFalse(ImportRateController.isRateLimited((GoogleJsonError) null));
+    }
+
+    private GoogleJsonError getError(int code, String reason) {
+        GoogleJsonError.ErrorInfo errorInfo = new GoogleJsonError.ErrorInfo();
+        GoogleJsonError error = new GoogleJsonError();
+
+        errorInfo.setReason(reason);
+        error.setCode(code);
+        error.setErrors(Arrays.asList(errorInfo));
+
+        return error;
+    }
+}
@@ -0,0 +1,160 @@
+package com.atsid.outlook.pst.catalog;
+
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+public class TestCatalogIndex {
+    private AttachmentCatalog attachmentCatalog;
+    private File tmpDir;
+
+    @Before
+    public void setup() {
+        attachmentCatalog = new AttachmentCatalog();
+        ReflectionTestUtils.setField(attachmentCatalog, "enabled", true);
+        tmpDir = Files.createTempDir();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        attachmentCatalog.shutdown();
+        FileUtils.deleteDirectory(tmpDir);
+    }
+
+    @Test
+    public void testOpen() throws Exception {
+        Date date = new Date(1400000000000L);
+
+        attachmentCatalog.add(tmpDir.getAbsolutePath(),
+                new CatalogEntry(1L, "Report.pdf", "Report", 100, "ABCD", "Inbox/Work", date));
+        attachmentCatalog.add(tmpDir.getAbsolutePath(),
+                new CatalogEntry(1L, "notes\tv2.txt", "Notes\nv2", 10, null, "Inbox", null));
+        attachmentCatalog.add(tmpDir.getAbsolutePath(),
+                new CatalogEntry(2L, "report-final.pdf", "Report", 100, "abcd", "Sent Items", date));
+        attachmentCatalog.flush();
+
+        try (CatalogIndex index = CatalogIndex.open(tmpDir.getAbsolutePath())) {
+            List<CatalogEntry> byEmailId = index.findByEmailId(1L);
+            List<CatalogEntry> byName = index.findByFileNamePrefix("REPORT");
+
+            Assert.assertEquals(3, index.size());
+            Assert.assertEquals(2, byEmailId.size());
+            Assert.assertEquals("Report.pdf", byEmailId.get(0).getFileName());
+            Assert.assertEquals(date, byEmailId.get(0).getDate());
+            Assert.assertEquals("Inbox/Work", byEmailId.get(0).getFolderPath());
+            Assert.assertEquals("notes\tv2.txt", byEmailId.get(1).getFileName());
+            Assert.assertEquals("Notes\nv2", byEmailId.get(1).getDisplayName());
+            Assert.assertNull(byEmailId.get(1).getHash());
+            Assert.assertNull(byEmailId.get(1).getDate());
+            Assert.assertEquals(2, byName.size());
+            Assert.assertEquals("report-final.pdf", byName.get(0).getFileName());
+            Assert.assertEquals(2, index.findByHash("abcd").size());
+            Assert.assertTrue(index.findByFileNamePrefix("x").isEmpty());
+            Assert.assertTrue(index.findByEmailId(3L).isEmpty());
+        }
+    }
+
+    @Test
+    public void testOpenMissing() throws Exception {
+        try (CatalogIndex index = CatalogIndex.open(tmpDir.getAbsolutePath())) {
+            Assert.assertEquals(0, index.size());
+            Assert.assertTrue(index.findByHash("abcd").isEmpty());
+        }
+    }
+
+    @Test
+    public void testOpenRebuildsStaleIndex() throws Exception {
+        String outputPath = tmpDir.getAbsolutePath();
+
+        attachmentCatalog.add(outputPath, new CatalogEntry(1L, "a.txt", "A", 1, null, "Inbox", null));
+        attachmentCatalog.finish();
+
+        Assert.assertTrue(CatalogIndex.isCurrent(outputPath));
+        Assert.assertTrue(new File(tmpDir, CatalogIndex.ID_INDEX_FILE).exists());
+
+        attachmentCatalog.add(outputPath, new CatalogEntry(2L, "b.txt", "B", 1, "ef01", "Inbox", null));
+        attachmentCatalog.flush();
+
+        Assert.assertFalse(CatalogIndex.isCurrent(outputPath));
+
+        try (CatalogIndex index = CatalogIndex.open(outputPath)) {
+            Assert.assertEquals(2, index.size());
+            Assert.assertEquals("b.txt", index.findByHash("EF01").get(0).getFileName());
+        }
+
+        Assert.assertTrue(CatalogIndex.isCurrent(outputPath));
+    }
+
+    @Test
+    public void testBuildMergesSpilledRuns() throws Exception {
+        File indexFile = new File(tmpDir, "test.idx");
+        Random random = new Random(7);
+        List<String> keys = new ArrayList<>();
+
+        try (KeyIndexFile.Builder builder = new KeyIndexFile.Builder(indexFile, 7)) {
+            for (int i = 0; i < 100; i++) {
+                String key = Integer.toString(random.nextInt(40), 36);
+
+                keys.add(key);
+                builder.add(key, i);
+            }
+
+            builder.finish(1234L);
+        }
+
+        Assert.assertEquals(1234L, KeyIndexFile.readCatalogLength(indexFile));
+        Assert.assertEquals(1, tmpDir.listFiles().length);
+
+        try (KeyIndexFile index = new KeyIndexFile(indexFile)) {
+            Assert.assertEquals(100, index.size());
+
+            for (String key : new HashSet<>(keys)) {
+                List<Long> expected = new ArrayList<>();
+
+                for (int i = 0; i < keys.size(); i++) {
+                    if (keys.get(i).equals(key)) {
+                        expected.add((long) i);
+                    }
+                }
+
+                Assert.assertEquals(expected, index.find(key, false));
+            }
+
+            Assert.assertTrue(index.find("zz", false).isEmpty());
+            Assert.assertEquals(countStartingWith(keys, "1"), index.find("1", true).size());
+        }
+    }
+
+    private int countStartingWith(List<String> keys, String prefix) {
+        int count = 0;
+
+        for (String key : keys) {
+            if (key.startsWith(prefix)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        ReflectionTestUtils.setField(attachmentCatalog, "enabled", false);
+
+        attachmentCatalog.add(tmpDir.getAbsolutePath(), new CatalogEntry(1L, "a.txt", "A", 1, null, "Inbox", null));
+        attachmentCatalog.flush();
+
+        Assert.assertFalse(new File(tmpDir, AttachmentCatalog.CATALOG_FILE).exists());
+    }
+}
@@ -0,0 +1,41 @@
+package com.atsid.outlook.pst.folder;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestFolderPath {
+    @Test
+    public void testChildInterned() {
+        FolderPath inbox = FolderPath.ROOT.child("Inbox");
+        FolderPath work = inbox.child("Work");
+
+        Assert.assertSame(inbox, FolderPath.ROOT.child("Inbox"));
+        Assert.assertSame(work, FolderPath.ROOT.child("Inbox").child("Work"));
+        Assert.assertEquals(Arrays.asList("Inbox", "Work"), work);
+        Assert.assertEquals(2, work.size());
+        Assert.assertEquals("Work", work.get(1));
+        Assert.assertTrue(FolderPath.ROOT.isEmpty());
+    }
+
+    @Test
+    public void testOf() {
+        List<String> folderNames = new ArrayList<>(Arrays.asList("Inbox", "Inbox"));
+        FolderPath folderPath = FolderPath.of(folderNames);
+
+        Assert.assertSame(folderPath, FolderPath.ROOT.child("Inbox").child("Inbox"));
+        Assert.assertSame(folderPath, FolderPath.of(folderPath));
+        Assert.assertSame(FolderPath.ROOT, FolderPath.of(new ArrayList<String>()));
+        Assert.assertEquals(folderNames, folderPath);
+        Assert.assertEquals(folderNames.hashCode(), folderPath.hashCode());
+        Assert.assertNotEquals(folderPath, FolderPath.ROOT.child("Inbox"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() {
+        FolderPath.ROOT.child("Inbox").add("Work");
+    }
+}
@@ -101,6 +101,19 @@ public class TestPstMessageCleaningGmailImportingFolderHandler {
         Mockito.verifyNoMoreInteractions(mockProgressUpdate);
     }
 
+    @Test
+    public void testProcessPstFolderWithContactsRefinesEstimate() throws PSTException, IOException {
+        Mockito.when(mockFolder.getContentCount()).thenReturn(2);
+        Mockito.when(mockFolder.getNextChild()).thenReturn(mockContact, mockMessage1, null);
+        folderHandler.setEstimatedTotal(2);
+
+        folderHandler.processPstFolder(mockFolder, Boolean.TRUE, folderNames);
+
+        Mockito.verify(mockProgressUpdate).updateTotal(1);
+        Mockito.verify(mockProgressUpdate).updateProgress(1);
+        Mockito.verifyNoMoreInteractions(mockProgressUpdate);
+    }
+
     @Test
     public void testProcessPstFolderMessageHandlerError() throws PSTException, IOException {
         Mockito.when(mockFolder.getContentCount()).thenReturn(3);
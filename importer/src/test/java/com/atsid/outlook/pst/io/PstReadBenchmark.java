@@ -0,0 +1,101 @@
+package com.atsid.outlook.pst.io;
+
+import com.pff.PSTException;
+import com.pff.PSTFile;
+import com.pff.PSTFolder;
+import com.pff.PSTMessage;
+import com.pff.PSTObject;
+import com.pff.PstFileAccess;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Compares PST read throughput of the plain <code>RandomAccessFile</code> path against the block cached path.  Not
+ * run as part of the test suite, run it by hand against a real PST file:
+ * <pre>
+ * java -cp ... com.atsid.outlook.pst.io.PstReadBenchmark &lt;pst file&gt; [block size] [blocks]
+ * </pre>
+ * Run it twice in a row (or drop the OS page cache in between) to compare cold and warm reads.
+ */
+public class PstReadBenchmark {
+    private int messages;
+    private long characters;
+
+    public static void main(String[] args) throws IOException, PSTException {
+        if (args.length < 1) {
+            System.err.println("Usage: PstReadBenchmark <pst file> [block size] [blocks]");
+            System.exit(1);
+        }
+
+        String pstFileName = args[0];
+        int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 65536;
+        int maxBlocks = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+
+        new PstReadBenchmark().run("direct", new PSTFile(pstFileName), null);
+
+        PSTFile cachedFile = new PSTFile(pstFileName);
+        BlockCachedRandomAccessFile cachedHandle =
+                new BlockCachedRandomAccessFile(new File(pstFileName), blockSize, maxBlocks);
+
+        PstFileAccess.replaceFileHandle(cachedFile, cachedHandle);
+        new PstReadBenchmark().run("cached", cachedFile, cachedHandle);
+    }
+
+    /**
+     * Reads every message in the PST file, touching the properties the importer uses, and prints the throughput.
+     *
+     * @param name         Name of the read path being measured
+     * @param pstFile      PST file to read
+     * @param cachedHandle Cached handle when measuring the cached path, used to print cache statistics
+     * @throws IOException
+     * @throws PSTException
+     */
+    private void run(String name, PSTFile pstFile, BlockCachedRandomAccessFile cachedHandle)
+            throws IOException, PSTException {
+        long start = System.nanoTime();
+
+        readFolder(pstFile.getRootFolder());
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%s: %d messages (%d chars) in %.2fs, %.1f messages/s", name, messages,
+                characters, seconds, messages / seconds));
+
+        if (cachedHandle != null) {
+            System.out.println(String.format("%s: %d hits, %d misses, %.1f MB read from disk, %.1f MB/s", name,
+                    cachedHandle.getCacheHits(), cachedHandle.getCacheMisses(),
+                    cachedHandle.getBytesRead() / 1048576.0, cachedHandle.getBytesRead() / 1048576.0 / seconds));
+        }
+
+        pstFile.getFileHandle().close();
+    }
+
+    private void readFolder(PSTFolder folder) throws IOException, PSTException {
+        if (folder.hasSubfolders()) {
+            for (PSTFolder child : folder.getSubFolders()) {
+                readFolder(child);
+            }
+        }
+
+        if (folder.getContentCount() > 0) {
+            PSTObject child = folder.getNextChild();
+
+            while (child != null) {
+                if (child instanceof PSTMessage) {
+                    PSTMessage message = (PSTMessage) child;
+
+                    characters += message.getBody().length() + message.getBodyHTML().length() +
+                                  message.getTransportMessageHeaders().length();
+
+                    for (int i = 0; i < message.getNumberOfAttachments(); ++i) {
+                        characters += message.getAttachment(i).getFilesize();
+                    }
+
+                    ++messages;
+                }
+
+                child = folder.getNextChild();
+            }
+        }
+    }
+}
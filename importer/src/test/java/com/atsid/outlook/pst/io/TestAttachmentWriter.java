@@ -0,0 +1,242 @@
+package com.atsid.outlook.pst.io;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+public class TestAttachmentWriter {
+    private AttachmentWriter attachmentWriter;
+    private File tmpDir;
+
+    @Before
+    public void setup() {
+        attachmentWriter = new AttachmentWriter();
+        ReflectionTestUtils.setField(attachmentWriter, "writerThreads", 2);
+        ReflectionTestUtils.setField(attachmentWriter, "bufferSize", 16);
+        ReflectionTestUtils.setField(attachmentWriter, "bufferCount", 4);
+        ReflectionTestUtils.invokeMethod(attachmentWriter, "createExecutor");
+        tmpDir = Files.createTempDir();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        attachmentWriter.shutdown();
+        FileUtils.deleteDirectory(tmpDir);
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        byte[] first = randomBytes(20);
+        byte[] second = randomBytes(0);
+        File firstFile = new File(tmpDir, "1" + File.separator + "first.bin");
+        File secondFile = new File(tmpDir, "1" + File.separator + "second.bin");
+
+        Future<WrittenAttachment> firstWrite = write(first, 1L, "first.bin");
+        Future<WrittenAttachment> secondWrite = write(second, 1L, "second.bin");
+
+        Assert.assertEquals(firstFile, firstWrite.get().getFile());
+        Assert.assertEquals(secondFile, secondWrite.get().getFile());
+        Assert.assertEquals("1" + File.separator + "first.bin", firstWrite.get().getLocation());
+        Assert.assertEquals(20, firstWrite.get().getSize());
+        Assert.assertEquals(0, secondWrite.get().getSize());
+        Assert.assertNull(firstWrite.get().getHash());
+        Assert.assertArrayEquals(first, FileUtils.readFileToByteArray(firstFile));
+        Assert.assertArrayEquals(second, FileUtils.readFileToByteArray(secondFile));
+    }
+
+    @Test
+    public void testWriteLargeOnCallingThread() throws Exception {
+        byte[] data = randomBytes(100);
+        File file = new File(tmpDir, "2" + File.separator + "large.bin");
+
+        Future<WrittenAttachment> write = write(data, 2L, "large.bin");
+
+        Assert.assertTrue(write.isDone());
+        Assert.assertArrayEquals(data, FileUtils.readFileToByteArray(file));
+    }
+
+    @Test
+    public void testWriteConcurrentReadersDoNotDeadlock() throws Exception {
+        final int readers = 6;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(readers);
+        List<Future<WrittenAttachment>> writes = new ArrayList<>();
+
+        // Each attachment needs more buffers than are free once every reader holds one
+        for (int i = 0; i < readers; i++) {
+            final byte[] data = randomBytes(40 + i);
+            final long emailId = 10L + i;
+
+            writes.add(executor.submit(new Callable<WrittenAttachment>() {
+                @Override
+                public WrittenAttachment call() throws Exception {
+                    start.await();
+                    return write(new SlowInputStream(data), emailId, "slow.bin").get();
+                }
+            }));
+        }
+
+        start.countDown();
+
+        for (int i = 0; i < readers; i++) {
+            WrittenAttachment written = writes.get(i).get(10, TimeUnit.SECONDS);
+
+            Assert.assertArrayEquals(randomBytes(40 + i), FileUtils.readFileToByteArray(written.getFile()));
+        }
+
+        executor.shutdown();
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void testWriteError() throws Exception {
+        new File(tmpDir, "3" + File.separator + "folder" + File.separator + "child").mkdirs();
+        write(randomBytes(4), 3L, "folder").get();
+    }
+
+    @Test
+    public void testWriteDeduplicated() throws Exception {
+        byte[] small = randomBytes(20);
+        byte[] large = randomBytes(100);
+        ReflectionTestUtils.setField(attachmentWriter, "dedupeEnabled", true);
+
+        File first = write(small, 4L, "a.bin").get().getFile();
+        File second = write(small, 5L, "b.bin").get().getFile();
+        File third = write(large, 4L, "c.bin").get().getFile();
+        File fourth = write(large, 5L, "d.bin").get().getFile();
+        attachmentWriter.flush();
+        File[] storeFolders = new File(tmpDir, "store").listFiles();
+
+        Assert.assertArrayEquals(small, FileUtils.readFileToByteArray(first));
+        Assert.assertArrayEquals(small, FileUtils.readFileToByteArray(second));
+        Assert.assertArrayEquals(large, FileUtils.readFileToByteArray(fourth));
+        Assert.assertTrue(java.nio.file.Files.isSameFile(first.toPath(), second.toPath()));
+        Assert.assertTrue(java.nio.file.Files.isSameFile(third.toPath(), fourth.toPath()));
+        Assert.assertEquals(2, storeFolders.length);
+        Assert.assertEquals(4, FileUtils.readLines(new File(tmpDir, "attachment-index.log")).size());
+    }
+
+    @Test
+    public void testWriteOverLinkedFile() throws Exception {
+        byte[] stored = randomBytes(20);
+        byte[] replacement = randomBytes(30);
+        ReflectionTestUtils.setField(attachmentWriter, "dedupeEnabled", true);
+
+        File linked = write(stored, 9L, "a.bin").get().getFile();
+        File copy = write(stored, 10L, "a.bin").get().getFile();
+
+        ReflectionTestUtils.setField(attachmentWriter, "dedupeEnabled", false);
+        write(replacement, 9L, "a.bin").get();
+
+        Assert.assertArrayEquals(replacement, FileUtils.readFileToByteArray(linked));
+        Assert.assertArrayEquals(stored, FileUtils.readFileToByteArray(copy));
+        Assert.assertFalse(java.nio.file.Files.isSameFile(linked.toPath(), copy.toPath()));
+    }
+
+    @Test
+    public void testWriteHashed() throws Exception {
+        byte[] small = randomBytes(20);
+        byte[] large = randomBytes(100);
+        ReflectionTestUtils.setField(attachmentWriter, "catalogEnabled", true);
+
+        WrittenAttachment first = write(small, 8L, "a.bin").get();
+        WrittenAttachment second = write(large, 8L, "b.bin").get();
+
+        Assert.assertEquals(20, first.getSize());
+        Assert.assertEquals(Hashing.sha256().hashBytes(small).toString(), first.getHash());
+        Assert.assertEquals(100, second.getSize());
+        Assert.assertEquals(Hashing.sha256().hashBytes(large).toString(), second.getHash());
+        Assert.assertArrayEquals(large, FileUtils.readFileToByteArray(second.getFile()));
+    }
+
+    @Test
+    public void testWriteArchived() throws Exception {
+        byte[] small = randomBytes(20);
+        byte[] large = randomBytes(100);
+        ReflectionTestUtils.setField(attachmentWriter, "archiveEnabled", true);
+        ReflectionTestUtils.setField(attachmentWriter, "segmentSize", 50L);
+
+        WrittenAttachment firstWritten = write(small, 6L, "a.bin").get();
+        File first = firstWritten.getFile();
+        File second = write(large, 6L, "b.bin").get().getFile();
+        attachmentWriter.flush();
+
+        Assert.assertEquals(2, FileUtils.readLines(new File(tmpDir, "attachment-archive.log")).size());
+        Assert.assertEquals(first.getName() + ": 6/a.bin", firstWritten.getLocation());
+        Assert.assertEquals(second.getName() + ": 6/b.bin",
+                attachmentWriter.getLocation(tmpDir.getAbsolutePath(), 6L, "b.bin"));
+        attachmentWriter.finish();
+
+        Assert.assertNotEquals(first, second);
+        Assert.assertTrue(attachmentWriter.isWritten(tmpDir.getAbsolutePath(), 6L, "a.bin"));
+        Assert.assertTrue(attachmentWriter.isWritten(tmpDir.getAbsolutePath(), 6L, "b.bin"));
+        Assert.assertFalse(attachmentWriter.isWritten(tmpDir.getAbsolutePath(), 7L, "a.bin"));
+        Assert.assertFalse(new File(tmpDir, "6").exists());
+        Assert.assertArrayEquals(small, readEntry(first, "6/a.bin"));
+        Assert.assertArrayEquals(large, readEntry(second, "6/b.bin"));
+        Assert.assertEquals(2, FileUtils.readLines(new File(tmpDir, "attachment-archive.log")).size());
+    }
+
+    private byte[] readEntry(File archive, String entryName) throws Exception {
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            return IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry(entryName)));
+        }
+    }
+
+    private Future<WrittenAttachment> write(byte[] data, Long emailId, String fileName) throws Exception {
+        return write(new ByteArrayInputStream(data), emailId, fileName);
+    }
+
+    private Future<WrittenAttachment> write(InputStream stream, Long emailId, String fileName) throws Exception {
+        return attachmentWriter.write(stream, tmpDir.getAbsolutePath(), emailId, fileName);
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+
+        new Random(length).nextBytes(data);
+
+        return data;
+    }
+
+    /**
+     * Stream that hands out a few bytes at a time and pauses between reads, so concurrent readers all hold part of the
+     * buffer pool at once.
+     */
+    private static class SlowInputStream extends ByteArrayInputStream {
+        SlowInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+
+            return super.read(buffer, offset, Math.min(length, 8));
+        }
+    }
+}
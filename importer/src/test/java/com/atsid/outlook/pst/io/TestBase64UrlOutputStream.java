@@ -0,0 +1,50 @@
+package com.atsid.outlook.pst.io;
+
+import com.google.api.client.util.Base64;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+public class TestBase64UrlOutputStream {
+    @Test
+    public void testMatchesBase64UrlSafeString() throws IOException {
+        Random random = new Random(42);
+
+        for (int length = 0; length < 64; ++length) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+
+            Assert.assertEquals(Base64.encodeBase64URLSafeString(data), encode(data, length + 1));
+        }
+    }
+
+    @Test
+    public void testMixedWriteSizes() throws IOException {
+        byte[] data = new byte[1000];
+        new Random(7).nextBytes(data);
+
+        for (int chunk = 1; chunk <= 8; ++chunk) {
+            Assert.assertEquals(Base64.encodeBase64URLSafeString(data), encode(data, chunk));
+        }
+    }
+
+    private String encode(byte[] data, int chunk) throws IOException {
+        StringBuilder encoded = new StringBuilder();
+
+        try (Base64UrlOutputStream output = new Base64UrlOutputStream(encoded)) {
+            for (int offset = 0; offset < data.length; offset += chunk) {
+                int length = Math.min(chunk, data.length - offset);
+
+                if (length == 1) {
+                    output.write(data[offset]);
+                } else {
+                    output.write(data, offset, length);
+                }
+            }
+        }
+
+        return encoded.toString();
+    }
+}
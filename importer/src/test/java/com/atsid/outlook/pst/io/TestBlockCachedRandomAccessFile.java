@@ -0,0 +1,94 @@
+package com.atsid.outlook.pst.io;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+public class TestBlockCachedRandomAccessFile {
+    private File file;
+    private byte[] contents;
+
+    @Before
+    public void setup() throws IOException {
+        file = File.createTempFile("block-cache", ".bin");
+        contents = new byte[10000];
+        new Random(42).nextBytes(contents);
+        FileUtils.writeByteArrayToFile(file, contents);
+    }
+
+    @After
+    public void teardown() {
+        file.delete();
+    }
+
+    @Test
+    public void testReadMatchesFile() throws IOException {
+        Random random = new Random(7);
+
+        try (RandomAccessFile cached = new BlockCachedRandomAccessFile(file, 512, 4)) {
+            for (int i = 0; i < 200; ++i) {
+                int position = random.nextInt(contents.length);
+                byte[] buffer = new byte[random.nextInt(2000) + 1];
+                int expected = Math.min(buffer.length, contents.length - position);
+
+                cached.seek(position);
+                cached.readFully(buffer, 0, expected);
+
+                for (int j = 0; j < expected; ++j) {
+                    Assert.assertEquals(contents[position + j], buffer[j]);
+                }
+
+                Assert.assertEquals(position + expected, cached.getFilePointer());
+            }
+        }
+    }
+
+    @Test
+    public void testReadSingleBytes() throws IOException {
+        try (RandomAccessFile cached = new BlockCachedRandomAccessFile(file, 512, 4)) {
+            cached.seek(511);
+
+            Assert.assertEquals(contents[511], cached.readByte());
+            Assert.assertEquals(contents[512] & 0xff, cached.read());
+            Assert.assertEquals(513, cached.getFilePointer());
+        }
+    }
+
+    @Test
+    public void testReadPastEnd() throws IOException {
+        byte[] buffer = new byte[100];
+
+        try (RandomAccessFile cached = new BlockCachedRandomAccessFile(file, 512, 4)) {
+            Assert.assertEquals(contents.length, cached.length());
+
+            cached.seek(contents.length - 10);
+
+            Assert.assertEquals(10, cached.read(buffer));
+            Assert.assertEquals(-1, cached.read(buffer));
+            Assert.assertEquals(-1, cached.read());
+        }
+    }
+
+    @Test
+    public void testCacheReusesBlocks() throws IOException {
+        byte[] buffer = new byte[10];
+
+        try (BlockCachedRandomAccessFile cached = new BlockCachedRandomAccessFile(file, 512, 4)) {
+            cached.seek(0);
+            cached.read(buffer);
+            cached.seek(100);
+            cached.read(buffer);
+
+            Assert.assertEquals(1, cached.getCacheMisses());
+            Assert.assertEquals(1, cached.getCacheHits());
+            Assert.assertEquals(512, cached.getBytesRead());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.atsid.outlook.pst.journal;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class TestImportJournal {
+    private static final String EMAIL_ADDRESS = "test@example.com";
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+    private ImportJournal journal;
+    private File pstFile;
+    private String outputPath;
+
+    @Before
+    public void setup() throws IOException {
+        journal = new ImportJournal();
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        pstFile = tempFolder.newFile("test.pst");
+        outputPath = tempFolder.newFolder("output").getAbsolutePath();
+    }
+
+    @Test
+    public void testStatesSurviveReopen() throws IOException {
+        journal.open(pstFile.getAbsolutePath(), EMAIL_ADDRESS, outputPath);
+        journal.mark(2097188, ImportState.EXTRACTED);
+        journal.mark(2097188, ImportState.UPLOADED);
+        journal.mark(2097220, ImportState.EXTRACTED);
+        journal.close();
+
+        journal.open(pstFile.getAbsolutePath(), EMAIL_ADDRESS, outputPath);
+
+        Assert.assertTrue(journal.isUploaded(2097188));
+        Assert.assertFalse(journal.isUploaded(2097220));
+        Assert.assertTrue(journal.hasReached(2097220, ImportState.EXTRACTED));
+        Assert.assertFalse(journal.hasReached(2097252, ImportState.EXTRACTED));
+    }
+
+    @Test
+    public void testPartialRecordDropped() throws IOException {
+        journal.open(pstFile.getAbsolutePath(), EMAIL_ADDRESS, outputPath);
+        journal.mark(2097188, ImportState.UPLOADED);
+        journal.close();
+
+        File journalFile = journal.getJournalFile();
+
+        try (FileOutputStream output = new FileOutputStream(journalFile, true)) {
+            output.write(new byte[] { 0, 0, 0 });
+        }
+
+        journal.open(pstFile.getAbsolutePath(), EMAIL_ADDRESS, outputPath);
+        journal.mark(2097220, ImportState.UPLOADED);
+        journal.close();
+
+        journal.open(pstFile.getAbsolutePath(), EMAIL_ADDRESS, outputPath);
+
+        Assert.assertEquals(18, journalFile.length());
+        Assert.assertTrue(journal.isUploaded(2097188));
+        Assert.assertTrue(journal.isUploaded(2097220));
+    }
+
+    @Test
+    public void testChangedPstStartsNewJournal() throws IOException {
+        journal.open(pstFile.getAbsolutePath(), EMAIL_ADDRESS, outputPath);
+        journal.mark(2097188, ImportState.UPLOADED);
+        journal.close();
+
+        try (FileOutputStream output = new FileOutputStream(pstFile, true)) {
+            output.write(1);
+        }
+
+        journal.open(pstFile.getAbsolutePath(), EMAIL_ADDRESS, outputPath);
+
+        Assert.assertFalse(journal.isUploaded(2097188));
+    }
+
+    @Test
+    public void testOtherAccountStartsNewJournal() throws IOException {
+        journal.open(pstFile.getAbsolutePath(), EMAIL_ADDRESS, outputPath);
+        journal.mark(2097188, ImportState.UPLOADED);
+        journal.close();
+
+        File firstJournalFile = journal.getJournalFile();
+
+        journal.open(pstFile.getAbsolutePath(), "other@example.com", outputPath);
+        journal.mark(2097220, ImportState.UPLOADED);
+        journal.close();
+
+        Assert.assertNotEquals(firstJournalFile, journal.getJournalFile());
+        Assert.assertFalse(journal.isUploaded(2097188));
+        Assert.assertTrue(journal.isUploaded(2097220));
+
+        journal.open(pstFile.getAbsolutePath(), "TEST@example.com", outputPath);
+
+        Assert.assertTrue(journal.isUploaded(2097188));
+        Assert.assertFalse(journal.isUploaded(2097220));
+    }
+}
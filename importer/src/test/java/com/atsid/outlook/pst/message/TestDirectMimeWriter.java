@@ -0,0 +1,149 @@
+package com.atsid.outlook.pst.message;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "classpath:applicationContext-test.xml" })
+public class TestDirectMimeWriter {
+    @Autowired
+    private DirectMimeWriter directMimeWriter;
+    @Autowired
+    private MimeMessageFactory mimeMessageFactory;
+
+    @Test
+    public void testWriteTextAndHtml() throws Exception {
+        MimeMessage headers = mimeMessageFactory.getMimeMessage();
+
+        headers.setSubject("Test subject");
+        headers.addHeaderLine("Message-ID: <original@example.com>");
+        headers.addHeaderLine("Content-Type: text/plain");
+
+        Assert.assertTrue(directMimeWriter.canWrite(headers));
+
+        MimeMessage written = writeAndParse(headers, new PrefixedBodyDataSource("", "line one\nline two", "text/plain"),
+                new PrefixedBodyDataSource("", "<p>café</p>", "text/html"));
+        MimeMultipart content = (MimeMultipart) written.getContent();
+        MimeBodyPart text = (MimeBodyPart) content.getBodyPart(0);
+        MimeBodyPart html = (MimeBodyPart) content.getBodyPart(1);
+
+        Assert.assertEquals("Test subject", written.getSubject());
+        Assert.assertEquals("1.0", written.getHeader("MIME-Version", null));
+        Assert.assertEquals(1, written.getHeader("Content-Type").length);
+        Assert.assertNotEquals("<original@example.com>", written.getMessageID());
+        Assert.assertTrue(written.getContentType().startsWith("multipart/alternative"));
+        Assert.assertEquals(2, content.getCount());
+        Assert.assertEquals("7bit", text.getEncoding());
+        Assert.assertEquals("line one\r\nline two", text.getContent());
+        Assert.assertEquals("quoted-printable", html.getEncoding());
+        Assert.assertTrue(html.isMimeType("text/html"));
+        Assert.assertEquals("<p>café</p>", html.getContent());
+    }
+
+    @Test
+    public void testWriteTextOnlyNonAscii() throws Exception {
+        MimeMessage headers = mimeMessageFactory.getMimeMessage();
+        String body = "日本語のテキスト ";
+
+        MimeMessage written = writeAndParse(headers, new PrefixedBodyDataSource("", body, "text/plain"), null);
+        MimeMultipart content = (MimeMultipart) written.getContent();
+        MimeBodyPart text = (MimeBodyPart) content.getBodyPart(0);
+
+        Assert.assertEquals(1, content.getCount());
+        Assert.assertEquals("base64", text.getEncoding());
+        Assert.assertEquals(body, text.getContent());
+    }
+
+    @Test
+    public void testWritePrefixedBodies() throws Exception {
+        PrefixedBodyDataSource text = new PrefixedBodyDataSource("removed: a.doc\n", "body", "text/plain");
+        PrefixedBodyDataSource html =
+                new PrefixedBodyDataSource("<pre>removed: a.doc\n</pre>", "<p>body</p>", "text/html");
+
+        MimeMessage written = writeAndParse(mimeMessageFactory.getMimeMessage(), text, html);
+        MimeMultipart content = (MimeMultipart) written.getContent();
+
+        Assert.assertEquals("removed: a.doc\r\nbody", content.getBodyPart(0).getContent());
+        Assert.assertEquals("<pre>removed: a.doc\r\n</pre><p>body</p>", content.getBodyPart(1).getContent());
+    }
+
+    @Test
+    public void testWriteHtmlOnly() throws Exception {
+        PrefixedBodyDataSource html = new PrefixedBodyDataSource("", "<p>body</p>", "text/html", "base64");
+
+        MimeMessage written = writeAndParse(mimeMessageFactory.getMimeMessage(), null, html);
+
+        Assert.assertTrue(written.isMimeType("text/html"));
+        Assert.assertEquals("base64", written.getEncoding());
+        Assert.assertEquals("<p>body</p>", written.getContent());
+    }
+
+    @Test
+    public void testWriteKeptAttachments() throws Exception {
+        byte[] image = new byte[] { 1, 2, 3, (byte) 0xff };
+        KeptAttachment inline = new KeptAttachment("logo.png", "image/png", "logo@01", image);
+        KeptAttachment attached = new KeptAttachment("notes.txt", "text/plain", null, "notes".getBytes("US-ASCII"));
+
+        PrefixedBodyDataSource text = new PrefixedBodyDataSource("", "body", "text/plain");
+        PrefixedBodyDataSource html = new PrefixedBodyDataSource("", "<img src=\"cid:logo@01\">", "text/html");
+
+        MimeMessage written =
+                writeAndParse(mimeMessageFactory.getMimeMessage(), text, html, Arrays.asList(inline, attached));
+        MimeMultipart mixed = (MimeMultipart) written.getContent();
+        MimeMultipart related = (MimeMultipart) mixed.getBodyPart(0).getContent();
+        MimeMultipart alternative = (MimeMultipart) related.getBodyPart(0).getContent();
+        MimeBodyPart inlinePart = (MimeBodyPart) related.getBodyPart(1);
+        MimeBodyPart attachedPart = (MimeBodyPart) mixed.getBodyPart(1);
+
+        Assert.assertTrue(written.isMimeType("multipart/mixed"));
+        Assert.assertTrue(related.getContentType().startsWith("multipart/related"));
+        Assert.assertEquals(2, alternative.getCount());
+        Assert.assertEquals("<logo@01>", inlinePart.getContentID());
+        Assert.assertEquals(Part.INLINE, inlinePart.getDisposition());
+        Assert.assertEquals("logo.png", inlinePart.getFileName());
+        Assert.assertArrayEquals(image, IOUtils.toByteArray(inlinePart.getInputStream()));
+        Assert.assertEquals(Part.ATTACHMENT, attachedPart.getDisposition());
+        Assert.assertEquals("notes.txt", attachedPart.getFileName());
+        Assert.assertEquals("notes", attachedPart.getContent());
+    }
+
+    @Test
+    public void testCanWriteNonAsciiHeader() throws Exception {
+        MimeMessage headers = mimeMessageFactory.getMimeMessage();
+
+        headers.addHeaderLine("X-Custom: café");
+
+        Assert.assertFalse(directMimeWriter.canWrite(headers));
+    }
+
+    private MimeMessage writeAndParse(MimeMessage headers, PrefixedBodyDataSource text, PrefixedBodyDataSource html)
+            throws Exception {
+        return writeAndParse(headers, text, html, Collections.<KeptAttachment>emptyList());
+    }
+
+    private MimeMessage writeAndParse(MimeMessage headers, PrefixedBodyDataSource text, PrefixedBodyDataSource html,
+                                      List<KeptAttachment> attachments) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        directMimeWriter.write(headers, text, html, attachments, output);
+
+        return new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(output.toByteArray()));
+    }
+}
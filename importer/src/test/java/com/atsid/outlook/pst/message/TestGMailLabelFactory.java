@@ -9,12 +9,22 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @ContextConfiguration(locations = { "classpath:applicationContext-test.xml" })
@@ -77,4 +87,51 @@ public class TestGMailLabelFactory {
         Mockito.verify(mockLabeler).setEmailAddress(Mockito.eq("testing"));
         Mockito.verify(mockLabeler).loadLabels();
     }
+
+    @Test
+    public void testGetLabelerConcurrentLoadsOnce() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<GMailLabeler>> results = new ArrayList<>();
+
+        Mockito.when(mockApplicationContext.getBean("gmailLabeler")).thenReturn(mockLabeler);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                // Slow enough that every thread asks for the labeler while it is loading
+                Thread.sleep(200);
+                return null;
+            }
+        }).when(mockLabeler).loadLabels();
+
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(new Callable<GMailLabeler>() {
+                @Override
+                public GMailLabeler call() throws Exception {
+                    start.await();
+                    return labelFactory.getLabeler(mockGmailService, "testing");
+                }
+            }));
+        }
+
+        start.countDown();
+
+        for (Future<GMailLabeler> result : results) {
+            Assert.assertSame(mockLabeler, result.get(5, TimeUnit.SECONDS));
+        }
+
+        executor.shutdown();
+        Mockito.verify(mockApplicationContext).getBean("gmailLabeler");
+        Mockito.verify(mockLabeler).loadLabels();
+    }
+
+    @Test
+    public void testGetLabelerRetriesAfterFailedInit() throws IOException {
+        Mockito.when(mockApplicationContext.getBean("gmailLabeler")).thenReturn(mockLabeler);
+        Mockito.doThrow(new IOException()).doNothing().when(mockLabeler).loadLabels();
+
+        Assert.assertNull(labelFactory.getLabeler(mockGmailService, "testing"));
+        Assert.assertSame(mockLabeler, labelFactory.getLabeler(mockGmailService, "testing"));
+        Mockito.verify(mockLabeler, Mockito.times(2)).loadLabels();
+    }
 }
\ No newline at end of file
@@ -1,8 +1,15 @@
 package com.atsid.outlook.pst.message;
 
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.model.Label;
 import com.google.api.services.gmail.model.ListLabelsResponse;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -20,10 +27,17 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @ContextConfiguration(locations = { "classpath:applicationContext-test.xml" })
 public class TestGMailLabeler {
+    private static final String BOUNDARY = "batch_test";
     @Mock
     private Gmail mockGmailService;
     @Mock
@@ -140,6 +154,62 @@ public class TestGMailLabeler {
         Mockito.verify(mockLabelsCreateService).execute();
     }
 
+    @Test
+    public void testGetLabelCached() throws IOException {
+        labeler.getAvailableLabels().put(GMailLabeler.PST_IMPORT_LABEL, label2);
+        labeler.getAvailableLabels().put("Label 1", label1);
+
+        Label result1 = labeler.getLabel(Arrays.asList("Label 1"), "test@example.com");
+
+        labeler.getAvailableLabels().clear();
+
+        Label result2 = labeler.getLabel(new ArrayList<>(Arrays.asList("Label 1")), "test@example.com");
+
+        Assert.assertSame(label1, result1);
+        Assert.assertSame(label1, result2);
+        Mockito.verifyZeroInteractions(mockGmailService);
+    }
+
+    @Test
+    public void testGetLabelConcurrentCreatesOnce() throws Exception {
+        final List<String> folders = Arrays.asList("Concurrent");
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Label>> results = new ArrayList<>();
+
+        labeler.getAvailableLabels().put(GMailLabeler.PST_IMPORT_LABEL, label2);
+        Mockito.when(mockGmailLabelsService.create(Mockito.eq("test@example.com"), Mockito.any(Label.class)))
+               .thenReturn(mockLabelsCreateService);
+        Mockito.doAnswer(new Answer<Label>() {
+            @Override
+            public Label answer(InvocationOnMock invocation) throws Throwable {
+                // Slow enough that every thread asks for the label while it is being created
+                Thread.sleep(200);
+                return label1;
+            }
+        }).when(mockLabelsCreateService).execute();
+
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(new Callable<Label>() {
+                @Override
+                public Label call() throws Exception {
+                    start.await();
+                    return labeler.getLabel(folders, "test@example.com");
+                }
+            }));
+        }
+
+        start.countDown();
+
+        for (Future<Label> result : results) {
+            Assert.assertSame(label1, result.get(5, TimeUnit.SECONDS));
+        }
+
+        executor.shutdown();
+        Mockito.verify(mockGmailLabelsService).create(Mockito.eq("test@example.com"), Mockito.any(Label.class));
+        Mockito.verify(mockLabelsCreateService).execute();
+    }
+
     @Test
     public void testGetLabelAlreadyCreated() throws IOException {
         List<String> folders = Arrays.asList("Label 1");
@@ -264,4 +334,78 @@ public class TestGMailLabeler {
         Mockito.verifyZeroInteractions(mockGmailLabelsService);
         Mockito.verifyZeroInteractions(mockLabelsCreateService);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCreateLabels() throws IOException {
+        final List<Integer> batchSizes = new ArrayList<>();
+        labeler.setGmailService(getBatchingGmailService(batchSizes));
+        labeler.getAvailableLabels().put(GMailLabeler.PST_IMPORT_LABEL, label2);
+        labeler.getAvailableLabels().put("D", label1);
+
+        labeler.createLabels(Arrays.asList(Arrays.asList("A"), Arrays.asList("A", "B"), Arrays.asList("A", "C-1"),
+                Arrays.asList("D")));
+
+        Assert.assertEquals(Arrays.asList(1, 2), batchSizes);
+        Assert.assertEquals(5, labeler.getAvailableLabels().size());
+        Assert.assertNotNull(labeler.getAvailableLabel("A"));
+        Assert.assertNotNull(labeler.getAvailableLabel("A/B"));
+        Assert.assertNotNull(labeler.getAvailableLabel("A/C_1"));
+    }
+
+    @Test
+    public void testCreateLabelsSplitsBatches() throws IOException {
+        final List<Integer> batchSizes = new ArrayList<>();
+        labeler.setGmailService(getBatchingGmailService(batchSizes));
+
+        labeler.createLabels(Arrays.asList(Arrays.asList("A"), Arrays.asList("B")));
+
+        Assert.assertEquals(Arrays.asList(2, 1), batchSizes);
+        Assert.assertNotNull(labeler.getAvailableLabel(GMailLabeler.PST_IMPORT_LABEL));
+        Assert.assertNotNull(labeler.getAvailableLabel("A"));
+        Assert.assertNotNull(labeler.getAvailableLabel("B"));
+    }
+
+    @Test
+    public void testCreateLabelsNoneMissing() throws IOException {
+        labeler.getAvailableLabels().put(GMailLabeler.PST_IMPORT_LABEL, label2);
+        labeler.getAvailableLabels().put("INBOX", label1);
+
+        labeler.createLabels(Arrays.asList(Arrays.asList("Inbox")));
+
+        Mockito.verifyZeroInteractions(mockGmailService);
+    }
+
+    private Gmail getBatchingGmailService(final List<Integer> batchSizes) {
+        return new Gmail.Builder(new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        int parts = StringUtils.countMatches(getContentAsString(), "application/http");
+
+                        batchSizes.add(parts);
+
+                        return new MockLowLevelHttpResponse().setContentType("multipart/mixed; boundary=" + BOUNDARY)
+                                                             .setContent(getBatchResponse(parts));
+                    }
+                };
+            }
+        }, JacksonFactory.getDefaultInstance(), null).setApplicationName("test").build();
+    }
+
+    private static String getBatchResponse(int parts) {
+        StringBuilder response = new StringBuilder();
+
+        for (int i = 1; i <= parts; ++i) {
+            response.append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: <response-").append(i).append(">\r\n\r\n")
+                    .append("HTTP/1.1 200 OK\r\n")
+                    .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                    .append("{\"id\":\"").append(i).append("\"}\r\n");
+        }
+
+        return response.append("--").append(BOUNDARY).append("--\r\n").toString();
+    }
+}
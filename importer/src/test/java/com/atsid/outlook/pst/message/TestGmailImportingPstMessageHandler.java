@@ -1,27 +1,44 @@
 package com.atsid.outlook.pst.message;
 
 import com.atsid.outlook.pst.AttachmentExtractor;
+import com.atsid.outlook.pst.AttachmentLogger;
+import com.atsid.outlook.pst.ExtractedAttachments;
 import com.atsid.outlook.pst.GmailServiceFactory;
+import com.atsid.outlook.pst.catalog.AttachmentCatalog;
+import com.atsid.outlook.pst.catalog.CatalogEntry;
+import com.atsid.outlook.pst.catalog.CatalogIndex;
+import com.atsid.outlook.pst.journal.ImportJournal;
+import com.atsid.outlook.pst.journal.ImportState;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.model.Label;
 import com.google.api.services.gmail.model.Message;
+import com.google.common.io.Files;
 import com.pff.PSTException;
 import com.pff.PSTMessage;
+import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.mail.MessagingException;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 @RunWith(SpringJUnit4ClassRunner.class)
@@ -54,6 +71,10 @@ public class TestGmailImportingPstMessageHandler {
     @Autowired
     @InjectMocks
     private GmailImportingPstMessageHandler messageHandler;
+    @Autowired
+    private AttachmentCatalog attachmentCatalog;
+    @Autowired
+    private AttachmentLogger attachmentLogger;
     private List<String> folderNames;
     private List<String> attachmentList;
 
@@ -61,7 +82,7 @@ public class TestGmailImportingPstMessageHandler {
     public void setup() throws IOException, PSTException, MessagingException {
         MockitoAnnotations.initMocks(this);
         folderNames = new ArrayList<>();
-        attachmentList = new ArrayList<>();
+        attachmentList = new ArrayList<>(Arrays.asList("report.pdf"));
         mockGmailMessage = new Message();
         mockLabel1 = new Label();
         mockLabel2 = new Label();
@@ -71,9 +92,13 @@ public class TestGmailImportingPstMessageHandler {
 
         Mockito.when(mockServiceFactory.getGmailService(EMAIL_ADDRESS)).thenReturn(mockGmailService);
         Mockito.when(mockLabelFactory.getLabeler(mockGmailService, EMAIL_ADDRESS)).thenReturn(mockLabeler);
-        Mockito.when(mockExtractor.extractAttachments(mockPstMessage, "output")).thenReturn(attachmentList);
-        Mockito.when(mockMessageConverter.convertMessage(mockPstMessage, "output", attachmentList))
-               .thenReturn(mockGmailMessage);
+        Mockito.when(mockPstMessage.getDescriptorNodeId()).thenReturn(7L);
+        Mockito.when(mockPstMessage.getSubject()).thenReturn("Subject");
+        Mockito.when(mockPstMessage.getBody()).thenReturn("body");
+        Mockito.when(mockExtractor.extractAttachments(Mockito.eq(mockPstMessage), Mockito.eq("output"),
+                Mockito.anyListOf(KeptAttachment.class))).thenReturn(new ExtractedAttachments(attachmentList));
+        Mockito.when(mockMessageConverter.convertMessage(Mockito.argThat(new SnapshotOfMessage()),
+                Mockito.eq("output"))).thenReturn(mockGmailMessage);
         Mockito.when(mockGmailService.users()).thenReturn(mockGmailUsersSerivce);
         Mockito.when(mockGmailUsersSerivce.messages()).thenReturn(mockGmailMessagesService);
         Mockito.when(mockGmailMessagesService.gmailImport(EMAIL_ADDRESS, mockGmailMessage))
@@ -82,6 +107,25 @@ public class TestGmailImportingPstMessageHandler {
         Mockito.when(mockLabeler.getAvailableLabel(GMailLabeler.PST_IMPORT_LABEL)).thenReturn(mockLabel2);
     }
 
+    @Test
+    public void testPrepareFolders() throws IOException {
+        List<List<String>> folderPaths = Arrays.asList(Arrays.asList("Inbox"), Arrays.asList("Inbox", "Work"));
+
+        messageHandler.prepareFolders(folderPaths, EMAIL_ADDRESS);
+
+        Mockito.verify(mockLabeler).createLabels(Mockito.eq(folderPaths));
+    }
+
+    @Test
+    public void testPrepareFoldersError() throws IOException {
+        List<List<String>> folderPaths = Arrays.asList(Arrays.asList("Inbox"));
+        Mockito.doThrow(new IOException()).when(mockLabeler).createLabels(Mockito.eq(folderPaths));
+
+        messageHandler.prepareFolders(folderPaths, EMAIL_ADDRESS);
+
+        Mockito.verify(mockLabeler).createLabels(Mockito.eq(folderPaths));
+    }
+
     /**
      * Tests processEmailMessage in non-batch mode.  Currently processEmailMessage in batch mode
      * is not tested due to Google making methods final so we can't mock them.
@@ -92,19 +136,25 @@ public class TestGmailImportingPstMessageHandler {
      */
     @Test
     public void testProcessEmailMessage() throws IOException, PSTException, MessagingException {
+        ArgumentCaptor<PstMessageSnapshot> snapshot = ArgumentCaptor.forClass(PstMessageSnapshot.class);
+
         messageHandler.processEmailMessage(mockPstMessage, "output", folderNames, EMAIL_ADDRESS);
 
         Mockito.verify(mockServiceFactory).getGmailService(Mockito.eq(EMAIL_ADDRESS));
         Mockito.verify(mockLabelFactory).getLabeler(Mockito.eq(mockGmailService), Mockito.eq(EMAIL_ADDRESS));
-        Mockito.verify(mockExtractor).extractAttachments(Mockito.eq(mockPstMessage), Mockito.eq("output"));
-        Mockito.verify(mockMessageConverter)
-               .convertMessage(Mockito.eq(mockPstMessage), Mockito.eq("output"), Mockito.eq(attachmentList));
+        Mockito.verify(mockExtractor).extractAttachments(Mockito.eq(mockPstMessage), Mockito.eq("output"),
+                Mockito.anyListOf(KeptAttachment.class));
+        Mockito.verify(mockMessageConverter).convertMessage(snapshot.capture(), Mockito.eq("output"));
         Mockito.verify(mockLabeler).getLabel(Mockito.eq(folderNames), Mockito.eq(EMAIL_ADDRESS));
         Mockito.verify(mockGmailService).users();
         Mockito.verify(mockGmailUsersSerivce).messages();
         Mockito.verify(mockGmailMessagesService).gmailImport(Mockito.eq(EMAIL_ADDRESS), Mockito.eq(mockGmailMessage));
         Mockito.verify(mockGmailImportService).execute();
 
+        Assert.assertEquals(7L, snapshot.getValue().getDescriptorNodeId());
+        Assert.assertEquals("Subject", snapshot.getValue().getSubject());
+        Assert.assertEquals("body", snapshot.getValue().getBody());
+        Assert.assertEquals(attachmentList, snapshot.getValue().getAttachmentsRemoved());
         Assert.assertTrue(mockGmailMessage.getLabelIds().contains("label-1"));
         Assert.assertTrue(mockGmailMessage.getLabelIds().contains("label-2"));
     }
@@ -138,4 +188,78 @@ public class TestGmailImportingPstMessageHandler {
         Mockito.verify(mockLabeler).getLabel(Mockito.eq(folderNames), Mockito.eq(EMAIL_ADDRESS));
         Mockito.verifyZeroInteractions(mockGmailImportService);
     }
-}
\ No newline at end of file
+
+    /**
+     * Tests that attachments cataloged for a message are on disk by the time the import journal records it as
+     * extracted, so an import that dies before finishing still has them in the catalog when it resumes and skips
+     * extracting that message.
+     */
+    @Test
+    public void testPrepareMessageCatalogSurvivesResume() throws Exception {
+        final File outputDir = Files.createTempDir();
+        final String outputPath = outputDir.getAbsolutePath();
+        String pstFileName = new File(outputDir, "test.pst").getAbsolutePath();
+        ExtractedAttachments extracted = Mockito.mock(ExtractedAttachments.class);
+        ImportJournal journal = new ImportJournal();
+        Object sharedJournal = ReflectionTestUtils.getField(messageHandler, "journal");
+
+        Mockito.when(mockPstMessage.getDescriptorNodeId()).thenReturn(42L);
+        Mockito.when(mockExtractor.extractAttachments(Mockito.eq(mockPstMessage), Mockito.eq(outputPath),
+                Mockito.anyListOf(KeptAttachment.class))).thenReturn(extracted);
+        Mockito.when(mockMessageConverter.convertMessage(Mockito.any(PstMessageSnapshot.class), Mockito.eq(outputPath)))
+               .thenReturn(mockGmailMessage);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                AttachmentCatalog catalog = (AttachmentCatalog) invocation.getArguments()[0];
+
+                // Cataloging waits for the attachment writes, which log each attachment as it finishes
+                attachmentLogger.logAttachmentRemoved(42L, "report.pdf", "Report", outputPath);
+                catalog.add(outputPath, new CatalogEntry(42L, "report.pdf", "Report", 100, null, "Inbox", new Date()));
+                return null;
+            }
+        }).when(extracted).catalog(Mockito.any(AttachmentCatalog.class), Mockito.anyListOf(String.class),
+                Mockito.any(Date.class));
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(messageHandler, "journal", journal);
+        ReflectionTestUtils.setField(attachmentCatalog, "enabled", true);
+
+        try {
+            journal.open(pstFileName, EMAIL_ADDRESS, outputPath);
+            messageHandler.prepareMessage(messageHandler.readMessage(mockPstMessage, outputPath), outputPath,
+                    folderNames, EMAIL_ADDRESS);
+
+            // Resume without finishProcessing, as if the import had died here
+            journal.open(pstFileName, EMAIL_ADDRESS, outputPath);
+
+            Assert.assertTrue(journal.hasReached(42L, ImportState.EXTRACTED));
+
+            try (CatalogIndex index = CatalogIndex.open(outputPath)) {
+                Assert.assertEquals(1, index.findByEmailId(42L).size());
+            }
+
+            Assert.assertEquals(Arrays.asList("Extracted attachment report.pdf (Report) from email 42"),
+                    FileUtils.readLines(new File(outputDir, "attachments.log")));
+        } finally {
+            ReflectionTestUtils.setField(messageHandler, "journal", sharedJournal);
+            ReflectionTestUtils.setField(attachmentCatalog, "enabled", false);
+            journal.close();
+            attachmentCatalog.shutdown();
+            FileUtils.deleteDirectory(outputDir);
+        }
+    }
+
+    /**
+     * Matches the snapshot taken of the mocked PST message with the attachments the mocked extractor stripped.
+     */
+    private class SnapshotOfMessage extends ArgumentMatcher<PstMessageSnapshot> {
+        @Override
+        public boolean matches(Object argument) {
+            PstMessageSnapshot snapshot = (PstMessageSnapshot) argument;
+
+            return snapshot != null && snapshot.getDescriptorNodeId() == 7L &&
+                   "Subject".equals(snapshot.getSubject()) && "body".equals(snapshot.getBody()) &&
+                   attachmentList.equals(snapshot.getAttachmentsRemoved());
+        }
+    }
+}
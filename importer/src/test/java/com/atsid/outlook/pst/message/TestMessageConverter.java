@@ -4,10 +4,12 @@ import com.atsid.exchange.email.SenderResolver;
 import com.google.api.services.gmail.model.Message;
 import com.pff.PSTException;
 import com.pff.PSTMessage;
+import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -18,12 +20,14 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import javax.mail.Flags;
 import javax.mail.MessagingException;
+import javax.mail.Part;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -69,24 +73,25 @@ public class TestMessageConverter {
         Mockito.when(mockPstMessage.hasReplied()).thenReturn(true);
         Mockito.when(mockPstMessage.isFlagged()).thenReturn(false);
         Mockito.when(mockPstMessage.isRead()).thenReturn(true);
+        Mockito.when(mockPstMessage.getSenderEmailAddress()).thenReturn("OU=def/cn=test.user");
     }
 
     @Test
     public void testConvertMessageNonExchange() throws PSTException, MessagingException, IOException {
         Mockito.when(mockPstMessage.getSenderAddrtype()).thenReturn("SMTP");
 
-        Message message = converter.convertMessage(mockPstMessage, "output", attachments);
+        PstMessageSnapshot snapshot = PstMessageSnapshot.of(mockPstMessage, attachments);
+        Message message = converter.convertMessage(snapshot, "output");
 
         Mockito.verify(mockMessageUtils)
-               .copyContent(Mockito.eq(mockPstMessage), Mockito.eq(attachments), Mockito.eq(mockText),
-                       Mockito.eq(mockHtml), Mockito.eq(mockContent));
+               .copyContent(Mockito.eq(snapshot), Mockito.eq(mockText), Mockito.eq(mockHtml), Mockito.eq(mockContent));
         Mockito.verify(mockMimeMessage).setContent(Mockito.eq(mockContent));
         Mockito.verify(mockMimeMessage).setHeader(Mockito.eq("Content-Type"), Mockito.eq("contentType"));
-        Mockito.verify(mockMessageUtils).copyRecipients(Mockito.eq(mockPstMessage), Mockito.eq(mockMimeMessage));
+        Mockito.verify(mockMessageUtils).copyRecipients(Mockito.eq(snapshot), Mockito.eq(mockMimeMessage));
         Mockito.verify(mockMessageUtils)
-               .copyHeaders(Mockito.eq(mockPstMessage), Mockito.eq("output"), Mockito.eq(mockMimeMessage));
+               .copyHeaders(Mockito.eq(snapshot), Mockito.eq("output"), Mockito.eq(mockMimeMessage));
         Mockito.verify(mockMessageUtils)
-               .updateSubject(Mockito.eq(mockPstMessage), Mockito.eq(false), Mockito.eq(mockMimeMessage));
+               .updateSubject(Mockito.eq(snapshot), Mockito.eq(false), Mockito.eq(mockMimeMessage));
         Mockito.verify(mockPstMessage).getSenderAddrtype();
         Mockito.verify(mockMimeMessage).setSentDate(Mockito.eq(currentDate));
         Mockito.verify(mockMimeMessage).setFlag(Mockito.eq(Flags.Flag.ANSWERED), Mockito.eq(true));
@@ -99,20 +104,20 @@ public class TestMessageConverter {
     @Test
     public void testConvertMessageExchangeMessageResolvable() throws PSTException, MessagingException, IOException {
         Mockito.when(mockPstMessage.getSenderAddrtype()).thenReturn("EX");
-        Mockito.when(mockSenderResolver.resolveSender(mockPstMessage)).thenReturn("test@example.com");
+        Mockito.when(mockSenderResolver.resolveSender("EX", "OU=def/cn=test.user")).thenReturn("test@example.com");
 
-        Message message = converter.convertMessage(mockPstMessage, "output", attachments);
+        PstMessageSnapshot snapshot = PstMessageSnapshot.of(mockPstMessage, attachments);
+        Message message = converter.convertMessage(snapshot, "output");
 
         Mockito.verify(mockMessageUtils)
-               .copyContent(Mockito.eq(mockPstMessage), Mockito.eq(attachments), Mockito.eq(mockText),
-                       Mockito.eq(mockHtml), Mockito.eq(mockContent));
+               .copyContent(Mockito.eq(snapshot), Mockito.eq(mockText), Mockito.eq(mockHtml), Mockito.eq(mockContent));
         Mockito.verify(mockMimeMessage).setContent(Mockito.eq(mockContent));
         Mockito.verify(mockMimeMessage).setHeader(Mockito.eq("Content-Type"), Mockito.eq("contentType"));
-        Mockito.verify(mockMessageUtils).copyRecipients(Mockito.eq(mockPstMessage), Mockito.eq(mockMimeMessage));
+        Mockito.verify(mockMessageUtils).copyRecipients(Mockito.eq(snapshot), Mockito.eq(mockMimeMessage));
         Mockito.verify(mockMessageUtils)
-               .copyHeaders(Mockito.eq(mockPstMessage), Mockito.eq("output"), Mockito.eq(mockMimeMessage));
+               .copyHeaders(Mockito.eq(snapshot), Mockito.eq("output"), Mockito.eq(mockMimeMessage));
         Mockito.verify(mockMessageUtils)
-               .updateSubject(Mockito.eq(mockPstMessage), Mockito.eq(false), Mockito.eq(mockMimeMessage));
+               .updateSubject(Mockito.eq(snapshot), Mockito.eq(false), Mockito.eq(mockMimeMessage));
         Mockito.verify(mockPstMessage).getSenderAddrtype();
         Mockito.verify(mockMimeMessage).setSentDate(Mockito.eq(currentDate));
         Mockito.verify(mockMimeMessage).setFlag(Mockito.eq(Flags.Flag.ANSWERED), Mockito.eq(true));
@@ -126,20 +131,20 @@ public class TestMessageConverter {
     public void testConvertMessageExchangeMessageWithoutSenderEmail()
             throws PSTException, MessagingException, IOException {
         Mockito.when(mockPstMessage.getSenderAddrtype()).thenReturn("EX");
-        Mockito.when(mockSenderResolver.resolveSender(mockPstMessage)).thenReturn("");
+        Mockito.when(mockSenderResolver.resolveSender("EX", "OU=def/cn=test.user")).thenReturn("");
 
-        Message message = converter.convertMessage(mockPstMessage, "output", attachments);
+        PstMessageSnapshot snapshot = PstMessageSnapshot.of(mockPstMessage, attachments);
+        Message message = converter.convertMessage(snapshot, "output");
 
         Mockito.verify(mockMessageUtils)
-               .copyContent(Mockito.eq(mockPstMessage), Mockito.eq(attachments), Mockito.eq(mockText),
-                       Mockito.eq(mockHtml), Mockito.eq(mockContent));
+               .copyContent(Mockito.eq(snapshot), Mockito.eq(mockText), Mockito.eq(mockHtml), Mockito.eq(mockContent));
         Mockito.verify(mockMimeMessage).setContent(Mockito.eq(mockContent));
         Mockito.verify(mockMimeMessage).setHeader(Mockito.eq("Content-Type"), Mockito.eq("contentType"));
-        Mockito.verify(mockMessageUtils).copyRecipients(Mockito.eq(mockPstMessage), Mockito.eq(mockMimeMessage));
+        Mockito.verify(mockMessageUtils).copyRecipients(Mockito.eq(snapshot), Mockito.eq(mockMimeMessage));
         Mockito.verify(mockMessageUtils)
-               .copyHeaders(Mockito.eq(mockPstMessage), Mockito.eq("output"), Mockito.eq(mockMimeMessage));
+               .copyHeaders(Mockito.eq(snapshot), Mockito.eq("output"), Mockito.eq(mockMimeMessage));
         Mockito.verify(mockMessageUtils)
-               .updateSubject(Mockito.eq(mockPstMessage), Mockito.eq(false), Mockito.eq(mockMimeMessage));
+               .updateSubject(Mockito.eq(snapshot), Mockito.eq(false), Mockito.eq(mockMimeMessage));
         Mockito.verify(mockPstMessage).getSenderAddrtype();
         Mockito.verify(mockMimeMessage).setSentDate(Mockito.eq(currentDate));
         Mockito.verify(mockMimeMessage).setFlag(Mockito.eq(Flags.Flag.ANSWERED), Mockito.eq(true));
@@ -147,4 +152,47 @@ public class TestMessageConverter {
         Mockito.verify(mockMimeMessage).setFlag(Mockito.eq(Flags.Flag.SEEN), Mockito.eq(true));
         Assert.assertEquals(currentDate.getTime(), message.get("internalDate"));
     }
+
+    @Test
+    public void testConvertMessageKeptAttachments() throws PSTException, MessagingException, IOException {
+        MimeMultipart mockRelated = Mockito.mock(MimeMultipart.class);
+        MimeMultipart mockMixed = Mockito.mock(MimeMultipart.class);
+        MimeBodyPart relatedContent = new MimeBodyPart();
+        MimeBodyPart inlinePart = new MimeBodyPart();
+        MimeBodyPart mixedContent = new MimeBodyPart();
+        MimeBodyPart attachedPart = new MimeBodyPart();
+        List<KeptAttachment> kept = Arrays.asList(
+                new KeptAttachment("logo.png", "image/png", "logo@example.com", new byte[] { 1, 2 }),
+                new KeptAttachment("notes.txt", "text/plain", null, new byte[] { 3 }));
+        Mockito.when(mockPstMessage.getSenderAddrtype()).thenReturn("SMTP");
+        Mockito.when(mockMimeMessageFactory.getMimeBodyPart())
+               .thenReturn(mockText, mockHtml, relatedContent, inlinePart, mixedContent, attachedPart);
+        Mockito.when(mockMimeMessageFactory.getMimemultipart("related")).thenReturn(mockRelated);
+        Mockito.when(mockMimeMessageFactory.getMimemultipart("mixed")).thenReturn(mockMixed);
+        Mockito.when(mockMixed.getContentType()).thenReturn("multipart/mixed");
+
+        PstMessageSnapshot snapshot = PstMessageSnapshot.of(mockPstMessage, attachments, kept);
+
+        converter.convertMessage(snapshot, "output");
+
+        InOrder relatedOrder = Mockito.inOrder(mockRelated);
+        InOrder mixedOrder = Mockito.inOrder(mockMixed);
+
+        relatedOrder.verify(mockRelated).addBodyPart(relatedContent);
+        relatedOrder.verify(mockRelated).addBodyPart(inlinePart);
+        mixedOrder.verify(mockMixed).addBodyPart(mixedContent);
+        mixedOrder.verify(mockMixed).addBodyPart(attachedPart);
+        Mockito.verify(mockMimeMessage).setContent(Mockito.eq(mockMixed));
+        Mockito.verify(mockMimeMessage).setHeader(Mockito.eq("Content-Type"), Mockito.eq("multipart/mixed"));
+        Assert.assertSame(mockContent, relatedContent.getDataHandler().getContent());
+        Assert.assertSame(mockRelated, mixedContent.getDataHandler().getContent());
+        Assert.assertEquals("logo.png", inlinePart.getFileName());
+        Assert.assertEquals(Part.INLINE, inlinePart.getDisposition());
+        Assert.assertEquals("<logo@example.com>", inlinePart.getContentID());
+        Assert.assertEquals("notes.txt", attachedPart.getFileName());
+        Assert.assertEquals(Part.ATTACHMENT, attachedPart.getDisposition());
+        Assert.assertNull(attachedPart.getContentID());
+        Assert.assertArrayEquals(new byte[] { 3 },
+                IOUtils.toByteArray(attachedPart.getDataHandler().getDataSource().getInputStream()));
+    }
 }
\ No newline at end of file
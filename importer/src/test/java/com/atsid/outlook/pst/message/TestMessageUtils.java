@@ -4,9 +4,12 @@ import com.atsid.outlook.pst.AttachmentLogger;
 import com.pff.PSTException;
 import com.pff.PSTMessage;
 import com.pff.PSTRecipient;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -16,6 +19,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import javax.activation.DataHandler;
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
@@ -50,27 +54,27 @@ public class TestMessageUtils {
     }
 
     @Test
-    public void testUpdateSubjectNoAttachments() throws MessagingException {
+    public void testUpdateSubjectNoAttachments() throws MessagingException, PSTException, IOException {
         Mockito.when(pstMessage.getSubject()).thenReturn("Subject");
 
-        utils.updateSubject(pstMessage, false, mimeMessage);
+        utils.updateSubject(snapshot(null), false, mimeMessage);
 
         Mockito.verify(pstMessage).getSubject();
         Mockito.verify(mimeMessage).setSubject(Mockito.eq("Subject"));
     }
 
     @Test
-    public void testUpdateSubject() throws MessagingException {
+    public void testUpdateSubject() throws MessagingException, PSTException, IOException {
         Mockito.when(pstMessage.getSubject()).thenReturn("Subject");
 
-        utils.updateSubject(pstMessage, true, mimeMessage);
+        utils.updateSubject(snapshot(null), true, mimeMessage);
 
         Mockito.verify(pstMessage).getSubject();
         Mockito.verify(mimeMessage).setSubject(Mockito.eq("prefixSubject"));
     }
 
     @Test
-    public void testCopyContentNullAttachmentsTextOnly() throws MessagingException {
+    public void testCopyContentNullAttachmentsTextOnly() throws MessagingException, PSTException, IOException {
         MimeBodyPart text = Mockito.mock(MimeBodyPart.class);
         MimeBodyPart html = Mockito.mock(MimeBodyPart.class);
         MimeMultipart content = Mockito.mock(MimeMultipart.class);
@@ -78,7 +82,7 @@ public class TestMessageUtils {
         Mockito.when(pstMessage.getBodyHTML()).thenReturn("");
         Mockito.when(pstMessage.getBody()).thenReturn("body");
 
-        utils.copyContent(pstMessage, null, text, html, content);
+        utils.copyContent(snapshot(null), text, html, content);
 
         Mockito.verify(pstMessage).getBody();
         Mockito.verify(pstMessage).getBodyHTML();
@@ -88,7 +92,7 @@ public class TestMessageUtils {
     }
 
     @Test
-    public void testCopyContentNoStrippedAttachmentsTextOnly() throws MessagingException {
+    public void testCopyContentNoStrippedAttachmentsTextOnly() throws MessagingException, PSTException, IOException {
         MimeBodyPart text = Mockito.mock(MimeBodyPart.class);
         MimeBodyPart html = Mockito.mock(MimeBodyPart.class);
         MimeMultipart content = Mockito.mock(MimeMultipart.class);
@@ -97,7 +101,7 @@ public class TestMessageUtils {
         Mockito.when(pstMessage.getBodyHTML()).thenReturn("");
         Mockito.when(pstMessage.getBody()).thenReturn("body");
 
-        utils.copyContent(pstMessage, strippedAttachments, text, html, content);
+        utils.copyContent(snapshot(strippedAttachments), text, html, content);
 
         Mockito.verify(pstMessage).getBody();
         Mockito.verify(pstMessage).getBodyHTML();
@@ -107,7 +111,7 @@ public class TestMessageUtils {
     }
 
     @Test
-    public void testCopyContentStrippedAttachmentsTextOnly() throws MessagingException {
+    public void testCopyContentStrippedAttachmentsTextOnly() throws MessagingException, PSTException, IOException {
         MimeBodyPart text = Mockito.mock(MimeBodyPart.class);
         MimeBodyPart html = Mockito.mock(MimeBodyPart.class);
         MimeMultipart content = Mockito.mock(MimeMultipart.class);
@@ -125,17 +129,18 @@ public class TestMessageUtils {
         strippedAttachments.add("attachment-1");
         strippedAttachments.add("attachment-2");
 
-        utils.copyContent(pstMessage, strippedAttachments, text, html, content);
+        utils.copyContent(snapshot(strippedAttachments), text, html, content);
 
         Mockito.verify(pstMessage).getBody();
         Mockito.verify(pstMessage).getBodyHTML();
-        Mockito.verify(text).setText(Mockito.eq(builder.toString()));
+        Assert.assertEquals(builder.toString(), getBody(text));
+        Mockito.verify(text, Mockito.never()).setText(Mockito.anyString());
         Mockito.verify(content).addBodyPart(Mockito.eq(text));
         Mockito.verifyZeroInteractions(html);
     }
 
     @Test
-    public void testCopyContentNullAttachmentsHtml() throws MessagingException {
+    public void testCopyContentNullAttachmentsHtml() throws MessagingException, PSTException, IOException {
         MimeBodyPart text = Mockito.mock(MimeBodyPart.class);
         MimeBodyPart html = Mockito.mock(MimeBodyPart.class);
         MimeMultipart content = Mockito.mock(MimeMultipart.class);
@@ -143,10 +148,10 @@ public class TestMessageUtils {
         Mockito.when(pstMessage.getBodyHTML()).thenReturn("html");
         Mockito.when(pstMessage.getBody()).thenReturn("body");
 
-        utils.copyContent(pstMessage, null, text, html, content);
+        utils.copyContent(snapshot(null), text, html, content);
 
         Mockito.verify(pstMessage).getBody();
-        Mockito.verify(pstMessage, Mockito.atLeast(1)).getBodyHTML();
+        Mockito.verify(pstMessage).getBodyHTML();
         Mockito.verify(text).setText(Mockito.eq("body"));
         Mockito.verify(content).addBodyPart(Mockito.eq(text));
         Mockito.verify(html).setContent(Mockito.eq("html"), Mockito.eq("text/html"));
@@ -154,7 +159,7 @@ public class TestMessageUtils {
     }
 
     @Test
-    public void testCopyContentNoStrippedAttachmentsHtml() throws MessagingException {
+    public void testCopyContentNoStrippedAttachmentsHtml() throws MessagingException, PSTException, IOException {
         MimeBodyPart text = Mockito.mock(MimeBodyPart.class);
         MimeBodyPart html = Mockito.mock(MimeBodyPart.class);
         MimeMultipart content = Mockito.mock(MimeMultipart.class);
@@ -171,19 +176,18 @@ public class TestMessageUtils {
         strippedAttachments.add("attachment-1");
         strippedAttachments.add("attachment-2");
 
-        utils.copyContent(pstMessage, strippedAttachments, text, html, content);
+        utils.copyContent(snapshot(strippedAttachments), text, html, content);
 
         Mockito.verify(pstMessage).getBody();
-        Mockito.verify(pstMessage, Mockito.atLeast(1)).getBodyHTML();
-        Mockito.verify(text).setText(Mockito.eq(builder.toString() + "body"));
+        Mockito.verify(pstMessage).getBodyHTML();
+        Assert.assertEquals(builder.toString() + "body", getBody(text));
         Mockito.verify(content).addBodyPart(Mockito.eq(text));
-        Mockito.verify(html)
-               .setContent(Mockito.eq("<pre>" + builder.toString() + "</pre>html"), Mockito.eq("text/html"));
+        Assert.assertEquals("<pre>" + builder.toString() + "</pre>html", getBody(html));
         Mockito.verify(content).addBodyPart(Mockito.eq(html));
     }
 
     @Test
-    public void testCopyContentStrippedAttachmentsHtml() throws MessagingException {
+    public void testCopyContentStrippedAttachmentsHtml() throws MessagingException, PSTException, IOException {
         MimeBodyPart text = Mockito.mock(MimeBodyPart.class);
         MimeBodyPart html = Mockito.mock(MimeBodyPart.class);
         MimeMultipart content = Mockito.mock(MimeMultipart.class);
@@ -192,10 +196,10 @@ public class TestMessageUtils {
         Mockito.when(pstMessage.getBodyHTML()).thenReturn("html");
         Mockito.when(pstMessage.getBody()).thenReturn("body");
 
-        utils.copyContent(pstMessage, strippedAttachments, text, html, content);
+        utils.copyContent(snapshot(strippedAttachments), text, html, content);
 
         Mockito.verify(pstMessage).getBody();
-        Mockito.verify(pstMessage, Mockito.atLeast(1)).getBodyHTML();
+        Mockito.verify(pstMessage).getBodyHTML();
         Mockito.verify(text).setText(Mockito.eq("body"));
         Mockito.verify(content).addBodyPart(Mockito.eq(text));
         Mockito.verify(html).setContent(Mockito.eq("html"), Mockito.eq("text/html"));
@@ -203,92 +207,126 @@ public class TestMessageUtils {
     }
 
     @Test
-    public void testCopyHeadersEmptyHeaders() throws MessagingException {
+    public void testCopyHeadersEmptyHeaders() throws MessagingException, PSTException, IOException {
         Mockito.when(pstMessage.getTransportMessageHeaders()).thenReturn("");
+        PstMessageSnapshot snapshot = snapshot(null);
 
-        utils.copyHeaders(pstMessage, "", mimeMessage);
+        utils.copyHeaders(snapshot, "", mimeMessage);
 
-        Mockito.verify(pstMessage).getTransportMessageHeaders();
-        Mockito.verifyNoMoreInteractions(pstMessage);
+        Mockito.verify(snapshot).getTransportMessageHeaders();
+        Mockito.verifyNoMoreInteractions(snapshot);
         Mockito.verifyZeroInteractions(mimeMessage);
     }
 
     @Test
-    public void testCopyHeadersContinuedLine() throws MessagingException {
+    public void testCopyHeadersContinuedLine() throws MessagingException, PSTException, IOException {
         Mockito.when(pstMessage.getTransportMessageHeaders()).thenReturn("blah:\n blah2\nto: test@me.com");
+        PstMessageSnapshot snapshot = snapshot(null);
 
-        utils.copyHeaders(pstMessage, "", mimeMessage);
+        utils.copyHeaders(snapshot, "", mimeMessage);
 
-        Mockito.verify(pstMessage).getTransportMessageHeaders();
+        Mockito.verify(snapshot).getTransportMessageHeaders();
+        Mockito.verifyNoMoreInteractions(snapshot);
         Mockito.verify(mimeMessage).addHeaderLine(Mockito.eq("blah:\n blah2"));
-        Mockito.verifyNoMoreInteractions(pstMessage);
         Mockito.verifyNoMoreInteractions(mimeMessage);
     }
 
     @Test
-    public void testCopyHeadersSmtpSender() throws MessagingException {
+    public void testCopyHeadersLastHeaderKept() throws MessagingException, PSTException, IOException {
+        Mockito.when(pstMessage.getTransportMessageHeaders()).thenReturn("To: test@me.com\r\nSubject: last\r\n");
+        PstMessageSnapshot snapshot = snapshot(null);
+
+        utils.copyHeaders(snapshot, "", mimeMessage);
+
+        Mockito.verify(snapshot).getTransportMessageHeaders();
+        Mockito.verifyNoMoreInteractions(snapshot);
+        Mockito.verify(mimeMessage).addHeaderLine(Mockito.eq("Subject: last"));
+        Mockito.verifyNoMoreInteractions(mimeMessage);
+    }
+
+    @Test
+    public void testCopyHeadersStopsAtBlankLine() throws MessagingException, PSTException, IOException {
+        Mockito.when(pstMessage.getTransportMessageHeaders())
+               .thenReturn("X-Long: a\r\n\tb\r\n\tc\r\n\r\nbody: not a header");
+        PstMessageSnapshot snapshot = snapshot(null);
+
+        utils.copyHeaders(snapshot, "", mimeMessage);
+
+        Mockito.verify(snapshot).getTransportMessageHeaders();
+        Mockito.verifyNoMoreInteractions(snapshot);
+        Mockito.verify(mimeMessage).addHeaderLine(Mockito.eq("X-Long: a\r\n\tb\r\n\tc"));
+        Mockito.verifyNoMoreInteractions(mimeMessage);
+    }
+
+    @Test
+    public void testCopyHeadersSmtpSender() throws MessagingException, PSTException, IOException {
         Mockito.when(pstMessage.getTransportMessageHeaders())
                .thenReturn("blah: blah2\nto: test@me.com\nfrom: blah@blah.com\nto: me@bogus.com");
         Mockito.when(pstMessage.getSenderAddrtype()).thenReturn("SMTP");
         Mockito.when(pstMessage.getSenderEmailAddress()).thenReturn("valid@test.com");
+        PstMessageSnapshot snapshot = snapshot(null);
 
-        utils.copyHeaders(pstMessage, "", mimeMessage);
+        utils.copyHeaders(snapshot, "", mimeMessage);
 
-        Mockito.verify(pstMessage).getTransportMessageHeaders();
-        Mockito.verify(pstMessage).getSenderEmailAddress();
-        Mockito.verify(pstMessage).getSenderAddrtype();
+        Mockito.verify(snapshot).getTransportMessageHeaders();
+        Mockito.verify(snapshot).getSenderEmailAddress();
+        Mockito.verify(snapshot).getSenderAddrtype();
+        Mockito.verifyNoMoreInteractions(snapshot);
         Mockito.verify(mimeMessage).addHeaderLine(Mockito.eq("blah: blah2"));
         Mockito.verify(mimeMessage).setFrom(Mockito.eq(new InternetAddress("valid@test.com")));
-        Mockito.verifyNoMoreInteractions(pstMessage);
         Mockito.verifyNoMoreInteractions(mimeMessage);
     }
 
     @Test
-    public void testCopyHeadersSmtpSenderAddressError() throws MessagingException {
+    public void testCopyHeadersSmtpSenderAddressError() throws MessagingException, PSTException, IOException {
         Mockito.when(pstMessage.getTransportMessageHeaders())
                .thenReturn("blah: blah2\nto: test@me.com\nfrom: blah@blah.com\nto: me@bogus.com");
         Mockito.when(pstMessage.getSenderAddrtype()).thenReturn("SMTP");
         Mockito.when(pstMessage.getSenderEmailAddress()).thenReturn("valid test.com");
         Mockito.when(pstMessage.getDescriptorNodeId()).thenReturn(1L);
+        PstMessageSnapshot snapshot = snapshot(null);
 
-        utils.copyHeaders(pstMessage, "OP", mimeMessage);
+        utils.copyHeaders(snapshot, "OP", mimeMessage);
 
-        Mockito.verify(pstMessage).getTransportMessageHeaders();
-        Mockito.verify(pstMessage, Mockito.atLeast(1)).getSenderEmailAddress();
-        Mockito.verify(pstMessage).getSenderAddrtype();
-        Mockito.verify(pstMessage, Mockito.atLeast(1)).getDescriptorNodeId();
+        Mockito.verify(snapshot).getTransportMessageHeaders();
+        Mockito.verify(snapshot, Mockito.atLeast(1)).getSenderEmailAddress();
+        Mockito.verify(snapshot).getSenderAddrtype();
+        Mockito.verify(snapshot, Mockito.atLeast(1)).getDescriptorNodeId();
+        Mockito.verifyNoMoreInteractions(snapshot);
         Mockito.verify(mimeMessage).addHeaderLine(Mockito.eq("blah: blah2"));
         Mockito.verify(attachmentLogger).logSenderError(Mockito.eq(1L), Mockito.eq("OP"), Mockito.eq("valid test.com"));
-        Mockito.verifyNoMoreInteractions(pstMessage);
         Mockito.verifyNoMoreInteractions(mimeMessage);
     }
 
     @Test
-    public void testCopyHeadersNonSmtpSenderAddressError() throws MessagingException {
+    public void testCopyHeadersNonSmtpSenderAddressError() throws MessagingException, PSTException, IOException {
         Mockito.when(pstMessage.getTransportMessageHeaders())
                .thenReturn("blah: blah2\nto: test@me.com\nfrom: valid test.com\nto: bogus@test.com");
         Mockito.when(pstMessage.getSenderAddrtype()).thenReturn("EX");
         Mockito.when(pstMessage.getDescriptorNodeId()).thenReturn(1L);
+        PstMessageSnapshot snapshot = snapshot(null);
 
-        utils.copyHeaders(pstMessage, "OP", mimeMessage);
+        utils.copyHeaders(snapshot, "OP", mimeMessage);
 
-        Mockito.verify(pstMessage).getTransportMessageHeaders();
-        Mockito.verify(pstMessage).getSenderAddrtype();
-        Mockito.verify(pstMessage, Mockito.atLeast(1)).getDescriptorNodeId();
+        Mockito.verify(snapshot).getTransportMessageHeaders();
+        Mockito.verify(snapshot).getSenderAddrtype();
+        Mockito.verify(snapshot, Mockito.atLeast(1)).getDescriptorNodeId();
+        Mockito.verifyNoMoreInteractions(snapshot);
         Mockito.verify(mimeMessage).addHeaderLine(Mockito.eq("blah: blah2"));
         Mockito.verify(attachmentLogger).logSenderError(Mockito.eq(1L), Mockito.eq("OP"), Mockito.eq("valid test.com"));
-        Mockito.verifyNoMoreInteractions(pstMessage);
         Mockito.verifyNoMoreInteractions(mimeMessage);
     }
 
     @Test
     public void testCopyRecipientNoRecipients() throws PSTException, IOException, MessagingException {
         Mockito.when(pstMessage.getNumberOfRecipients()).thenReturn(0);
+        PstMessageSnapshot snapshot = snapshot(null);
 
-        utils.copyRecipients(pstMessage, mimeMessage);
+        utils.copyRecipients(snapshot, mimeMessage);
 
         Mockito.verify(pstMessage).getNumberOfRecipients();
-        Mockito.verifyNoMoreInteractions(pstMessage);
+        Mockito.verify(snapshot).getRecipients();
+        Mockito.verifyNoMoreInteractions(snapshot);
         Mockito.verifyZeroInteractions(mimeMessage);
     }
 
@@ -308,15 +346,30 @@ public class TestMessageUtils {
         Mockito.when(recip2.getSmtpAddress()).thenReturn("cc@test.com");
         Mockito.when(recip3.getRecipientType()).thenReturn(PSTRecipient.MAPI_BCC);
         Mockito.when(recip3.getSmtpAddress()).thenReturn("bcc@test.com");
+        PstMessageSnapshot snapshot = snapshot(null);
 
-        utils.copyRecipients(pstMessage, mimeMessage);
+        utils.copyRecipients(snapshot, mimeMessage);
 
-        Mockito.verify(pstMessage, Mockito.atLeast(1)).getNumberOfRecipients();
+        Mockito.verify(pstMessage).getNumberOfRecipients();
         Mockito.verify(pstMessage).getRecipient(Mockito.eq(0));
         Mockito.verify(pstMessage).getRecipient(Mockito.eq(1));
         Mockito.verify(pstMessage).getRecipient(Mockito.eq(2));
+        Mockito.verify(snapshot).getRecipients();
+        Mockito.verifyNoMoreInteractions(snapshot);
         Mockito.verify(mimeMessage).addRecipients(MimeMessage.RecipientType.TO, "to@test.com");
         Mockito.verify(mimeMessage).addRecipients(MimeMessage.RecipientType.CC, "cc@test.com");
         Mockito.verify(mimeMessage).addRecipients(MimeMessage.RecipientType.BCC, "bcc@test.com");
     }
+
+    private String getBody(MimeBodyPart part) throws MessagingException, IOException {
+        ArgumentCaptor<DataHandler> dataHandler = ArgumentCaptor.forClass(DataHandler.class);
+
+        Mockito.verify(part).setDataHandler(dataHandler.capture());
+
+        return IOUtils.toString(dataHandler.getValue().getInputStream(), "US-ASCII");
+    }
+
+    private PstMessageSnapshot snapshot(List<String> strippedAttachments) throws PSTException, IOException {
+        return Mockito.spy(PstMessageSnapshot.of(pstMessage, strippedAttachments));
+    }
 }
\ No newline at end of file
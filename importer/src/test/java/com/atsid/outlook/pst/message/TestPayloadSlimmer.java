@@ -0,0 +1,71 @@
+package com.atsid.outlook.pst.message;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class TestPayloadSlimmer {
+    private PayloadSlimmer payloadSlimmer;
+
+    @Before
+    public void setup() {
+        payloadSlimmer = new PayloadSlimmer();
+        ReflectionTestUtils.setField(payloadSlimmer, "enabled", true);
+        ReflectionTestUtils.setField(payloadSlimmer, "dropText", true);
+        ReflectionTestUtils.setField(payloadSlimmer, "collapseWhitespace", true);
+    }
+
+    @Test
+    public void testCollapseWhitespace() {
+        String html = "<p>a   b</p>\n\n  <pre>x   y\n\n</pre>\t<p>c d</p>";
+
+        Assert.assertEquals("<p>a b</p>\r\n<pre>x   y\n\n</pre>\t<p>c d</p>", payloadSlimmer.collapseWhitespace(html));
+    }
+
+    @Test
+    public void testCollapseWhitespaceUnchanged() {
+        String html = "<p>a b</p>\n<p>c</p>";
+
+        Assert.assertSame(html, payloadSlimmer.collapseWhitespace(html));
+    }
+
+    @Test
+    public void testSlimDropsText() {
+        PrefixedBodyDataSource text = new PrefixedBodyDataSource("", "body text", "text/plain");
+        PrefixedBodyDataSource html =
+                new PrefixedBodyDataSource("<pre>removed</pre>", "<p>body    text</p>", "text/html");
+
+        PayloadSlimmer.Bodies bodies = payloadSlimmer.slim(text, html);
+
+        Assert.assertNull(bodies.getText());
+        Assert.assertEquals("<pre>removed</pre>", bodies.getHtml().getPrefix());
+        Assert.assertEquals("<p>body text</p>", bodies.getHtml().getBody());
+        Assert.assertEquals("7bit", bodies.getHtml().getTransferEncoding());
+        Assert.assertTrue(payloadSlimmer.getBytesSaved() > 0);
+    }
+
+    @Test
+    public void testSlimKeepsTextWithoutHtml() {
+        PrefixedBodyDataSource text = new PrefixedBodyDataSource("", "body text", "text/plain");
+
+        PayloadSlimmer.Bodies bodies = payloadSlimmer.slim(text, null);
+
+        Assert.assertSame("body text", bodies.getText().getBody());
+        Assert.assertEquals("7bit", bodies.getText().getTransferEncoding());
+        Assert.assertNull(bodies.getHtml());
+        Assert.assertEquals(0, payloadSlimmer.getBytesSaved());
+    }
+
+    @Test
+    public void testSlimPicksSmallestEncoding() {
+        // Mostly ASCII by character count, so JavaMail would pick quoted-printable, but base64 is smaller
+        PrefixedBodyDataSource text =
+                new PrefixedBodyDataSource("", "日本語のテキストです abcdefghijklmn", "text/plain");
+
+        PayloadSlimmer.Bodies bodies = payloadSlimmer.slim(text, null);
+
+        Assert.assertEquals("base64", bodies.getText().getTransferEncoding());
+        Assert.assertTrue(payloadSlimmer.getBytesSaved() > 0);
+    }
+}
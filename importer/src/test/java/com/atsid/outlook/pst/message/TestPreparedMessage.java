@@ -0,0 +1,37 @@
+package com.atsid.outlook.pst.message;
+
+import com.google.api.services.gmail.model.Message;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class TestPreparedMessage {
+    @Test
+    public void testSpoolAndRestore() throws IOException {
+        Message gmailMessage = new Message().setRaw("cmF3IG1lc3NhZ2U");
+        PreparedMessage preparedMessage =
+                new PreparedMessage(1L, "subject", null, "test@example.com", null, gmailMessage);
+
+        preparedMessage.spool();
+
+        Assert.assertTrue(preparedMessage.isSpooled());
+        Assert.assertNull(gmailMessage.getRaw());
+
+        preparedMessage.restore();
+
+        Assert.assertFalse(preparedMessage.isSpooled());
+        Assert.assertEquals("cmF3IG1lc3NhZ2U", gmailMessage.getRaw());
+    }
+
+    @Test
+    public void testRestoreWithoutSpoolKeepsPayload() throws IOException {
+        Message gmailMessage = new Message().setRaw("cmF3IG1lc3NhZ2U");
+        PreparedMessage preparedMessage =
+                new PreparedMessage(1L, "subject", null, "test@example.com", null, gmailMessage);
+
+        preparedMessage.restore();
+
+        Assert.assertEquals("cmF3IG1lc3NhZ2U", gmailMessage.getRaw());
+    }
+}
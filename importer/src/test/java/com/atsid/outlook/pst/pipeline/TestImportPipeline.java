@@ -0,0 +1,133 @@
+package com.atsid.outlook.pst.pipeline;
+
+import com.atsid.outlook.pst.message.GmailImportingPstMessageHandler;
+import com.atsid.outlook.pst.message.PreparedMessage;
+import com.atsid.outlook.pst.message.PstMessageSnapshot;
+import com.atsid.outlook.pst.retry.RetryScheduler;
+import com.pff.PSTException;
+import com.pff.PSTMessage;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = { "classpath:applicationContext-test.xml" })
+public class TestImportPipeline {
+    private static final String EMAIL_ADDRESS = "test@example.com";
+    @Mock
+    private GmailImportingPstMessageHandler mockMessageHandler;
+    @Mock
+    private PSTMessage mockPstMessage;
+    @Mock
+    private RetryScheduler mockRetryScheduler;
+    private PstMessageSnapshot snapshot;
+    private PreparedMessage preparedMessage;
+    private Answer<Boolean> runRetry;
+    @Autowired
+    @InjectMocks
+    private ImportPipeline pipeline;
+
+    @Before
+    public void setup() throws IOException, PSTException {
+        MockitoAnnotations.initMocks(this);
+        Mockito.when(mockPstMessage.getDescriptorNodeId()).thenReturn(1L);
+        snapshot = PstMessageSnapshot.of(mockPstMessage, null);
+        preparedMessage = new PreparedMessage(1L, "subject", null, EMAIL_ADDRESS, null, null);
+        runRetry = new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                ((Runnable) invocation.getArguments()[1]).run();
+                return true;
+            }
+        };
+        Mockito.when(mockMessageHandler.readMessage(mockPstMessage, "output")).thenReturn(snapshot);
+    }
+
+    @Test
+    public void testProcessEmailMessage() throws IOException, MessagingException, PSTException {
+        List<String> folderNames = new ArrayList<>(Arrays.asList("a", "b"));
+        Mockito.when(mockMessageHandler.prepareMessage(Mockito.eq(snapshot), Mockito.eq("output"),
+                Mockito.eq(Arrays.asList("a", "b")), Mockito.eq(EMAIL_ADDRESS))).thenReturn(preparedMessage);
+
+        pipeline.processEmailMessage(mockPstMessage, "output", folderNames, EMAIL_ADDRESS);
+        folderNames.clear();
+        pipeline.finishProcessing();
+
+        Mockito.verify(mockMessageHandler).prepareMessage(Mockito.eq(snapshot), Mockito.eq("output"),
+                Mockito.eq(Arrays.asList("a", "b")), Mockito.eq(EMAIL_ADDRESS));
+        Mockito.verify(mockMessageHandler).uploadMessage(Mockito.eq(preparedMessage));
+        Mockito.verify(mockMessageHandler).finishProcessing();
+    }
+
+    @Test
+    public void testProcessEmailMessageConversionError() throws IOException, MessagingException, PSTException {
+        IOException ex = new IOException();
+        Mockito.when(mockMessageHandler.prepareMessage(Mockito.eq(snapshot), Mockito.anyString(),
+                Mockito.anyListOf(String.class), Mockito.anyString())).thenThrow(ex);
+        Mockito.when(mockRetryScheduler.getRetryCount(1L)).thenReturn(0, 1);
+        Mockito.when(mockRetryScheduler.schedule(Mockito.eq(1L), Mockito.any(Runnable.class))).thenAnswer(runRetry)
+               .thenReturn(false);
+
+        pipeline.processEmailMessage(mockPstMessage, "output", new ArrayList<String>(), EMAIL_ADDRESS);
+        pipeline.finishProcessing();
+
+        Mockito.verify(mockMessageHandler, Mockito.times(2))
+               .prepareMessage(Mockito.eq(snapshot), Mockito.eq("output"), Mockito.anyListOf(String.class),
+                       Mockito.eq(EMAIL_ADDRESS));
+        Mockito.verify(mockMessageHandler).logMessageFailure(snapshot, EMAIL_ADDRESS, 0, ex);
+        Mockito.verify(mockMessageHandler).logMessageFailure(snapshot, EMAIL_ADDRESS, 1, ex);
+        Mockito.verify(mockMessageHandler, Mockito.never()).uploadMessage(Mockito.any(PreparedMessage.class));
+        Mockito.verify(mockRetryScheduler, Mockito.times(2)).schedule(Mockito.eq(1L), Mockito.any(Runnable.class));
+    }
+
+    @Test
+    public void testProcessEmailMessageUploadRetry() throws IOException, MessagingException, PSTException {
+        IOException ex = new IOException();
+        Mockito.when(mockMessageHandler.prepareMessage(Mockito.eq(snapshot), Mockito.anyString(),
+                Mockito.anyListOf(String.class), Mockito.anyString())).thenReturn(preparedMessage);
+        Mockito.doThrow(ex).doNothing().when(mockMessageHandler).uploadMessage(preparedMessage);
+        Mockito.when(mockRetryScheduler.getRetryCount(1L)).thenReturn(0);
+        Mockito.when(mockRetryScheduler.schedule(Mockito.eq(1L), Mockito.any(Runnable.class))).thenAnswer(runRetry);
+
+        pipeline.processEmailMessage(mockPstMessage, "output", new ArrayList<String>(), EMAIL_ADDRESS);
+        pipeline.finishProcessing();
+
+        Mockito.verify(mockMessageHandler)
+               .prepareMessage(Mockito.eq(snapshot), Mockito.eq("output"), Mockito.anyListOf(String.class),
+                       Mockito.eq(EMAIL_ADDRESS));
+        Mockito.verify(mockMessageHandler, Mockito.times(2)).uploadMessage(Mockito.eq(preparedMessage));
+        Mockito.verify(mockMessageHandler).logMessageFailure(preparedMessage, 0, ex);
+    }
+
+    @Test
+    public void testProcessEmailMessageReadError() throws IOException, MessagingException, PSTException {
+        IOException ex = new IOException();
+        Mockito.when(mockMessageHandler.readMessage(mockPstMessage, "output")).thenThrow(ex).thenReturn(snapshot);
+        Mockito.when(mockMessageHandler.prepareMessage(Mockito.eq(snapshot), Mockito.anyString(),
+                Mockito.anyListOf(String.class), Mockito.anyString())).thenReturn(preparedMessage);
+        Mockito.when(mockRetryScheduler.getRetryCount(1L)).thenReturn(0);
+        Mockito.when(mockRetryScheduler.schedule(Mockito.eq(1L), Mockito.any(Runnable.class))).thenAnswer(runRetry);
+
+        pipeline.processEmailMessage(mockPstMessage, "output", new ArrayList<String>(), EMAIL_ADDRESS);
+        pipeline.finishProcessing();
+
+        Mockito.verify(mockMessageHandler, Mockito.times(2)).readMessage(mockPstMessage, "output");
+        Mockito.verify(mockMessageHandler).logMessageFailure(mockPstMessage, EMAIL_ADDRESS, 0, ex);
+        Mockito.verify(mockMessageHandler).uploadMessage(Mockito.eq(preparedMessage));
+    }
+}
\ No newline at end of file
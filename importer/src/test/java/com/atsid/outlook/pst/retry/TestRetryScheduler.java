@@ -0,0 +1,65 @@
+package com.atsid.outlook.pst.retry;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestRetryScheduler {
+    private RetryScheduler retryScheduler;
+
+    @Before
+    public void setup() {
+        retryScheduler = new RetryScheduler();
+        ReflectionTestUtils.setField(retryScheduler, "retryCount", 2);
+        ReflectionTestUtils.setField(retryScheduler, "retryBackoff", 10L);
+        ReflectionTestUtils.setField(retryScheduler, "maxRetryBackoff", 20L);
+        ReflectionTestUtils.setField(retryScheduler, "retryThreads", 1);
+        ReflectionTestUtils.invokeMethod(retryScheduler, "createExecutor");
+    }
+
+    @After
+    public void tearDown() {
+        retryScheduler.shutdown();
+    }
+
+    @Test
+    public void testRetriesUntilMaxReached() {
+        final AtomicInteger attempts = new AtomicInteger();
+        Runnable retry = new Runnable() {
+            @Override
+            public void run() {
+                attempts.incrementAndGet();
+                retryScheduler.schedule(1L, this);
+            }
+        };
+
+        Assert.assertTrue(retryScheduler.schedule(1L, retry));
+        retryScheduler.awaitIdle();
+
+        Assert.assertEquals(2, attempts.get());
+        Assert.assertEquals(0, retryScheduler.getRetryCount(1L));
+    }
+
+    @Test
+    public void testSucceededResetsRetryCount() {
+        Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        Assert.assertTrue(retryScheduler.schedule(1L, noop));
+        Assert.assertTrue(retryScheduler.schedule(1L, noop));
+        Assert.assertEquals(2, retryScheduler.getRetryCount(1L));
+
+        retryScheduler.succeeded(1L);
+
+        Assert.assertEquals(0, retryScheduler.getRetryCount(1L));
+        Assert.assertTrue(retryScheduler.schedule(1L, noop));
+        retryScheduler.awaitIdle();
+    }
+}
@@ -0,0 +1,50 @@
+package com.pff;
+
+import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+
+/**
+ * Stubs pieces of a mocked <code>PSTFile</code> that are package-private in java-libpst.  This class lives in the
+ * <code>com.pff</code> package so tests can reach them, the same way <code>PstFileAccess</code> does.
+ */
+public final class PstFileMocks {
+    private PstFileMocks() {
+    }
+
+    /**
+     * Stubs the descriptor and offset index lookups of a mocked PST file so a descriptor's data block is found at the
+     * given offset.
+     *
+     * @param pstFile      Mocked PST file
+     * @param descriptorId Descriptor id to stub
+     * @param fileOffset   Offset in the file where the descriptor's data block starts
+     * @throws IOException
+     * @throws PSTException
+     */
+    public static void stubDataOffset(PSTFile pstFile, int descriptorId, long fileOffset)
+            throws IOException, PSTException {
+        DescriptorIndexNode descriptorNode = Mockito.mock(DescriptorIndexNode.class);
+        OffsetIndexItem offsetItem = Mockito.mock(OffsetIndexItem.class);
+
+        descriptorNode.descriptorIdentifier = descriptorId;
+        descriptorNode.dataOffsetIndexIdentifier = descriptorId * 2L;
+        offsetItem.fileOffset = fileOffset;
+
+        Mockito.when(pstFile.getDescriptorIndexNode(descriptorId)).thenReturn(descriptorNode);
+        Mockito.when(pstFile.getOffsetIndexNode(descriptorNode.dataOffsetIndexIdentifier)).thenReturn(offsetItem);
+    }
+
+    /**
+     * Stubs the descriptor index lookup that starts every load of an object from a mocked PST file.
+     *
+     * @param pstFile Mocked PST file
+     * @param answer  Answer to each lookup
+     * @throws IOException
+     * @throws PSTException
+     */
+    public static void answerDescriptorLookup(PSTFile pstFile, Answer<?> answer) throws IOException, PSTException {
+        Mockito.when(pstFile.getDescriptorIndexNode(Mockito.anyLong())).thenAnswer(answer);
+    }
+}